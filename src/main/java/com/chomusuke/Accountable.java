@@ -17,15 +17,16 @@
 
 package com.chomusuke;
 
+import java.io.UncheckedIOException;
 import java.util.*;
 
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.beans.property.ObjectProperty;
 import javafx.beans.property.SimpleObjectProperty;
 import javafx.beans.property.SimpleStringProperty;
 import javafx.beans.property.StringProperty;
 import javafx.collections.FXCollections;
-import javafx.collections.ListChangeListener;
 import javafx.collections.MapChangeListener;
 import javafx.collections.ObservableMap;
 import javafx.scene.Scene;
@@ -39,6 +40,8 @@ import com.chomusuke.gui.pane.AccountPane;
 import com.chomusuke.gui.pane.TransactionPane;
 import com.chomusuke.gui.popup.AddAccountScreen;
 import com.chomusuke.gui.popup.AddTransactionScreen;
+import com.chomusuke.gui.popup.MessageScreen;
+import com.chomusuke.gui.popup.UnlockScreen;
 import com.chomusuke.util.Time;
 import com.chomusuke.logic.*;
 
@@ -55,6 +58,9 @@ public class Accountable extends Application {
     public static final int PADDING = 8;
 
     public static void main(String[] args) {
+        if (Cli.isCommand(args))
+            System.exit(Cli.run(args));
+
         launch(args);
     }
 
@@ -85,18 +91,37 @@ public class Accountable extends Application {
                 """);
 
 
+        // An encrypted storage can't be read before its passphrase is given
+        if (Encryption.get().isEnabled()) {
+            new UnlockScreen().showAndWait();
+            if (!Encryption.get().isUnlocked()) {
+                Platform.exit();
+                return;
+            }
+        }
+
+
+
         // ----- MEMORY -----
         TransactionList manager = new TransactionList();
-        ObservableMap<Byte, Account> balances = FXCollections.observableMap(Storage.readAccounts());
+        // The accounts are read along with the current month and the year-to-date balances
+        ObservableMap<Byte, Account> balances = FXCollections.observableMap(MonthPrefetcher.get().warmUp());
         StringProperty year = new SimpleStringProperty();
         StringProperty month = new SimpleStringProperty();
+        AlertEngine alerts = AlertEngine.load();
+
+        // The snapshots and the alerts are maintained before the other listeners read them
+        Ledger.get().attach(manager);
+        Ledger.get().publishAccounts(balances);
+        alerts.attach(manager);
+        alerts.updateBalances(balances);
 
 
 
         // ----- WINDOW -----
         stage.setScene(new Scene(new Pane()));
         ObjectProperty<SceneID> selectedScene = new SimpleObjectProperty<>();
-        TransactionPane transactions = new TransactionPane(selectedScene, manager, balances, year, month);
+        TransactionPane transactions = new TransactionPane(selectedScene, manager, balances, alerts, year, month);
         AccountPane accounts = new AccountPane(selectedScene, manager, balances);
 
 
@@ -135,68 +160,37 @@ public class Accountable extends Application {
                     int intYear = Integer.parseInt(year.get());
                     int intMonth = Integer.parseInt(month.get());
 
-                    if (intYear >= 1 && intMonth >= 1)
+                    if (intYear >= 1 && intMonth >= 1) {
+                        Storage.awaitWrites();
+                        Storage.setLoaded(intYear, intMonth);
+                        Ledger.get().select(intYear, intMonth);
+                        manager.setCarry(CarryOver.get().getCarry(intYear, intMonth));
                         manager.setTransactionList(Storage.read(intYear, intMonth));
+                    }
                 }
             });
 
-            // Transaction list modification
-            manager.getTransactionList().addListener((ListChangeListener<Transaction>) l -> {
-                l.next();
-
-                int intYear = Integer.parseInt(year.get());
-                int intMonth = Integer.parseInt(month.get());
-
-                if (!manager.setAllFlag()) {
-                    List<Transaction> oldList = new ArrayList<>(l.getList());
-
-                    if (l.wasRemoved()) {
-                        Storage.write(
-                                manager.getTransactionList(),
-                                intYear,
-                                intMonth
-                        );
-
-                        if (l.wasAdded())
-                            oldList.set(l.getFrom(), l.getRemoved().get(0));
-                        else
-                            oldList.add(l.getFrom(), l.getRemoved().get(0));
-                    } else {
-                        Transaction tx = l.getAddedSubList().get(0);
-                        oldList.remove(l.getFrom());
-
-                        // Filter zero-valued transactions
-                        if (tx.value() != 0) {
-                            Storage.write(
-                                    l.getAddedSubList().get(0),
-                                    intYear,
-                                    intMonth
-                            );
-
-                        } else {
-                            manager.remove(tx);
-                            balances.remove(tx.to());
-                        }
-                    }
-
-                    Account.ModMap.of(oldList)
-                            .reverse()
-                            .apply(balances);
-
-                    Account.ModMap.of(new ArrayList<>(l.getList()))
-                            .apply(balances);
+            // Account map modification, published as events
+            balances.addListener((MapChangeListener<? super Byte, ? super Account>) c ->
+                    Ledger.get().publishAccounts(balances));
 
-                    Storage.writeAccounts(balances);
-                }
-
-                transactions.update(manager, balances);
-                accounts.update(balances);
+            // Changes which couldn't be stored are only kept in memory, the user is told
+            Storage.setOnWriteFailure(e -> Platform.runLater(() -> showWriteFailure(e)));
+            Thread.currentThread().setUncaughtExceptionHandler((t, e) -> {
+                e.printStackTrace();
+                if (e instanceof UncheckedIOException u)
+                    showWriteFailure(u);
             });
 
-            balances.addListener((MapChangeListener<? super Byte, ? super Account>) c -> {
-                Storage.writeAccounts(balances);
+            // Changes of the ledger: the storage, the balances and the views follow them on their own
+            Storage.follow(LedgerEvents.get());
+            LedgerEvents.get().subscribe("balances", e ->
+                    Platform.runLater(() -> updateBalances(e, manager, balances, alerts)));
+            LedgerEvents.get().subscribe("views", e -> Platform.runLater(() -> {
+                if (!(e instanceof LedgerEvent.AccountChanged))
+                    transactions.update(manager, balances);
                 accounts.update(balances);
-            });
+            }));
 
             selectedScene.addListener(e -> {
                 transactions.update(manager, balances);
@@ -223,11 +217,104 @@ public class Accountable extends Application {
             accounts.update(balances);
             year.set(Integer.toString(Time.getCurrentYear()));
             month.set(Integer.toString(Time.getCurrentMonth()));
+
+            // The indexes are loaded, or rebuilt, and the closed years packed, without delaying the window
+            Thread indexLoader = new Thread(() -> {
+                Storage.archiveClosedYears();
+                SearchIndex.get().ensureLoaded();
+                AccountIndex.get().ensureLoaded();
+
+                // The views left without the history, and the carries skipped meanwhile, catch up
+                Platform.runLater(() -> {
+                    if (CarryOver.get().isEnabled() && AccountIndex.get().resync(balances)) {
+                        Ledger.get().publishAccounts(balances);
+                        alerts.updateBalances(balances);
+                    }
+                    transactions.update(manager, balances);
+                    accounts.update(balances);
+                });
+            }, "index-loader");
+            indexLoader.setDaemon(true);
+            indexLoader.start();
+
+            if (Storage.hasFiles()) {
+                // Old files are read as they are meanwhile
+                Migration.get().start();
+                Scrubber.get().addListener(corrupted -> Platform.runLater(() -> showCorrupted(corrupted)));
+                Scrubber.get().start();
+            }
         }
 
         stage.show();
     }
 
+    @Override
+    public void stop() {
+        // The published changes are written before exiting
+        LedgerEvents.get().close();
+        PersistentIndex.awaitPendingSaves();
+    }
+
+    /**
+     * Tells the user that changes couldn't be stored, on the JavaFX thread.
+     *
+     * @param e the failure
+     */
+    private static void showWriteFailure(UncheckedIOException e) {
+
+        new MessageScreen(String.format("The changes could not be saved: %s", e.getCause().getMessage()), true).show();
+    }
+
+    /**
+     * Tells the user which stored files are damaged, on the JavaFX thread.
+     *
+     * @param corrupted path relative to the storage -> cause
+     */
+    private static void showCorrupted(Map<String, String> corrupted) {
+        if (corrupted.isEmpty()) {
+            new MessageScreen("The damaged files were repaired", false).show();
+            return;
+        }
+
+        StringBuilder message = new StringBuilder("These stored files are damaged:");
+        corrupted.forEach((file, cause) -> message.append(String.format("%n%s  %s", file, cause.replace('\t', ' '))));
+
+        new MessageScreen(message.toString(), true).show();
+    }
+
+    /**
+     * Maintains the balances after a change of the ledger, on the JavaFX thread.
+     *
+     * @param e a change
+     * @param manager the transaction list
+     * @param balances the account map
+     * @param alerts the alert engine
+     */
+    private static void updateBalances(LedgerEvent e, TransactionList manager, Map<Byte, Account> balances, AlertEngine alerts) {
+        if (e instanceof LedgerEvent.TransactionEvent t) {
+            // Filter zero-valued transactions
+            if (t instanceof LedgerEvent.TransactionAdded a && a.transaction().value() == 0) {
+                manager.remove(a.transaction());
+                balances.remove(a.transaction().to());
+            }
+
+            Account.ModMap.of(t.previous().transactions(), t.previous().carry())
+                    .reverse()
+                    .apply(balances);
+
+            Account.ModMap.of(t.snapshot().transactions(), t.snapshot().carry())
+                    .apply(balances);
+
+            // The following months may have received other carries
+            if (CarryOver.get().isEnabled())
+                AccountIndex.get().resync(balances);
+        }
+
+        // Reloads may also have modified the balances
+        Ledger.get().publishAccounts(balances);
+        alerts.updateBalances(balances);
+    }
+
 
     /**
      * This enum provides constants for determining the scene currently loaded.
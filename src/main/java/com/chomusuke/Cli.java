@@ -0,0 +1,222 @@
+/*  Accountable: a personal spending monitoring program
+    Copyright (C) 2023  Artur Yukhanov
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package com.chomusuke;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import com.chomusuke.logic.Account;
+import com.chomusuke.logic.AccountIndex;
+import com.chomusuke.logic.Backup;
+import com.chomusuke.logic.CarryOver;
+import com.chomusuke.logic.Encryption;
+import com.chomusuke.logic.LedgerCheck;
+import com.chomusuke.logic.Migration;
+import com.chomusuke.logic.PersistentIndex;
+import com.chomusuke.logic.Storage;
+import com.chomusuke.logic.io.Exporter;
+import com.chomusuke.logic.io.Importer;
+import com.chomusuke.logic.query.Query;
+
+/**
+ * Headless entry point of the Accountable application.
+ * <p>
+ * Runs a single command on the storage, without any window.
+ */
+public final class Cli {
+
+    private static final List<String> COMMANDS = List.of("query", "import", "export", "fsck", "backup", "encrypt", "archive", "migrate");
+
+    private static final String USAGE = """
+            Usage:
+              accountable query "<query>"    runs a query over the whole history
+              accountable import <file>      imports a CSV or OFX/QFX statement
+              accountable export <file>      exports the whole history (.csv, .jsonl or .acol)
+              accountable fsck check|repair  compares the balances with the transactions
+              accountable backup create|list backs up the storage, or lists the backups
+              accountable backup restore <id> restores a backup
+              accountable encrypt enable     encrypts the storage with a new passphrase
+              accountable archive <year>|closed
+                                             packs the months of a closed year, or of all of them
+              accountable migrate now        upgrades the stored files to the current format
+
+            The passphrase of an encrypted storage is read from ACCOUNTABLE_PASSPHRASE,
+            or asked for.
+            """;
+
+    /**
+     * Don't let anyone instantiate this class.
+     */
+    private Cli() {
+    }
+
+    public static void main(String[] args) {
+
+        System.exit(run(args));
+    }
+
+    /**
+     * Tests whether the arguments name a headless command.
+     *
+     * @param args the program arguments
+     *
+     * @return {@code true} if the command must be run without a window
+     */
+    public static boolean isCommand(String[] args) {
+
+        return args.length > 0 && COMMANDS.contains(args[0]);
+    }
+
+    /**
+     * Runs the command given by the arguments.
+     *
+     * @param args the program arguments
+     *
+     * @return the exit status
+     */
+    public static int run(String[] args) {
+        if (!isCommand(args) || args.length < 2) {
+            System.err.print(USAGE);
+            return 2;
+        }
+
+        String argument = String.join(" ", Arrays.asList(args).subList(1, args.length));
+
+        if (Encryption.get().isEnabled()) {
+            try {
+                Encryption.get().unlock(passphrase());
+            } catch (IllegalArgumentException | IOException e) {
+                System.err.println(e.getMessage());
+                return 1;
+            }
+        }
+
+        // Read-only commands see the history as committed when they start, even if the window writes meanwhile
+        boolean pinned = !args[0].equals("import") && !args[0].equals("archive") && !args[0].equals("migrate") && !args[1].equals("repair") && !args[1].equals("restore");
+        if (pinned) {
+            try {
+                Storage.pin();
+            } catch (UncheckedIOException e) {
+                System.err.println(e.getMessage());
+                return 1;
+            }
+        }
+        Map<Byte, Account> accounts = Storage.readAccounts();
+
+        try {
+            switch (args[0]) {
+                case "query" -> System.out.print(Query.compile(argument, accounts).run().format());
+                case "import" -> {
+                    Importer.Report report = Importer.importFile(Path.of(argument), accounts);
+                    System.out.printf("%s imported, %s rejected, %s duplicates%n", report.imported(), report.rejected(), report.duplicates());
+
+                    // No month is loaded, all the rows were written
+                    report.balances().apply(accounts);
+                    if (CarryOver.get().isEnabled()) {
+                        // Off the JavaFX thread, the index may be loaded and brought up to date here
+                        AccountIndex.get().refresh();
+                        AccountIndex.get().resync(accounts);
+                    }
+                    Storage.writeAccounts(accounts);
+
+                    if (report.failure() != null) {
+                        System.err.println(report.failure().getMessage());
+                        return 1;
+                    }
+                }
+                case "export" -> {
+                    Path file = Path.of(argument);
+                    Exporter.export(file, Exporter.Format.of(file), accounts);
+                }
+                case "fsck" -> {
+                    LedgerCheck.Report report = LedgerCheck.check(accounts);
+                    System.out.print(report.format());
+                    if (argument.equals("repair"))
+                        LedgerCheck.repair(accounts, report);
+                    else if (!report.isConsistent())
+                        return 1;
+                }
+                case "backup" -> {
+                    Backup backup = Backup.local();
+                    switch (args[1]) {
+                        case "create" -> backup.create();
+                        case "list" -> backup.list().forEach(id -> System.out.printf("%s  %s%n", id, Instant.ofEpochMilli(id)));
+                        case "restore" -> {
+                            if (args.length < 3)
+                                throw new IllegalArgumentException("No backup id given");
+                            backup.restore(Long.parseLong(args[2]));
+                        }
+                        default -> throw new IllegalArgumentException("Unknown backup command: " + args[1]);
+                    }
+                }
+                case "encrypt" -> {
+                    if (!argument.equals("enable"))
+                        throw new IllegalArgumentException("Unknown encrypt command: " + argument);
+                    if (Encryption.get().isEnabled())
+                        throw new IllegalArgumentException("The storage is already encrypted");
+
+                    Encryption.get().enable(passphrase());
+                    Storage.reindexAll();
+                }
+                case "archive" -> {
+                    if (argument.equals("closed"))
+                        Storage.archiveClosedYears();
+                    else
+                        Storage.archive(Integer.parseInt(argument));
+                }
+                case "migrate" -> {
+                    if (!argument.equals("now"))
+                        throw new IllegalArgumentException("Unknown migrate command: " + argument);
+
+                    Migration.get().addListener(System.out::println);
+                    Migration.get().migrate();
+                }
+            }
+        } catch (IllegalArgumentException | IllegalStateException | IOException | UncheckedIOException e) {
+            System.err.println(e.getMessage());
+            return 1;
+        } finally {
+            if (pinned)
+                Storage.unpin();
+            PersistentIndex.awaitPendingSaves();
+        }
+
+        return 0;
+    }
+
+    /**
+     * Reads the passphrase of the storage from the environment, or from the console.
+     *
+     * @return the passphrase
+     */
+    private static char[] passphrase() {
+        String env = System.getenv("ACCOUNTABLE_PASSPHRASE");
+        if (env != null)
+            return env.toCharArray();
+
+        if (System.console() == null)
+            throw new IllegalArgumentException("No passphrase given");
+
+        return System.console().readPassword("Passphrase: ");
+    }
+}
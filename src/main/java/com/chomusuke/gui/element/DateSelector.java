@@ -26,6 +26,7 @@ import javafx.collections.FXCollections;
 import javafx.scene.control.ChoiceBox;
 import javafx.scene.layout.HBox;
 
+import com.chomusuke.logic.MonthPrefetcher;
 import com.chomusuke.logic.Storage;
 import com.chomusuke.util.Time;
 
@@ -65,10 +66,19 @@ public class DateSelector extends HBox {
                     Storage.getAvailableYears()
             )));
 
-            // Loads available months on deployment of the ChoiceBox
-            monthSelector.setOnShown(e -> monthSelector.setItems(FXCollections.observableList(
-                    Storage.getAvailableMonths(Integer.parseInt(year.getValue()))
-            )));
+            // Loads available months on deployment of the ChoiceBox, and reads them meanwhile
+            monthSelector.setOnShown(e -> {
+                monthSelector.setItems(FXCollections.observableList(
+                        Storage.getAvailableMonths(Integer.parseInt(year.getValue()))
+                ));
+                MonthPrefetcher.get().openedYear(Integer.parseInt(year.getValue()));
+            });
+
+            // Reads the months around the selected one in the background
+            month.addListener((v, o, n) -> {
+                if (n != null && year.get() != null)
+                    MonthPrefetcher.get().opened(Integer.parseInt(year.get()), Integer.parseInt(n));
+            });
 
             // Clears the selected month when another year is chosen
             // Updates the year property if the selected value is not null
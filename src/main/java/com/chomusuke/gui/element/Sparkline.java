@@ -0,0 +1,143 @@
+/*  Accountable: a personal spending monitoring program
+    Copyright (C) 2023  Artur Yukhanov
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package com.chomusuke.gui.element;
+
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.paint.Color;
+
+/**
+ * Provides a lightweight JavaFX Node drawing a series of values as a line.
+ * <br>
+ * The series is drawn once on a {@code Canvas}, which is much cheaper
+ * than a chart when many series are displayed.
+ */
+public class Sparkline extends Canvas {
+
+    private static final double LINE_WIDTH = 2;
+    private static final Color LINE_COLOR = Color.web("#33CCFF");  // Blue
+    private static final Color LAST_POINT_COLOR = Color.LIGHTGRAY;
+    private static final Color BAND_COLOR = LINE_COLOR.deriveColor(0, 1, 1, 0.3);
+
+    /**
+     * Constructor.
+     *
+     * @param width the width of the line
+     * @param height the height of the line
+     * @param values the values to draw, from left to right
+     */
+    public Sparkline(double width, double height, double[] values) {
+        super(width, height);
+
+        draw(values);
+    }
+
+    /**
+     * Draws the given values, replacing the previous ones.
+     *
+     * @param values the values to draw, from left to right
+     */
+    public void draw(double[] values) {
+        GraphicsContext g = getGraphicsContext2D();
+        g.clearRect(0, 0, getWidth(), getHeight());
+
+        if (values.length < 2)
+            return;
+
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (double v : values) {
+            min = Math.min(min, v);
+            max = Math.max(max, v);
+        }
+
+        // A flat series is drawn in the middle
+        double range = max - min == 0 ? 1 : max - min;
+        double margin = LINE_WIDTH * 2;
+        double stepX = (getWidth() - margin * 2) / (values.length - 1);
+        double height = getHeight() - margin * 2;
+
+        double[] xs = new double[values.length];
+        double[] ys = new double[values.length];
+        for (int i = 0 ; i < values.length ; i++) {
+            xs[i] = margin + i * stepX;
+            ys[i] = max - min == 0 ? getHeight() / 2 : margin + height * (1 - (values[i] - min) / range);
+        }
+
+        g.setStroke(LINE_COLOR);
+        g.setLineWidth(LINE_WIDTH);
+        g.strokePolyline(xs, ys, values.length);
+
+        g.setFill(LAST_POINT_COLOR);
+        g.fillOval(xs[values.length - 1] - LINE_WIDTH * 1.5, ys[values.length - 1] - LINE_WIDTH * 1.5, LINE_WIDTH * 3, LINE_WIDTH * 3);
+    }
+
+    /**
+     * Draws a confidence band around a series, replacing the previous drawing.
+     * The three arrays must have the same length.
+     *
+     * @param low the lower bound of the band, from left to right
+     * @param values the values to draw as a line
+     * @param high the upper bound of the band
+     */
+    public void drawBand(double[] low, double[] values, double[] high) {
+        if (values.length < 2) {
+            draw(values);
+            return;
+        }
+
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (int i = 0 ; i < values.length ; i++) {
+            min = Math.min(min, low[i]);
+            max = Math.max(max, high[i]);
+        }
+
+        GraphicsContext g = getGraphicsContext2D();
+        g.clearRect(0, 0, getWidth(), getHeight());
+
+        double range = max - min == 0 ? 1 : max - min;
+        double margin = LINE_WIDTH * 2;
+        double stepX = (getWidth() - margin * 2) / (values.length - 1);
+        double height = getHeight() - margin * 2;
+
+        int n = values.length;
+        double[] bandXs = new double[n * 2];
+        double[] bandYs = new double[n * 2];
+        double[] xs = new double[n];
+        double[] ys = new double[n];
+        for (int i = 0 ; i < n ; i++) {
+            xs[i] = margin + i * stepX;
+            ys[i] = margin + height * (1 - (values[i] - min) / range);
+
+            // Upper bound from left to right, then lower bound back
+            bandXs[i] = xs[i];
+            bandYs[i] = margin + height * (1 - (high[i] - min) / range);
+            bandXs[n * 2 - 1 - i] = xs[i];
+            bandYs[n * 2 - 1 - i] = margin + height * (1 - (low[i] - min) / range);
+        }
+
+        g.setFill(BAND_COLOR);
+        g.fillPolygon(bandXs, bandYs, n * 2);
+
+        g.setStroke(LINE_COLOR);
+        g.setLineWidth(LINE_WIDTH);
+        g.strokePolyline(xs, ys, n);
+    }
+}
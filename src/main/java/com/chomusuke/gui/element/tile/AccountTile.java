@@ -19,9 +19,14 @@ package com.chomusuke.gui.element.tile;
 
 import java.util.Locale;
 
+import javafx.geometry.Pos;
+import javafx.scene.layout.HBox;
 import javafx.scene.layout.Pane;
+import javafx.scene.layout.Priority;
+import javafx.scene.layout.Region;
 import javafx.scene.paint.Color;
 
+import com.chomusuke.gui.element.Sparkline;
 import com.chomusuke.logic.Account;
 
 /**
@@ -29,9 +34,18 @@ import com.chomusuke.logic.Account;
  */
 public class AccountTile extends Tile {
 
+    private static final int SPARKLINE_WIDTH = 96;
+    private static final int SPARKLINE_HEIGHT = 40;
+
     private final Account baseAccount;
 
-    public AccountTile(Account account) {
+    /**
+     * Constructor.
+     *
+     * @param account an account
+     * @param history the month-end balances of the account, drawn as a sparkline
+     */
+    public AccountTile(Account account, double[] history) {
         super(account.getName(), account.getBalance());
 
         baseAccount = account;
@@ -44,6 +58,11 @@ public class AccountTile extends Tile {
 
         getChildren().add(0, tag);
 
+        Region spacer = new Region();
+        HBox.setHgrow(spacer, Priority.ALWAYS);
+        getChildren().addAll(spacer, new Sparkline(SPARKLINE_WIDTH, SPARKLINE_HEIGHT, history));
+        setAlignment(Pos.CENTER_LEFT);
+
         if (account.getObjective() != 0) {
             setValueString(String.format(Locale.ROOT, "%.2f / %.2f", account.getBalance(), account.getObjective()));
         }
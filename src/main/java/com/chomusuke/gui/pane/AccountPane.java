@@ -17,6 +17,7 @@
 
 package com.chomusuke.gui.pane;
 
+import java.time.YearMonth;
 import java.util.List;
 import java.util.Map;
 
@@ -35,7 +36,9 @@ import com.chomusuke.gui.element.PlusButton;
 import com.chomusuke.gui.element.tile.AccountTile;
 import com.chomusuke.gui.popup.AddAccountScreen;
 import com.chomusuke.logic.Account;
+import com.chomusuke.logic.AccountIndex;
 import com.chomusuke.logic.TransactionList;
+import com.chomusuke.util.Time;
 import javafx.scene.paint.Color;
 
 import static com.chomusuke.Accountable.PADDING;
@@ -45,6 +48,8 @@ import static com.chomusuke.Accountable.PADDING;
  */
 public class AccountPane extends ContentPane {
 
+    private static final int SPARKLINE_MONTHS = 12;
+
     private final TransactionList txList;
     private final VBox accountPane;
     private final LineChart<Number, Number> chart;
@@ -161,10 +166,17 @@ public class AccountPane extends ContentPane {
     public void update(Map<Byte, Account> balances) {
         accountPane.getChildren().clear();
 
+        // The history is drawn once the account index is loaded, it is never rebuilt here
+        AccountIndex index = AccountIndex.get();
+        boolean indexed = index.isLoaded();
+
         // Update account tiles
-        for (Account a : balances.values()) {
+        YearMonth from = YearMonth.of(Time.getCurrentYear(), Time.getCurrentMonth()).minusMonths(SPARKLINE_MONTHS - 1);
+        for (Map.Entry<Byte, Account> e : balances.entrySet()) {
+            Account a = e.getValue();
             if (a.getBalance() >= 0) {
-                AccountTile t = new AccountTile(a);
+                double[] history = indexed ? index.getMonthEndBalances(e.getKey(), from, SPARKLINE_MONTHS) : new double[0];
+                AccountTile t = new AccountTile(a, history);
 
                 t.setOnMouseClicked(m ->
                         new AddAccountScreen(balances, t.getBaseAccount(), txList).show()
@@ -174,7 +186,10 @@ public class AccountPane extends ContentPane {
             }
         }
 
-        // Update the chart
+        // Update the chart, from an index holding every stored month
+        if (!index.isFresh())
+            return;
+
         XYChart.Series<Number, Number> ytdData = chart.getData().get(0);
         ytdData.getData().clear();
 
@@ -17,39 +17,68 @@
 
 package com.chomusuke.gui.pane;
 
+import java.io.File;
+import java.io.IOException;
+import java.time.YearMonth;
 import java.util.*;
 
+import javafx.application.Platform;
 import javafx.beans.property.ObjectProperty;
 import javafx.beans.property.StringProperty;
 import javafx.collections.ListChangeListener;
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
+import javafx.scene.control.Button;
+import javafx.scene.control.CheckBox;
+import javafx.scene.control.TextField;
 import javafx.scene.input.MouseButton;
 import javafx.scene.layout.HBox;
+import javafx.scene.layout.Priority;
+import javafx.scene.layout.Region;
 import javafx.scene.layout.VBox;
 import javafx.scene.paint.Color;
 import javafx.scene.text.Text;
+import javafx.stage.FileChooser;
 
 import com.chomusuke.Accountable.SceneID;
 import com.chomusuke.gui.element.DateSelector;
 import com.chomusuke.gui.element.PlusButton;
 import com.chomusuke.gui.element.SquareButton;
+import com.chomusuke.gui.element.tile.Tile;
 import com.chomusuke.gui.element.tile.TransactionTile;
 import com.chomusuke.gui.popup.AddFileScreen;
 import com.chomusuke.gui.popup.AddTransactionScreen;
+import com.chomusuke.gui.popup.DistributionScreen;
+import com.chomusuke.gui.popup.MessageScreen;
+import com.chomusuke.gui.popup.QueryScreen;
+import com.chomusuke.gui.popup.ScenarioScreen;
 import com.chomusuke.logic.Account;
+import com.chomusuke.logic.AccountIndex;
+import com.chomusuke.logic.AlertEngine;
+import com.chomusuke.logic.AlertRule;
+import com.chomusuke.logic.CarryOver;
+import com.chomusuke.logic.Ledger;
+import com.chomusuke.logic.SearchIndex;
+import com.chomusuke.logic.Storage;
 import com.chomusuke.logic.Transaction;
 import com.chomusuke.logic.TransactionList;
+import com.chomusuke.logic.io.Exporter;
+import com.chomusuke.logic.io.Importer;
 
 import static com.chomusuke.Accountable.PADDING;
 
 public class TransactionPane extends ContentPane {
 
-    private static final float REMAINDER_COLOR_THRESHOLD = 0.1f;
+    private static final int MAX_SEARCH_HITS = 100;
 
     private final VBox transactionPane;
+    private final TextField search = new TextField();
+    private final StringProperty year;
+    private final StringProperty month;
 
-    public TransactionPane(ObjectProperty<SceneID> selectedScene, TransactionList txList, Map<Byte, Account> balances, StringProperty year, StringProperty month) {
+    public TransactionPane(ObjectProperty<SceneID> selectedScene, TransactionList txList, Map<Byte, Account> balances, AlertEngine alerts, StringProperty year, StringProperty month) {
+        this.year = year;
+        this.month = month;
 
         // ----- TOP -----
         // Title of the app
@@ -61,11 +90,19 @@ public class TransactionPane extends ContentPane {
 
         SquareButton accounts = new SquareButton("wallet.png", a -> selectedScene.set(SceneID.ACCOUNTS));
         SquareButton newFile = new SquareButton("new.png", a -> new AddFileScreen().show());
+        SquareButton importFile = new SquareButton("load.png", a -> importStatement(txList, balances));
+        SquareButton exportFile = new SquareButton("save.png", a -> exportHistory(balances));
+        Button query = new Button("?");
+        Button distribution = new Button("%");
+        Button scenario = new Button("If");
         DateSelector dateSelector = new DateSelector();
         Text loadedDate = new Text();
 
         Text remainder = new Text();
-        HBox remainderContainer = new HBox(remainder);
+        Region remainderSpacer = new Region();
+        CheckBox carryOver = new CheckBox("Carry over");
+        HBox remainderContainer = new HBox(remainder, remainderSpacer, carryOver);
+        Text alert = new Text();
 
 
 
@@ -80,9 +117,9 @@ public class TransactionPane extends ContentPane {
 
 
 
-        controls.getChildren().addAll(accounts, newFile, dateSelector, loadedDate);
+        controls.getChildren().addAll(accounts, newFile, importFile, exportFile, query, distribution, scenario, dateSelector, loadedDate);
 
-        addToTop(titleContainer, controls, remainderContainer);
+        addToTop(titleContainer, controls, search, remainderContainer, alert);
         setScrollableContent(transactionPane);
         addToContent(addTransaction);
 
@@ -94,6 +131,8 @@ public class TransactionPane extends ContentPane {
             title.getStyleClass().add("stdText");
             titleContainer.setAlignment(Pos.CENTER);
 
+            search.setPromptText("Search all transactions");
+
             loadedDate.getStyleClass().add("stdText");
             HBox.setMargin(loadedDate, new Insets(0, 0, 0, PADDING));
 
@@ -102,6 +141,10 @@ public class TransactionPane extends ContentPane {
 
             remainder.setStyle("-fx-font: 18 'Arial Rounded MT Bold'");
             remainderContainer.setAlignment(Pos.BASELINE_LEFT);
+            HBox.setHgrow(remainderSpacer, Priority.ALWAYS);
+            carryOver.setTextFill(Color.LIGHTGRAY);
+            carryOver.setSelected(CarryOver.get().isEnabled());
+            alert.getStyleClass().add("historyText");
 
             transactionPane.getStyleClass().add("background");
             transactionPane.setPadding(new Insets(0, 0, PADDING, 0));
@@ -120,32 +163,212 @@ public class TransactionPane extends ContentPane {
             // Transaction addition (Big Fat + Button)
             addTransaction.setOnMouseClicked((e) -> new AddTransactionScreen(txList, balances).show());
 
-            // Colors for remainder
-            remainder.textProperty().addListener((v, o, n) -> {
-                if (Float.parseFloat(n) == 0)
-                    remainder.setFill(Color.BLUE);
-                else if (Float.parseFloat(n) < 0)
-                    remainder.setFill(Color.RED);
-                else if (Float.parseFloat(n) < txList.getTotalRevenue() * REMAINDER_COLOR_THRESHOLD)
-                    remainder.setFill(Color.ORANGE);
-                else
-                    remainder.setFill(Color.GREEN);
+            // Queries over the whole history
+            query.setOnAction(e -> new QueryScreen().show());
+            distribution.setOnAction(e -> new DistributionScreen().show());
+            scenario.setOnAction(e -> new ScenarioScreen(balances, () -> reload(txList)).show());
+
+            // Latest alert raised by the rules
+            alerts.addListener(a -> {
+                alert.setText(a.message());
+                alert.setFill(levelColor(a.rule().getLevel()));
             });
 
+            // Carry the remainders over to the following months
+            carryOver.selectedProperty().addListener((v, o, n) -> setCarryOver(n, txList, balances));
+
+            // Search the whole history, the month is shown again once the query is cleared
+            search.textProperty().addListener((v, o, n) -> update(txList, balances));
+
             // Update the currently selected date
             dateSelector.getMonthProperty().addListener((v, o, n) -> {
                 if (n != null)
                     loadedDate.setText(String.format("%s/%s", year.get(), month.get()));
             });
 
-            // Update the remainder
-            txList.getTransactionList().addListener((ListChangeListener<? super Transaction>) e ->
-                remainder.setText(String.format(Locale.ROOT, "%.2f", txList.getRemainder()))
-            );
+            // Update the remainder, colored by the first rule on the remainder that holds
+            txList.getTransactionList().addListener((ListChangeListener<? super Transaction>) e -> {
+                remainder.setText(String.format(Locale.ROOT, "%.2f", txList.getRemainder()));
+                remainder.setFill(levelColor(alerts.getRemainderLevel()));
+            });
+        }
+    }
+
+    /**
+     * Returns the color showing an alert level.
+     *
+     * @param level a level, {@code null} if no alert holds
+     *
+     * @return a color
+     */
+    private static Color levelColor(AlertRule.Level level) {
+        if (level == null)
+            return Color.GREEN;
+
+        return switch (level) {
+            case INFO -> Color.BLUE;
+            case WARNING -> Color.ORANGE;
+            case CRITICAL -> Color.RED;
+        };
+    }
+
+    /**
+     * Switches the carry-over mode in the background, then reloads
+     * the loaded month and brings the balances in line with the history.
+     *
+     * @param enabled the new mode
+     * @param txList a transaction list
+     * @param balances an account map
+     */
+    private void setCarryOver(boolean enabled, TransactionList txList, Map<Byte, Account> balances) {
+        Thread switcher = new Thread(() -> {
+            CarryOver.get().setEnabled(enabled);
+
+            Platform.runLater(() -> {
+                AccountIndex.get().resync(balances);
+                Storage.writeAccounts(balances);
+                reload(txList);
+            });
+        }, "carry-over");
+        switcher.setDaemon(true);
+        switcher.start();
+    }
+
+    /**
+     * Reads the loaded month again, with its carry.
+     *
+     * @param txList a transaction list
+     */
+    private void reload(TransactionList txList) {
+        if (year.get() != null && month.get() != null) {
+            int intYear = Integer.parseInt(year.get());
+            int intMonth = Integer.parseInt(month.get());
+
+            Storage.awaitWrites();
+            txList.setCarry(CarryOver.get().getCarry(intYear, intMonth));
+            txList.setTransactionList(Storage.read(intYear, intMonth));
         }
     }
 
+    /**
+     * Asks for a bank statement and imports it in the background.
+     * The changes of the balances, and the rows of the loaded month,
+     * are applied once the import is done, and the report is shown.
+     *
+     * @param txList a transaction list
+     * @param balances an account map
+     */
+    private void importStatement(TransactionList txList, Map<Byte, Account> balances) {
+        FileChooser chooser = new FileChooser();
+        chooser.getExtensionFilters().add(new FileChooser.ExtensionFilter("Bank statements", "*.csv", "*.ofx", "*.qfx"));
+        File file = chooser.showOpenDialog(getScene().getWindow());
+
+        if (file == null)
+            return;
+
+        // The importer only reads the accounts, the map of the window is left to this thread
+        Map<Byte, Account> accounts = Ledger.get().snapshot().accounts();
+        Thread importer = new Thread(() -> {
+            try {
+                Importer.Report report = Importer.importFile(file.toPath(), accounts);
+
+                Platform.runLater(() -> finishImport(report, txList, balances));
+            } catch (IOException e) {
+                e.printStackTrace();
+
+                Platform.runLater(() -> new MessageScreen(String.format("%s can't be imported: %s", file.getName(), e.getMessage()), true).show());
+            }
+        }, "statement-import");
+        importer.setDaemon(true);
+        importer.start();
+    }
+
+    /**
+     * Applies the results of an import, on the JavaFX thread.
+     * <br>
+     * The rows kept for the loaded month are added to the transaction list,
+     * so that they're written and counted like rows added by hand. Rows kept
+     * for a month which isn't loaded anymore are appended to it.
+     *
+     * @param report the report of the import
+     * @param txList a transaction list
+     * @param balances an account map
+     */
+    private void finishImport(Importer.Report report, TransactionList txList, Map<Byte, Account> balances) {
+        report.balances().apply(balances);
+
+        report.kept().forEach((ym, rows) -> {
+            if (ym.equals(getLoadedMonth())) {
+                rows.forEach(txList::add);
+                return;
+            }
+
+            int y = ym.getYear();
+            int m = ym.getMonthValue();
+            Storage.awaitWrites();
+            float carry = CarryOver.get().getCarry(y, m);
+            Account.ModMap reverse = Account.ModMap.of(Storage.read(y, m), carry).reverse();
+            Storage.append(rows, y, m);
+            reverse.add(Account.ModMap.of(Storage.read(y, m), carry)).apply(balances);
+        });
+
+        // The following months may have received other carries
+        if (CarryOver.get().isEnabled())
+            AccountIndex.get().resync(balances);
+
+        // The balances were modified in place, which the map doesn't notice
+        Ledger.get().publishAccounts(balances);
+        if (CarryOver.get().isEnabled())
+            reload(txList);
+
+        new MessageScreen(report.format(), report.failure() != null).show();
+    }
+
+    /**
+     * Returns the month loaded in the window.
+     *
+     * @return the month, {@code null} if none is loaded
+     */
+    private YearMonth getLoadedMonth() {
+        if (year.get() == null || month.get() == null)
+            return null;
+
+        return YearMonth.of(Integer.parseInt(year.get()), Integer.parseInt(month.get()));
+    }
+
+    /**
+     * Asks for a destination file and exports the whole history to it
+     * in the background.
+     *
+     * @param balances an account map
+     */
+    private void exportHistory(Map<Byte, Account> balances) {
+        FileChooser chooser = new FileChooser();
+        for (Exporter.Format f : Exporter.Format.values())
+            chooser.getExtensionFilters().add(new FileChooser.ExtensionFilter(f.name(), "*" + f.getExtension()));
+        File file = chooser.showSaveDialog(getScene().getWindow());
+
+        if (file == null)
+            return;
+
+        Map<Byte, Account> accounts = Ledger.get().snapshot().accounts();
+        Thread exporter = new Thread(() -> {
+            try {
+                Exporter.export(file.toPath(), Exporter.Format.of(file.toPath()), accounts);
+            } catch (IOException e) {
+                e.printStackTrace();
+                Platform.runLater(() -> new MessageScreen(String.format("The history can't be exported to %s: %s", file.getName(), e.getMessage()), true).show());
+            }
+        }, "history-export");
+        exporter.setDaemon(true);
+        exporter.start();
+    }
+
     public void update(TransactionList txs, Map<Byte, Account> balances) {
+        if (!search.getText().isBlank()) {
+            showSearchResults(search.getText());
+            return;
+        }
 
         // Tiles generation
         List<TransactionTile> tiles = new ArrayList<>();
@@ -165,4 +388,51 @@ public class TransactionPane extends ContentPane {
 
         transactionPane.getChildren().setAll(tiles);
     }
+
+    /**
+     * Replaces the transaction list by the rows of the whole history
+     * matching {@code query}. Clicking on a row loads its month.
+     *
+     * @param query a search query
+     */
+    private void showSearchResults(String query) {
+        // The index is loaded in the background, it is never loaded here
+        if (!SearchIndex.get().isLoaded()) {
+            Text indexing = new Text("The history is being indexed");
+            indexing.getStyleClass().add("historyText");
+            transactionPane.getChildren().setAll(indexing);
+            return;
+        }
+
+        // Searched in the background, as the index may be catching up on writes
+        Thread searcher = new Thread(() -> {
+            List<SearchIndex.Hit> hits = SearchIndex.get().search(query, MAX_SEARCH_HITS);
+
+            Platform.runLater(() -> {
+                // The results of an outdated query are dropped
+                if (!search.getText().equals(query))
+                    return;
+
+                List<Tile> tiles = new ArrayList<>();
+                for (SearchIndex.Hit hit : hits) {
+                    Tile tile = new Tile(String.format("%s/%s - %s", hit.year(), hit.month(), hit.name()), hit.value());
+
+                    tile.setOnMouseClicked(m -> {
+                        search.clear();
+
+                        // The month is cleared first so that the change is noticed even if only the year differs
+                        month.set(null);
+                        year.set(Integer.toString(hit.year()));
+                        month.set(Integer.toString(hit.month()));
+                    });
+
+                    tiles.add(tile);
+                }
+
+                transactionPane.getChildren().setAll(tiles);
+            });
+        }, "search");
+        searcher.setDaemon(true);
+        searcher.start();
+    }
 }
@@ -17,17 +17,28 @@
 
 package com.chomusuke.gui.popup;
 
+import java.time.YearMonth;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Random;
 
+import javafx.application.Platform;
+import javafx.scene.control.ScrollPane;
 import javafx.scene.control.TextField;
 import javafx.scene.control.TextFormatter;
 import javafx.scene.layout.HBox;
+import javafx.scene.layout.VBox;
+import javafx.scene.text.Text;
 
+import com.chomusuke.gui.element.Sparkline;
 import com.chomusuke.logic.Account;
+import com.chomusuke.logic.AccountIndex;
+import com.chomusuke.logic.Forecast;
+import com.chomusuke.logic.Ledger;
 import com.chomusuke.logic.Storage;
 import com.chomusuke.logic.Transaction;
 import com.chomusuke.logic.TransactionList;
+import com.chomusuke.util.Time;
 
 import static com.chomusuke.Accountable.PADDING;
 
@@ -36,6 +47,11 @@ import static com.chomusuke.Accountable.PADDING;
  */
 public class AddAccountScreen extends PopUp {
 
+    private static final int HISTORY_HEIGHT = 200;
+    private static final int FORECAST_MONTHS = 36;
+    private static final int FORECAST_WIDTH = 240;
+    private static final int FORECAST_HEIGHT = 60;
+
     private final byte id;
 
     /**
@@ -77,13 +93,31 @@ public class AddAccountScreen extends PopUp {
         TextField objectiveInput = new TextField();
 
         content.getChildren().addAll(nameInput, objectiveInput);
-        setContent(content);
+
+        VBox root = new VBox(content);
+        VBox history = new VBox();
+        ScrollPane historyScroll = new ScrollPane(history);
+        Sparkline forecast = new Sparkline(FORECAST_WIDTH, FORECAST_HEIGHT, new double[0]);
+        Text forecastText = new Text();
+        if (account != null)
+            root.getChildren().addAll(historyScroll, forecast, forecastText);
+
+        setContent(root);
 
 
 
         // ----- STYLE -----
         {
             content.setSpacing(PADDING);
+            root.setSpacing(PADDING);
+
+            history.getStyleClass().add("background");
+            historyScroll.getStyleClass().add("scrollPane");
+            historyScroll.setPrefHeight(HISTORY_HEIGHT);
+            historyScroll.setFitToWidth(true);
+            historyScroll.setHbarPolicy(ScrollPane.ScrollBarPolicy.NEVER);
+
+            forecastText.getStyleClass().add("historyText");
         }
 
 
@@ -117,7 +151,15 @@ public class AddAccountScreen extends PopUp {
 
             setDeleteAction(d -> {
                 if (account != null) {
-                    double balance = account.getBalance();
+                    // The balance replayed from the history is authoritative, if the index holds every stored month
+                    AccountIndex index = AccountIndex.get();
+                    double balance = account.getBalance() == -1 ? 0 : account.getBalance();
+                    if (index.isFresh()) {
+                        balance = index.getBalance(id);
+                        if (!index.reconciles(id, account))
+                            System.out.printf("The stored balance of %s (%s) doesn't match its history (%s)%n", account.getName(), account.getBalance(), balance);
+                    }
+
                     if (balance >= 0) {
                         Transaction delTx = new Transaction(
                                 account.getName() + " withdrawal",
@@ -143,7 +185,59 @@ public class AddAccountScreen extends PopUp {
                 nameInput.setText(account.getName());
                 if (account.getObjective() >= 0)
                     objectiveInput.setText(Double.toString(account.getObjective()));
+
+                // Most recent first, the index is not loaded here
+                if (AccountIndex.get().isLoaded()) {
+                    for (AccountIndex.Posting p : AccountIndex.get().getPostings(id)) {
+                        Text line = new Text(String.format(Locale.ROOT, "%s/%s  %s  %+.2f", p.year(), p.month(), p.name(), p.delta()));
+                        line.getStyleClass().add("historyText");
+                        history.getChildren().add(0, line);
+                    }
+                } else {
+                    Text line = new Text("The history is being indexed");
+                    line.getStyleClass().add("historyText");
+                    history.getChildren().add(line);
+                }
+
+                showForecast(forecast, forecastText);
             }
         }
     }
+
+    /**
+     * Projects the balance of the account in the background,
+     * then draws its confidence band and estimates when its objective is reached.
+     *
+     * @param forecast the node drawing the band
+     * @param text the node showing the estimate
+     */
+    private void showForecast(Sparkline forecast, Text text) {
+        Map<Byte, Account> balances = Ledger.get().snapshot().accounts();
+
+        Thread projector = new Thread(() -> {
+            Forecast f = Forecast.ofHistory(YearMonth.of(Time.getCurrentYear(), Time.getCurrentMonth()));
+            if (f == null)
+                return;
+
+            Forecast.Projection p = f.run(balances, FORECAST_MONTHS, Forecast.DEFAULT_SCENARIOS, System.nanoTime()).get(id);
+            if (p == null)
+                return;
+
+            String estimate;
+            if (p.eta() >= 0)
+                estimate = String.format(Locale.ROOT, "Objective in %s months (%s to %s)", p.eta(), p.etaLow(), p.etaHigh() < 0 ? "later" : p.etaHigh());
+            else if (p.probability() > 0)
+                estimate = String.format(Locale.ROOT, "Objective within %s months: %.0f%%", FORECAST_MONTHS, p.probability() * 100);
+            else
+                estimate = String.format(Locale.ROOT, "In %s months: %.2f (%.2f to %.2f)", FORECAST_MONTHS,
+                        p.median()[FORECAST_MONTHS - 1], p.low()[FORECAST_MONTHS - 1], p.high()[FORECAST_MONTHS - 1]);
+
+            Platform.runLater(() -> {
+                forecast.drawBand(p.low(), p.median(), p.high());
+                text.setText(estimate);
+            });
+        }, "forecast");
+        projector.setDaemon(true);
+        projector.start();
+    }
 }
@@ -0,0 +1,179 @@
+/*  Accountable: a personal spending monitoring program
+    Copyright (C) 2023  Artur Yukhanov
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package com.chomusuke.gui.popup;
+
+import java.util.Locale;
+
+import javafx.application.Platform;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.control.ChoiceBox;
+import javafx.scene.control.TextField;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.VBox;
+import javafx.scene.paint.Color;
+import javafx.scene.text.Text;
+
+import com.chomusuke.logic.DistributionIndex;
+import com.chomusuke.logic.QuantileSketch;
+
+import static com.chomusuke.Accountable.PADDING;
+import static com.chomusuke.logic.Transaction.TransactionType;
+
+/**
+ * This class provides a JavaFX stage showing the distribution of the
+ * transaction amounts, either of a type over some years, or of the
+ * transactions with a given name.
+ */
+public class DistributionScreen extends PopUp {
+
+    private static final double[] QUANTILES = {0.1, 0.25, 0.5, 0.75, 0.9, 0.99};
+    private static final int BIN_COUNT = 24;
+    private static final int HISTOGRAM_WIDTH = 320;
+    private static final int HISTOGRAM_HEIGHT = 120;
+    private static final Color BAR_COLOR = Color.web("#33CCFF");  // Blue
+
+    /**
+     * Constructor.
+     */
+    public DistributionScreen() {
+        super();
+
+        ChoiceBox<TransactionType> type = new ChoiceBox<>();
+        TextField years = new TextField();
+        TextField name = new TextField();
+        HBox inputs = new HBox(type, years, name);
+
+        Canvas histogram = new Canvas(HISTOGRAM_WIDTH, HISTOGRAM_HEIGHT);
+        Text quantiles = new Text();
+
+        VBox root = new VBox(inputs, histogram, quantiles);
+        setContent(root);
+
+
+
+        // ----- STYLE -----
+        {
+            root.setSpacing(PADDING);
+            inputs.setSpacing(PADDING);
+
+            type.getItems().setAll(TransactionType.values());
+            type.setValue(TransactionType.BUDGET);
+            years.setPromptText("2021-2023");
+            name.setPromptText("Name");
+
+            quantiles.getStyleClass().add("historyText");
+        }
+
+
+
+        // ----- EVENTS -----
+        {
+            setSubmitAction(s -> {
+                TransactionType t = type.getValue();
+                String range = years.getText().trim();
+                String words = name.getText().trim();
+
+                Thread loader = new Thread(() -> {
+                    QuantileSketch sketch;
+                    try {
+                        sketch = words.isEmpty() ?
+                                DistributionIndex.get().byType(t, fromYear(range), toYear(range)) :
+                                DistributionIndex.get().byName(words);
+                    } catch (NumberFormatException e) {
+                        Platform.runLater(() -> quantiles.setText("Invalid year range: " + range));
+                        return;
+                    }
+
+                    Platform.runLater(() -> {
+                        quantiles.setText(describe(sketch));
+                        draw(histogram, sketch);
+                    });
+                }, "distribution");
+                loader.setDaemon(true);
+                loader.start();
+            });
+        }
+    }
+
+    private static int fromYear(String range) {
+        if (range.isEmpty())
+            return Integer.MIN_VALUE;
+
+        return Integer.parseInt(range.split("-")[0].trim());
+    }
+
+    private static int toYear(String range) {
+        if (range.isEmpty())
+            return Integer.MAX_VALUE;
+
+        String[] bounds = range.split("-");
+
+        return Integer.parseInt(bounds[bounds.length - 1].trim());
+    }
+
+    private static String describe(QuantileSketch sketch) {
+        if (sketch.getCount() == 0)
+            return "No transactions";
+
+        StringBuilder b = new StringBuilder(String.format(Locale.ROOT, "%s transactions, %.2f to %.2f%n",
+                sketch.getCount(), sketch.getMin(), sketch.getMax()));
+        for (double q : QUANTILES)
+            b.append(String.format(Locale.ROOT, "p%s  %.2f%n", Math.round(q * 100), sketch.quantile(q)));
+
+        return b.toString();
+    }
+
+    /**
+     * Draws the histogram of the sketch, from its estimated ranks.
+     *
+     * @param canvas a canvas
+     * @param sketch a sketch
+     */
+    private static void draw(Canvas canvas, QuantileSketch sketch) {
+        GraphicsContext g = canvas.getGraphicsContext2D();
+        g.clearRect(0, 0, canvas.getWidth(), canvas.getHeight());
+
+        if (sketch.getCount() == 0)
+            return;
+
+        // The top percent is left out, so that a few large amounts don't flatten the rest
+        float min = sketch.getMin();
+        float max = sketch.quantile(0.99);
+        double width = (max - min) / BIN_COUNT;
+        if (width <= 0)
+            width = 1;
+
+        double[] bins = new double[BIN_COUNT];
+        double previous = sketch.rank(Math.nextDown(min));
+        double highest = 0;
+        for (int i = 0 ; i < BIN_COUNT ; i++) {
+            double rank = sketch.rank((float) (min + width * (i + 1)));
+            bins[i] = rank - previous;
+            previous = rank;
+            highest = Math.max(highest, bins[i]);
+        }
+
+        double barWidth = canvas.getWidth() / BIN_COUNT;
+        g.setFill(BAR_COLOR);
+        for (int i = 0 ; i < BIN_COUNT ; i++) {
+            double h = highest == 0 ? 0 : bins[i] / highest * canvas.getHeight();
+            g.fillRect(i * barWidth + 1, canvas.getHeight() - h, barWidth - 2, h);
+        }
+    }
+}
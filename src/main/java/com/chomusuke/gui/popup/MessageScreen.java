@@ -0,0 +1,58 @@
+/*  Accountable: a personal spending monitoring program
+    Copyright (C) 2023  Artur Yukhanov
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package com.chomusuke.gui.popup;
+
+import javafx.scene.paint.Color;
+import javafx.scene.text.Text;
+
+/**
+ * This class provides a JavaFX stage showing a message to the user.
+ */
+public class MessageScreen extends PopUp {
+
+    /**
+     * Constructor.
+     *
+     * @param message the message
+     * @param error whether the message reports a failure
+     */
+    public MessageScreen(String message, boolean error) {
+        super();
+
+        Text text = new Text(message);
+        setContent(text);
+
+
+
+        // ----- STYLE -----
+        {
+            setTitle("Accountable.");
+            text.getStyleClass().add("historyText");
+
+            if (error)
+                text.setFill(Color.RED);
+        }
+
+
+
+        // ----- EVENTS -----
+        {
+            setSubmitAction(s -> close());
+        }
+    }
+}
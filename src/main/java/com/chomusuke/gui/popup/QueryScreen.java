@@ -0,0 +1,97 @@
+/*  Accountable: a personal spending monitoring program
+    Copyright (C) 2023  Artur Yukhanov
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package com.chomusuke.gui.popup;
+
+import javafx.application.Platform;
+import javafx.event.ActionEvent;
+import javafx.event.EventHandler;
+import javafx.scene.control.ScrollPane;
+import javafx.scene.control.TextField;
+import javafx.scene.layout.VBox;
+import javafx.scene.text.Font;
+import javafx.scene.text.Text;
+
+import com.chomusuke.logic.Ledger;
+import com.chomusuke.logic.query.Query;
+
+import static com.chomusuke.Accountable.PADDING;
+
+/**
+ * This class provides a JavaFX stage used to run queries over the whole history.
+ */
+public class QueryScreen extends PopUp {
+
+    private static final int RESULT_WIDTH = 480;
+    private static final int RESULT_HEIGHT = 300;
+
+    /**
+     * Constructor.
+     */
+    public QueryScreen() {
+        super();
+
+        TextField queryInput = new TextField();
+        Text result = new Text();
+        ScrollPane resultScroll = new ScrollPane(result);
+
+        VBox root = new VBox(queryInput, resultScroll);
+        setContent(root);
+
+
+
+        // ----- STYLE -----
+        {
+            root.setSpacing(PADDING);
+
+            queryInput.setPromptText("filter type = BILL | group year | aggregate sum(amount)");
+
+            result.getStyleClass().add("historyText");
+            result.setFont(Font.font("Monospaced", 12));
+            resultScroll.getStyleClass().add("scrollPane");
+            resultScroll.setPrefSize(RESULT_WIDTH, RESULT_HEIGHT);
+        }
+
+
+
+        // ----- EVENTS -----
+        {
+            // The query runs in the background, on a snapshot of the accounts
+            EventHandler<ActionEvent> runQuery = s -> {
+                String text = queryInput.getText();
+                Ledger.Snapshot snapshot = Ledger.get().snapshot();
+
+                Thread runner = new Thread(() -> {
+                    String output;
+                    try {
+                        output = Query.compile(text, snapshot.accounts()).run().format();
+                    } catch (IllegalArgumentException e) {
+                        output = e.getMessage();
+                    }
+
+                    String finalOutput = output;
+                    Platform.runLater(() -> result.setText(finalOutput));
+                }, "query");
+                runner.setDaemon(true);
+                runner.start();
+            };
+
+            setSubmitAction(runQuery);
+            queryInput.setOnAction(runQuery);
+        }
+    }
+}
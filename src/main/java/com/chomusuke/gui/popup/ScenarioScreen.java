@@ -0,0 +1,206 @@
+/*  Accountable: a personal spending monitoring program
+    Copyright (C) 2023  Artur Yukhanov
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package com.chomusuke.gui.popup;
+
+import java.time.DateTimeException;
+import java.time.YearMonth;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javafx.application.Platform;
+import javafx.scene.control.Button;
+import javafx.scene.control.TextField;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.VBox;
+import javafx.scene.text.Font;
+import javafx.scene.text.Text;
+
+import com.chomusuke.logic.Account;
+import com.chomusuke.logic.Branch;
+import com.chomusuke.logic.Storage;
+import com.chomusuke.logic.Transaction;
+
+import static com.chomusuke.Accountable.PADDING;
+import static com.chomusuke.logic.Transaction.TransactionType;
+import static com.chomusuke.logic.Transaction.ValueType;
+
+/**
+ * This class provides a JavaFX stage used to try out changes on a
+ * branch of the ledger, compare it with the real one, and merge it.
+ */
+public class ScenarioScreen extends PopUp {
+
+    private static final String SAVINGS_ACCOUNT = "What-if savings";
+
+    private Branch scenario = null;
+
+    /**
+     * Constructor.
+     *
+     * @param balances an accounts map
+     * @param onMerge the action reloading the loaded month after a merge
+     */
+    public ScenarioScreen(Map<Byte, Account> balances, Runnable onMerge) {
+        super();
+
+        TextField years = new TextField();
+        TextField name = new TextField();
+        TextField change = new TextField();
+        TextField savings = new TextField();
+        HBox inputs = new HBox(years, name, change, savings);
+
+        Text comparison = new Text();
+        Button merge = new Button("Merge");
+
+        VBox root = new VBox(inputs, comparison, merge);
+        setContent(root);
+
+
+
+        // ----- STYLE -----
+        {
+            root.setSpacing(PADDING);
+            inputs.setSpacing(PADDING);
+
+            years.setPromptText("2021-2023");
+            name.setPromptText("Name");
+            change.setPromptText("Change %");
+            savings.setPromptText("% of remainder saved");
+
+            comparison.getStyleClass().add("historyText");
+            comparison.setFont(Font.font("Monospaced", 12));
+
+            merge.setDisable(true);
+        }
+
+
+
+        // ----- EVENTS -----
+        {
+            setSubmitAction(s -> {
+                String range = years.getText().trim();
+                String words = name.getText().trim().toLowerCase(Locale.ROOT);
+                String changeText = change.getText().trim();
+                String savingsText = savings.getText().trim();
+
+                Thread brancher = new Thread(() -> {
+                    Branch real = new Branch("real");
+                    Branch whatIf = real.fork("what-if");
+                    YearMonth[] bounds;
+
+                    try {
+                        bounds = bounds(range);
+                        if (!words.isEmpty() && !changeText.isEmpty()) {
+                            float factor = 1 + Float.parseFloat(changeText) / 100;
+                            whatIf.scale(bounds[0], bounds[1], t -> t.name().toLowerCase(Locale.ROOT).contains(words), factor);
+                        }
+                        if (!savingsText.isEmpty()) {
+                            float share = Float.parseFloat(savingsText);
+                            byte id = whatIf.addAccount(SAVINGS_ACCOUNT, 0);
+                            whatIf.addEveryMonth(bounds[0], bounds[1],
+                                    new Transaction(SAVINGS_ACCOUNT, id, TransactionType.SAVINGS, ValueType.REMAINDER, share));
+                        }
+                    } catch (NumberFormatException | DateTimeException | IllegalStateException e) {
+                        String message = e instanceof NumberFormatException ? "Invalid number: " + e.getMessage() : e.getMessage();
+
+                        Platform.runLater(() -> {
+                            comparison.setText(message);
+                            merge.setDisable(true);
+                        });
+                        return;
+                    }
+
+                    String table = compare(real, whatIf, bounds[0], bounds[1]);
+
+                    Platform.runLater(() -> {
+                        scenario = whatIf;
+                        comparison.setText(table);
+                        merge.setDisable(whatIf.getModifiedMonths().isEmpty());
+                    });
+                }, "scenario");
+                brancher.setDaemon(true);
+                brancher.start();
+            });
+
+            merge.setOnAction(e -> {
+                try {
+                    scenario.merge(balances);
+                } catch (IllegalStateException x) {
+                    comparison.setText(x.getMessage());
+                    merge.setDisable(true);
+                    return;
+                }
+
+                Storage.writeAccounts(balances);
+                onMerge.run();
+                close();
+            });
+        }
+    }
+
+    /**
+     * Returns the first and last months of a range of years, the whole history if empty.
+     *
+     * @param range a range, e.g. "2021-2023"
+     *
+     * @return the first and the last month
+     */
+    private static YearMonth[] bounds(String range) {
+        if (range.isEmpty()) {
+            List<YearMonth> dates = Storage.getAvailableDates();
+            if (dates.isEmpty())
+                throw new IllegalStateException("No stored month");
+
+            return new YearMonth[]{dates.get(0), dates.get(dates.size() - 1)};
+        }
+
+        String[] years = range.split("-");
+
+        return new YearMonth[]{
+                YearMonth.of(Integer.parseInt(years[0].trim()), 1),
+                YearMonth.of(Integer.parseInt(years[years.length - 1].trim()), 12)
+        };
+    }
+
+    /**
+     * Formats the totals and balances of two branches side by side.
+     */
+    private static String compare(Branch a, Branch b, YearMonth from, YearMonth to) {
+        Branch.Totals ta = a.summarize(from, to);
+        Branch.Totals tb = b.summarize(from, to);
+
+        StringBuilder s = new StringBuilder(String.format(Locale.ROOT, "%-16s %12s %12s%n", from + " " + to, a.getName(), b.getName()));
+        for (TransactionType type : TransactionType.values())
+            s.append(String.format(Locale.ROOT, "%-16s %12.2f %12.2f%n", type, ta.get(type), tb.get(type)));
+        s.append(String.format(Locale.ROOT, "%-16s %12.2f %12.2f%n%n", "Remainder", ta.remainder(), tb.remainder()));
+
+        for (Map.Entry<Byte, Account> e : b.getAccounts().entrySet()) {
+            Account other = a.getAccounts().get(e.getKey());
+            s.append(String.format(Locale.ROOT, "%-16s %12.2f %12.2f%n", e.getValue().getName(),
+                    other == null ? 0 : balance(other), balance(e.getValue())));
+        }
+
+        return s.toString();
+    }
+
+    private static double balance(Account a) {
+
+        return a.getBalance() == -1 ? 0 : a.getBalance();
+    }
+}
@@ -0,0 +1,78 @@
+/*  Accountable: a personal spending monitoring program
+    Copyright (C) 2023  Artur Yukhanov
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package com.chomusuke.gui.popup;
+
+import java.io.IOException;
+
+import javafx.scene.control.PasswordField;
+import javafx.scene.layout.VBox;
+import javafx.scene.paint.Color;
+import javafx.scene.text.Text;
+
+import com.chomusuke.logic.Encryption;
+
+import static com.chomusuke.Accountable.PADDING;
+
+/**
+ * This class provides a JavaFX stage asking for the passphrase of an encrypted storage.
+ */
+public class UnlockScreen extends PopUp {
+
+    /**
+     * Constructor.
+     */
+    public UnlockScreen() {
+        super();
+
+        PasswordField passphrase = new PasswordField();
+        Text message = new Text("The storage is encrypted");
+
+        VBox root = new VBox(message, passphrase);
+        setContent(root);
+
+
+
+        // ----- STYLE -----
+        {
+            setTitle("Accountable.");
+            root.setSpacing(PADDING);
+
+            passphrase.setPromptText("Passphrase");
+            message.getStyleClass().add("historyText");
+        }
+
+
+
+        // ----- EVENTS -----
+        {
+            setSubmitAction(s -> {
+                try {
+                    Encryption.get().unlock(passphrase.getText().toCharArray());
+                    close();
+                } catch (IllegalArgumentException e) {
+                    message.setText(e.getMessage());
+                    message.setFill(Color.RED);
+                    passphrase.clear();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    close();
+                }
+            });
+        }
+    }
+}
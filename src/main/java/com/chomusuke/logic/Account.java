@@ -148,10 +148,24 @@ public class Account {
          * @return the corresponding ModMap
          */
         public static ModMap of(List<Transaction> txs) {
+
+            return of(txs, 0);
+        }
+
+        /**
+         * Returns a mapping with the modifications to all accounts mentioned by the transactions'
+         * "to" fields, for a month starting with carried over funds.
+         *
+         * @param txs a transaction list
+         * @param carry the carried over remainder
+         *
+         * @return the corresponding ModMap
+         */
+        public static ModMap of(List<Transaction> txs, float carry) {
             ModMap m = new ModMap();
 
             if (txs != null) {
-                float[] values = TransactionList.getValues(txs);
+                float[] values = TransactionList.getValues(txs, carry);
 
                 for (int i = 0; i < txs.size(); i++) {
                     if (txs.get(i).transactionType().equals(Transaction.TransactionType.SAVINGS)) {
@@ -178,6 +192,18 @@ public class Account {
             return this;
         }
 
+        /**
+         * Adds the changes of another ModMap to this one.
+         *
+         * @param other a ModMap
+         *
+         * @return this ModMap
+         */
+        public ModMap add(ModMap other) {
+            other.modMap.forEach((b, v) -> modMap.merge(b, v, Float::sum));
+            return this;
+        }
+
         /**
          * Applies the ModMap to the given account mapping.
          *
@@ -187,6 +213,9 @@ public class Account {
             Account a;
             for (byte b : modMap.keySet()) {
                 a = balances.get(b);
+                // The account may have been deleted since
+                if (a == null)
+                    continue;
                 if (a.getBalance() == -1)
                     a.update(1);
                 a.update(modMap.get(b));
@@ -196,10 +225,11 @@ public class Account {
         }
 
         public double sum() {
-            double sum = modMap.values().stream()
-                    .mapToDouble(Number::doubleValue)
-                    .filter(d -> d != -1)
-                    .sum();
+            double sum = 0;
+            for (float v : modMap.values()) {
+                if (v != -1)
+                    sum += v;
+            }
             return Math.round(sum*100)/100d;
         }
 
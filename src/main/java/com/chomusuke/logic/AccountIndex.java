@@ -0,0 +1,317 @@
+/*  Accountable: a personal spending monitoring program
+    Copyright (C) 2023  Artur Yukhanov
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package com.chomusuke.logic;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.time.YearMonth;
+import java.util.*;
+
+import static com.chomusuke.logic.Transaction.TransactionType;
+
+/**
+ * Provides the history of each account.
+ * <br>
+ * For each account id, the postings of the savings transactions that
+ * moved it are kept in chronological order, with the computed change
+ * of the balance. The balance of an account can thus be replayed in
+ * O(postings) instead of decoding the whole history.
+ * <br>
+ * The month-end balances of each account are materialized on demand.
+ * After an edit, only the months following the edited one are recomputed.
+ */
+public class AccountIndex extends PersistentIndex {
+
+    private static final AccountIndex INSTANCE = new AccountIndex();
+
+    // Account id -> posting -> entry
+    private final Map<Byte, TreeMap<Integer, Posting>> accounts = new HashMap<>();
+    // Month key -> ids of the accounts moved by the month
+    private final Map<Integer, Set<Byte>> months = new HashMap<>();
+
+    // Account id -> month key -> balance at the end of the month
+    private final Map<Byte, TreeMap<Integer, Double>> monthEnds = new HashMap<>();
+    // Account id -> first month key whose month-end balance is outdated
+    private final Map<Byte, Integer> dirtyFrom = new HashMap<>();
+
+    /**
+     * Don't let anyone instantiate this class.
+     */
+    private AccountIndex() {
+
+        super("accounts.idx", 0x41494458);  // "AIDX"
+    }
+
+    /**
+     * Returns the account index of the storage.
+     *
+     * @return the account index
+     */
+    public static AccountIndex get() {
+
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the ids of all the accounts moved by at least one transaction,
+     * ordered by their first transaction.
+     *
+     * @return a list of account ids
+     */
+    public synchronized List<Byte> getAccountIds() {
+        ensureLoaded();
+
+        List<Byte> ids = new ArrayList<>(accounts.keySet());
+        ids.sort(Comparator.comparing(id -> accounts.get(id).firstKey()));
+
+        return ids;
+    }
+
+    /**
+     * Returns the postings of an account.
+     *
+     * @param id an account id
+     *
+     * @return the postings, in chronological order
+     */
+    public synchronized List<Posting> getPostings(byte id) {
+        ensureLoaded();
+
+        TreeMap<Integer, Posting> p = accounts.get(id);
+
+        return p == null ? List.of() : new ArrayList<>(p.values());
+    }
+
+    /**
+     * Replays the balance of an account from its postings.
+     *
+     * @param id an account id
+     *
+     * @return the balance, rounded to the cent
+     */
+    public synchronized double getBalance(byte id) {
+        ensureLoaded();
+
+        double balance = 0;
+        TreeMap<Integer, Posting> p = accounts.get(id);
+        if (p != null) {
+            for (Posting posting : p.values())
+                balance += posting.delta();
+        }
+
+        return Math.round(balance * 100) / 100d;
+    }
+
+    /**
+     * Returns the month-end balances of an account over consecutive months.
+     *
+     * @param id an account id
+     * @param from the first month
+     * @param count the number of months
+     *
+     * @return the balance at the end of each month
+     */
+    public synchronized double[] getMonthEndBalances(byte id, YearMonth from, int count) {
+        ensureLoaded();
+
+        TreeMap<Integer, Double> ends = materialize(id);
+        double[] balances = new double[count];
+
+        YearMonth ym = from;
+        for (int i = 0 ; i < count ; i++) {
+            Map.Entry<Integer, Double> e = ends.floorEntry(monthKey(ym.getYear(), ym.getMonthValue()));
+            balances[i] = e == null ? 0 : e.getValue();
+            ym = ym.plusMonths(1);
+        }
+
+        return balances;
+    }
+
+    /**
+     * Brings the month-end balances of an account up to date,
+     * starting from its first outdated month.
+     *
+     * @param id an account id
+     *
+     * @return the month-end balances of the account
+     */
+    private TreeMap<Integer, Double> materialize(byte id) {
+        TreeMap<Integer, Double> ends = monthEnds.get(id);
+        Integer from = dirtyFrom.remove(id);
+
+        if (ends == null) {
+            ends = new TreeMap<>();
+            monthEnds.put(id, ends);
+            from = 0;
+        } else if (from == null) {
+            return ends;
+        }
+
+        ends.tailMap(from, true).clear();
+        Map.Entry<Integer, Double> last = ends.lastEntry();
+        double balance = last == null ? 0 : last.getValue();
+
+        TreeMap<Integer, Posting> p = accounts.get(id);
+        if (p != null) {
+            for (Map.Entry<Integer, Posting> e : p.tailMap(posting(from, 0), true).entrySet()) {
+                balance += e.getValue().delta();
+                ends.put(e.getKey() >>> ROW_BITS, Math.round(balance * 100) / 100d);
+            }
+        }
+
+        return ends;
+    }
+
+    /**
+     * Tests whether the stored balance of an account matches its history.
+     * <br>
+     * An empty account is stored with a balance of -1.
+     *
+     * @param id an account id
+     * @param account the stored account
+     *
+     * @return {@code true} if the balances match
+     */
+    public boolean reconciles(byte id, Account account) {
+        double replayed = getBalance(id);
+        double stored = account.getBalance() == -1 ? 0 : account.getBalance();
+
+        return Math.abs(replayed - stored) < 0.005;
+    }
+
+    /**
+     * Brings the stored balances in line with their history.
+     * <br>
+     * Needed when an edit also changed the values of other months,
+     * as with the carry-over mode. Empty accounts are left as they are.
+     * <br>
+     * Nothing is changed while the index misses stored months: the
+     * balances are resynced again once it is loaded.
+     *
+     * @param balances an account map
+     *
+     * @return {@code true} if the balances were compared with their history
+     */
+    public boolean resync(Map<Byte, Account> balances) {
+        Storage.awaitWrites();
+        if (!isFresh()) {
+            System.out.println("The account index is not up to date, the balances are not resynced");
+            return false;
+        }
+
+        for (Map.Entry<Byte, Account> e : balances.entrySet()) {
+            Account a = e.getValue();
+            if (a.getBalance() == -1 || reconciles(e.getKey(), a))
+                continue;
+
+            a.update(getBalance(e.getKey()) - a.getBalance());
+        }
+
+        return true;
+    }
+
+    @Override
+    protected void clear() {
+        accounts.clear();
+        months.clear();
+        monthEnds.clear();
+        dirtyFrom.clear();
+    }
+
+    @Override
+    protected void index(int year, int month, List<Transaction> txs) {
+        int key = monthKey(year, month);
+
+        Set<Byte> old = months.remove(key);
+        if (old != null) {
+            for (byte id : old) {
+                dirtyFrom.merge(id, key, Math::min);
+
+                TreeMap<Integer, Posting> p = accounts.get(id);
+                p.subMap(posting(key, 0), posting(key + 1, 0)).clear();
+                if (p.isEmpty())
+                    accounts.remove(id);
+            }
+        }
+
+        float[] values = CarryOver.get().getValues(year, month, txs);
+        Set<Byte> touched = new HashSet<>();
+        for (int row = 0 ; row < txs.size() ; row++) {
+            Transaction t = txs.get(row);
+            if (!t.transactionType().equals(TransactionType.SAVINGS) || t.to() == 0)
+                continue;
+
+            // Same sign as Account.ModMap
+            add(new Posting(year, month, row, t.name(), -values[row]), t.to());
+            touched.add(t.to());
+            dirtyFrom.merge(t.to(), key, Math::min);
+        }
+
+        if (!touched.isEmpty())
+            months.put(key, touched);
+    }
+
+    private void add(Posting posting, byte id) {
+        accounts.computeIfAbsent(id, k -> new TreeMap<>())
+                .put(posting(monthKey(posting.year(), posting.month()), posting.row()), posting);
+    }
+
+    @Override
+    protected void write(DataOutputStream output) throws IOException {
+        output.writeInt(accounts.size());
+        for (Map.Entry<Byte, TreeMap<Integer, Posting>> e : accounts.entrySet()) {
+            output.writeByte(e.getKey());
+            output.writeInt(e.getValue().size());
+            for (Posting p : e.getValue().values()) {
+                output.writeInt(p.year());
+                output.writeByte(p.month());
+                output.writeShort(p.row());
+                output.writeUTF(p.name());
+                output.writeFloat(p.delta());
+            }
+        }
+    }
+
+    @Override
+    protected void read(DataInputStream input) throws IOException {
+        for (int i = input.readInt() ; i > 0 ; i--) {
+            byte id = input.readByte();
+            for (int j = input.readInt() ; j > 0 ; j--) {
+                Posting p = new Posting(input.readInt(), input.readByte(), input.readShort(), input.readUTF(), input.readFloat());
+
+                add(p, id);
+                months.computeIfAbsent(monthKey(p.year(), p.month()), k -> new HashSet<>()).add(id);
+            }
+        }
+    }
+
+
+    /**
+     * This record provides a change of an account balance.
+     *
+     * @param year the year of the transaction
+     * @param month the month of the transaction
+     * @param row the index of the transaction in its month
+     * @param name the name of the transaction
+     * @param delta the change of the balance
+     */
+    public record Posting(int year, int month, int row, String name, float delta) {
+    }
+}
@@ -0,0 +1,43 @@
+/*  Accountable: a personal spending monitoring program
+    Copyright (C) 2023  Artur Yukhanov
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package com.chomusuke.logic;
+
+import java.io.UncheckedIOException;
+import java.util.Map;
+
+/**
+ * Keeps the accounts.
+ */
+public interface AccountStore {
+
+    /**
+     * Reads the accounts.
+     *
+     * @return id -> account, {@code null} if the accounts were never written
+     */
+    Map<Byte, Account> readAccounts();
+
+    /**
+     * Replaces the accounts.
+     *
+     * @param accounts id -> account
+     *
+     * @throws UncheckedIOException if the accounts can't be stored
+     */
+    void writeAccounts(Map<Byte, Account> accounts);
+}
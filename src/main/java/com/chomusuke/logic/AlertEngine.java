@@ -0,0 +1,317 @@
+/*  Accountable: a personal spending monitoring program
+    Copyright (C) 2023  Artur Yukhanov
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package com.chomusuke.logic;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.function.Consumer;
+
+import javafx.collections.ListChangeListener;
+
+import static com.chomusuke.logic.Transaction.TransactionType;
+import static com.chomusuke.logic.Transaction.ValueType;
+
+/**
+ * This class provides an engine evaluating alert rules on the loaded month.
+ * <br>
+ * The totals of the month are maintained from the changed rows only:
+ * a change to an absolute expense moves its type total and the remainder,
+ * unless a relative row further down depends on it. Only the rules reading
+ * a changed total are evaluated again, and a rule raises an alert when it
+ * starts to hold.
+ */
+public class AlertEngine {
+
+    private static final String FILE_NAME = "alerts";
+    private static final List<String> DEFAULT_RULES = List.of(
+            "info: remainder at 0",
+            "critical: remainder below 0",
+            "warning: remainder below 10%",
+            "info: objective reached"
+    );
+
+    private static final Set<AlertRule.Input> MONTH_INPUTS =
+            EnumSet.of(AlertRule.Input.REVENUE, AlertRule.Input.SPENT, AlertRule.Input.REMAINDER);
+
+    private final List<AlertRule> rules;
+    private final List<Set<String>> active = new ArrayList<>();
+    private final List<Consumer<Alert>> listeners = new ArrayList<>();
+    private final State state = new State();
+
+    /**
+     * Constructor.
+     *
+     * @param rules the compiled rules, by priority
+     */
+    public AlertEngine(List<AlertRule> rules) {
+        this.rules = List.copyOf(rules);
+        for (int i = 0 ; i < rules.size() ; i++)
+            active.add(Set.of());
+    }
+
+    /**
+     * Creates an engine from the rules of the {@code alerts} file,
+     * one per line, or from the default rules if there is no such file.
+     * Malformed rules are reported and left out.
+     *
+     * @return an engine
+     */
+    public static AlertEngine load() {
+        Path p = Storage.getGlobalFile(FILE_NAME);
+        List<String> lines = DEFAULT_RULES;
+
+        if (Files.exists(p)) {
+            try {
+                lines = Files.readAllLines(p);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        List<AlertRule> rules = new ArrayList<>();
+        for (String line : lines) {
+            if (line.isBlank() || line.trim().startsWith("#"))
+                continue;
+
+            try {
+                rules.add(AlertRule.compile(line));
+            } catch (IllegalArgumentException e) {
+                System.out.printf("Alert rule ignored: %s%n", e.getMessage());
+            }
+        }
+
+        return new AlertEngine(rules);
+    }
+
+    /**
+     * Follows the changes made to a transaction list.
+     * <br>
+     * Must be called before other listeners read the alerts of the list.
+     *
+     * @param txList a transaction list
+     */
+    public void attach(TransactionList txList) {
+        recompute(txList);
+
+        txList.getTransactionList().addListener((ListChangeListener<Transaction>) c -> {
+            Set<AlertRule.Input> changed = EnumSet.noneOf(AlertRule.Input.class);
+
+            if (txList.setAllFlag()) {
+                recompute(txList);
+
+                // A newly loaded month reports its own alerts
+                for (int i = 0 ; i < rules.size() ; i++) {
+                    if (!rules.get(i).getInputs().contains(AlertRule.Input.BALANCES))
+                        active.set(i, Set.of());
+                }
+                changed.addAll(MONTH_INPUTS);
+            } else {
+                while (c.next()) {
+                    if (!isLocal(c)) {
+                        recompute(txList);
+                        changed.addAll(MONTH_INPUTS);
+                        break;
+                    }
+
+                    for (Transaction t : c.getRemoved())
+                        state.apply(t, -1, changed);
+                    for (Transaction t : c.getAddedSubList())
+                        state.apply(t, 1, changed);
+                }
+            }
+
+            evaluate(changed);
+        });
+    }
+
+    /**
+     * Evaluates the rules on the account balances, after they were modified.
+     *
+     * @param balances an account map
+     */
+    public void updateBalances(Map<Byte, Account> balances) {
+        state.balances = balances;
+
+        evaluate(EnumSet.of(AlertRule.Input.BALANCES));
+    }
+
+    /**
+     * Adds a listener notified of each raised alert.
+     *
+     * @param listener a listener
+     */
+    public void addListener(Consumer<Alert> listener) {
+
+        listeners.add(listener);
+    }
+
+    /**
+     * Returns the level of the first rule on the remainder that currently holds.
+     *
+     * @return a level, {@code null} if no such rule holds
+     */
+    public AlertRule.Level getRemainderLevel() {
+        for (int i = 0 ; i < rules.size() ; i++) {
+            AlertRule r = rules.get(i);
+            if (r.getInputs().contains(AlertRule.Input.REMAINDER) && !active.get(i).isEmpty())
+                return r.getLevel();
+        }
+
+        return null;
+    }
+
+    /**
+     * Checks whether a change can be applied to the totals row by row:
+     * all the changed rows are absolute, no relative row depends on a changed
+     * revenue, and no row taking a part of the remainder follows a changed expense.
+     *
+     * @param c a list change
+     *
+     * @return {@code true} if the change only moves the totals of its own rows
+     */
+    private boolean isLocal(ListChangeListener.Change<? extends Transaction> c) {
+        boolean revenue = false;
+        boolean expense = false;
+
+        List<Transaction> changedRows = new ArrayList<>(c.getRemoved());
+        changedRows.addAll(c.getAddedSubList());
+        for (Transaction t : changedRows) {
+            if (t.valueType() != ValueType.ABSOLUTE)
+                return false;
+
+            if (t.transactionType() == TransactionType.REVENUE)
+                revenue = true;
+            else
+                expense = true;
+        }
+
+        if (revenue && state.relativeCount > 0)
+            return false;
+
+        if (expense) {
+            List<? extends Transaction> list = c.getList();
+            for (int i = c.getTo() ; i < list.size() ; i++) {
+                ValueType v = list.get(i).valueType();
+                if (v == ValueType.REMAINDER || v == ValueType.ALL)
+                    return false;
+            }
+        }
+
+        return true;
+    }
+
+    private void recompute(TransactionList txList) {
+        List<Transaction> txs = txList.getTransactionList();
+        float[] values = txList.getValues();
+
+        state.revenue = 0;
+        Arrays.fill(state.spent, 0);
+        state.carry = txList.getCarry();
+        state.relativeCount = 0;
+
+        for (int i = 0 ; i < txs.size() ; i++) {
+            Transaction t = txs.get(i);
+            if (t.transactionType() == TransactionType.REVENUE)
+                state.revenue += values[i];
+            else
+                state.spent[t.transactionType().ordinal()] -= values[i];
+
+            if (t.valueType() != ValueType.ABSOLUTE)
+                state.relativeCount++;
+        }
+    }
+
+    private void evaluate(Set<AlertRule.Input> changed) {
+        for (int i = 0 ; i < rules.size() ; i++) {
+            AlertRule r = rules.get(i);
+            if (Collections.disjoint(r.getInputs(), changed))
+                continue;
+
+            Set<String> now = r.active(state);
+            for (String subject : now) {
+                if (!active.get(i).contains(subject))
+                    raise(new Alert(r, r.message(subject)));
+            }
+            active.set(i, now);
+        }
+    }
+
+    private void raise(Alert alert) {
+        System.out.printf("Alert (%s): %s%n", alert.rule().getLevel(), alert.message());
+
+        for (Consumer<Alert> l : listeners)
+            l.accept(alert);
+    }
+
+
+    /**
+     * The totals of the loaded month, read by the rules.
+     */
+    static final class State {
+
+        private double revenue = 0;
+        private final double[] spent = new double[TransactionType.values().length];
+        private double carry = 0;
+        private int relativeCount = 0;
+        private Map<Byte, Account> balances = Map.of();
+
+        private void apply(Transaction t, int sign, Set<AlertRule.Input> changed) {
+            if (t.transactionType() == TransactionType.REVENUE) {
+                revenue += sign * t.value();
+                changed.add(AlertRule.Input.REVENUE);
+            } else {
+                spent[t.transactionType().ordinal()] += sign * t.value();
+                changed.add(AlertRule.Input.SPENT);
+            }
+            changed.add(AlertRule.Input.REMAINDER);
+        }
+
+        double getRevenue() {
+
+            return revenue;
+        }
+
+        double getSpent(TransactionType type) {
+
+            return spent[type.ordinal()];
+        }
+
+        double getRemainder() {
+            double remainder = carry + revenue;
+            for (double s : spent)
+                remainder -= s;
+
+            return Math.round(remainder * 100) / 100.0;
+        }
+
+        Map<Byte, Account> getBalances() {
+
+            return balances;
+        }
+    }
+
+    /**
+     * An alert raised by a rule.
+     *
+     * @param rule the rule
+     * @param message the message of the alert
+     */
+    public record Alert(AlertRule rule, String message) {}
+}
@@ -0,0 +1,195 @@
+/*  Accountable: a personal spending monitoring program
+    Copyright (C) 2023  Artur Yukhanov
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package com.chomusuke.logic;
+
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.chomusuke.logic.Transaction.TransactionType;
+
+/**
+ * This class provides a compiled alert rule.
+ * <br>
+ * Rules are written one per line, optionally prefixed by their level:
+ * <pre>
+ * warning: BUDGET over 500
+ * critical: remainder below 0
+ * remainder below 10%
+ * info: remainder at 0
+ * objective reached
+ * </pre>
+ * A rule only reads some of the month totals, its inputs, so that
+ * it is only evaluated again when one of them changes.
+ */
+public final class AlertRule {
+
+    private static final Pattern LEVEL = Pattern.compile("(?i)^\\s*(info|warning|critical)\\s*:\\s*(.*)$");
+    private static final Pattern TYPE_OVER = Pattern.compile("(?i)^(revenue|budget|bill|savings)\\s+over\\s+(-?\\d+(?:\\.\\d+)?)$");
+    private static final Pattern REMAINDER = Pattern.compile("(?i)^remainder\\s+(below|at)\\s+(-?\\d+(?:\\.\\d+)?)(%?)$");
+    private static final Pattern OBJECTIVE = Pattern.compile("(?i)^objective\\s+reached$");
+
+    private static final Set<String> MONTH = Set.of("");
+
+    private final String text;
+    private final Level level;
+    private final Set<Input> inputs;
+    private final Condition condition;
+    private final String message;
+
+    private AlertRule(String text, Level level, Set<Input> inputs, Condition condition, String message) {
+        this.text = text;
+        this.level = level;
+        this.inputs = inputs;
+        this.condition = condition;
+        this.message = message;
+    }
+
+    /**
+     * Compiles a rule.
+     *
+     * @param line the text of the rule
+     *
+     * @return the compiled rule
+     *
+     * @throws IllegalArgumentException if the rule is malformed
+     */
+    public static AlertRule compile(String line) {
+        Level level = Level.WARNING;
+        String rule = line.trim();
+
+        Matcher m = LEVEL.matcher(rule);
+        if (m.matches()) {
+            level = Level.valueOf(m.group(1).toUpperCase(Locale.ROOT));
+            rule = m.group(2).trim();
+        }
+
+        if ((m = TYPE_OVER.matcher(rule)).matches()) {
+            TransactionType type = TransactionType.valueOf(m.group(1).toUpperCase(Locale.ROOT));
+            double limit = Double.parseDouble(m.group(2));
+
+            if (type == TransactionType.REVENUE)
+                return new AlertRule(line, level, EnumSet.of(Input.REVENUE),
+                        s -> s.getRevenue() > limit ? MONTH : Set.of(),
+                        String.format("Revenue over %s", m.group(2)));
+
+            return new AlertRule(line, level, EnumSet.of(Input.SPENT),
+                    s -> s.getSpent(type) > limit ? MONTH : Set.of(),
+                    String.format("%s over %s", type, m.group(2)));
+        }
+
+        if ((m = REMAINDER.matcher(rule)).matches()) {
+            boolean at = m.group(1).equalsIgnoreCase("at");
+            double n = Double.parseDouble(m.group(2));
+            boolean relative = !m.group(3).isEmpty();
+
+            Condition c = s -> {
+                double threshold = relative ? n / 100 * s.getRevenue() : n;
+                double remainder = s.getRemainder();
+                boolean active = at ? Math.abs(remainder - threshold) < 0.005 : remainder < threshold;
+
+                return active ? MONTH : Set.of();
+            };
+
+            return new AlertRule(line, level, EnumSet.of(Input.REMAINDER), c,
+                    String.format("Remainder %s %s%s", at ? "at" : "below", m.group(2), relative ? "% of revenue" : ""));
+        }
+
+        if (OBJECTIVE.matcher(rule).matches()) {
+            Condition c = s -> {
+                Set<String> reached = new HashSet<>();
+                for (Account a : s.getBalances().values()) {
+                    if (a.getObjective() > 0 && a.getBalance() >= a.getObjective())
+                        reached.add(a.getName());
+                }
+
+                return reached;
+            };
+
+            return new AlertRule(line, level, EnumSet.of(Input.BALANCES), c, "Objective of %s reached");
+        }
+
+        throw new IllegalArgumentException(String.format("Unknown alert rule: %s", line));
+    }
+
+    /**
+     * Returns the subjects for which the rule currently holds:
+     * the empty string for the rules on the month, account names otherwise.
+     *
+     * @param state the current totals
+     *
+     * @return the active subjects
+     */
+    Set<String> active(AlertEngine.State state) {
+
+        return condition.active(state);
+    }
+
+    /**
+     * Formats the notification of the rule.
+     *
+     * @param subject an active subject
+     *
+     * @return a message
+     */
+    String message(String subject) {
+
+        return subject.isEmpty() ? message : String.format(message, subject);
+    }
+
+    public Level getLevel() {
+
+        return level;
+    }
+
+    public Set<Input> getInputs() {
+
+        return inputs;
+    }
+
+    @Override
+    public String toString() {
+
+        return text;
+    }
+
+
+    /**
+     * This enum provides constants for the severity of an alert.
+     */
+    public enum Level {
+        INFO,
+        WARNING,
+        CRITICAL
+    }
+
+    /**
+     * This enum provides constants for the totals a rule can read.
+     */
+    public enum Input {
+        REVENUE,
+        SPENT,
+        REMAINDER,
+        BALANCES
+    }
+
+    private interface Condition {
+
+        Set<String> active(AlertEngine.State state);
+    }
+}
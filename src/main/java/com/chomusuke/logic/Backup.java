@@ -0,0 +1,301 @@
+/*  Accountable: a personal spending monitoring program
+    Copyright (C) 2023  Artur Yukhanov
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package com.chomusuke.logic;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Provides incremental backups of the balances and of the months.
+ * <br>
+ * The content of each file is cut into blocks of {@code CHUNK_SIZE} bytes,
+ * stored once under their SHA-256 hash, so that an appended month only adds
+ * its last block. Each backup writes a catalog listing, for each file, the
+ * version it saved and the hashes of its blocks.
+ * <br>
+ * Stored versions are never modified, so a file whose version, size and
+ * modification time match the previous catalog is neither read nor hashed:
+ * backing up an unchanged history only lists the year directories.
+ */
+public class Backup {
+
+    private static final int CHUNK_SIZE = 4096;
+    private static final int HASH_SIZE = 32;
+    private static final int MAGIC = 0x41424B50;  // "ABKP"
+
+    private static final String CATALOG_DIR = "catalog";
+    private static final String CHUNK_DIR = "chunks";
+
+    private final Path dir;
+
+    /**
+     * Constructor.
+     *
+     * @param dir the directory holding the backups
+     */
+    public Backup(Path dir) {
+
+        this.dir = dir;
+    }
+
+    /**
+     * Returns the backups kept next to the {@code balances} file.
+     *
+     * @return the local backups
+     */
+    public static Backup local() {
+
+        return new Backup(Storage.getGlobalFile("backups"));
+    }
+
+    /**
+     * Backs up the files as currently committed.
+     *
+     * @return the summary of the backup
+     *
+     * @throws IOException if the backup can't be written
+     */
+    public Summary create() throws IOException {
+        long start = System.nanoTime();
+        Generations generations = Storage.generations();
+        long generation = generations.visible();
+
+        List<Long> ids = list();
+        Map<String, Entry> previous = ids.isEmpty() ? Map.of() : readCatalog(ids.get(ids.size() - 1));
+        long id = Math.max(System.currentTimeMillis(), ids.isEmpty() ? 0 : ids.get(ids.size() - 1) + 1);
+
+        List<Entry> entries = new ArrayList<>();
+        int changed = 0;
+        int newChunks = 0;
+
+        for (Map.Entry<Path, Path> e : Storage.getStoredFiles(generation).entrySet()) {
+            String path = relative(e.getKey());
+            BasicFileAttributes attributes = Files.readAttributes(e.getValue(), BasicFileAttributes.class);
+            String version = e.getValue().getFileName().toString();
+            long modified = attributes.lastModifiedTime().toMillis();
+
+            Entry old = previous.get(path);
+            if (old != null && old.version().equals(version) && old.size() == attributes.size() && old.modified() == modified) {
+                entries.add(old);
+                continue;
+            }
+
+            byte[] content;
+            try {
+                content = generations.read(e.getKey(), generation);
+            } catch (FileNotFoundException ex) {
+                // Collected meanwhile, saved by the next backup
+                continue;
+            }
+
+            List<byte[]> chunks = new ArrayList<>();
+            for (int from = 0 ; from < content.length ; from += CHUNK_SIZE) {
+                byte[] chunk = Arrays.copyOfRange(content, from, Math.min(content.length, from + CHUNK_SIZE));
+                byte[] hash = hash(chunk);
+
+                Path file = chunkFile(hash);
+                if (!Files.exists(file)) {
+                    Generations.writeDurably(file, Encryption.get().seal(chunk));
+                    newChunks++;
+                }
+                chunks.add(hash);
+            }
+
+            entries.add(new Entry(path, version, attributes.size(), modified, content.length, chunks));
+            changed++;
+        }
+
+        writeCatalog(id, generation, entries);
+
+        Summary summary = new Summary(id, entries.size(), changed, newChunks, (System.nanoTime() - start) / 1_000_000);
+        System.out.printf("Backed up %s files (%s changed, %s new chunks) in %s ms%n",
+                summary.files(), summary.changed(), summary.newChunks(), summary.millis());
+
+        return summary;
+    }
+
+    /**
+     * Lists the backups.
+     *
+     * @return the ids of the backups, oldest first
+     */
+    public List<Long> list() {
+        List<Long> ids = new ArrayList<>();
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir.resolve(CATALOG_DIR))) {
+            for (Path p : stream) {
+                try {
+                    ids.add(Long.parseLong(p.getFileName().toString()));
+                } catch (NumberFormatException ignored) {
+                    // Exception ignored
+                }
+            }
+        } catch (NoSuchFileException ignored) {
+            // Exception ignored
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        Collections.sort(ids);
+
+        return ids;
+    }
+
+    /**
+     * Restores the files as they were at a backup, in a single commit.
+     * Months created since are deleted, and files still at the saved version are left as they are.
+     * <br>
+     * Nothing is restored if a block is missing or damaged.
+     *
+     * @param id the id of a backup
+     *
+     * @throws IOException if the backup can't be read
+     */
+    public void restore(long id) throws IOException {
+        Map<String, Entry> entries = readCatalog(id);
+        Map<Path, byte[]> contents = new HashMap<>();
+
+        Map<String, String> current = new HashMap<>();
+        for (Map.Entry<Path, Path> e : Storage.getStoredFiles(Storage.generations().visible()).entrySet()) {
+            current.put(relative(e.getKey()), e.getValue().getFileName().toString());
+            if (!entries.containsKey(relative(e.getKey())))
+                contents.put(e.getKey(), null);
+        }
+
+        for (Entry e : entries.values()) {
+            if (e.version().equals(current.get(e.path())))
+                continue;
+
+            ByteArrayOutputStream content = new ByteArrayOutputStream(e.length());
+            for (byte[] hash : e.chunks()) {
+                byte[] chunk = Encryption.get().unseal(Files.readAllBytes(chunkFile(hash)));
+                if (!Arrays.equals(hash(chunk), hash))
+                    throw new Checksums.CorruptionException(String.format("damaged block %s of %s", HexFormat.of().formatHex(hash), e.path()));
+                content.write(chunk);
+            }
+
+            contents.put(Storage.getGlobalFile(e.path()), content.toByteArray());
+        }
+
+        Storage.restore(contents);
+    }
+
+    private Path chunkFile(byte[] hash) {
+        String hex = HexFormat.of().formatHex(hash);
+
+        return dir.resolve(CHUNK_DIR).resolve(hex.substring(0, 2)).resolve(hex);
+    }
+
+    /**
+     * Returns the path of a stored file relative to the {@code balances} file,
+     * with the same separator on every platform.
+     */
+    private static String relative(Path file) {
+
+        return Storage.getGlobalFile("").relativize(file).toString().replace(File.separatorChar, '/');
+    }
+
+    private void writeCatalog(long id, long generation, List<Entry> entries) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        try (DataOutputStream output = new DataOutputStream(bytes)) {
+            output.writeInt(MAGIC);
+            output.writeLong(generation);
+            output.writeInt(entries.size());
+            for (Entry e : entries) {
+                output.writeUTF(e.path());
+                output.writeUTF(e.version());
+                output.writeLong(e.size());
+                output.writeLong(e.modified());
+                output.writeInt(e.length());
+                output.writeInt(e.chunks().size());
+                for (byte[] hash : e.chunks())
+                    output.write(hash);
+            }
+        }
+
+        Generations.writeDurably(dir.resolve(CATALOG_DIR).resolve(Long.toString(id)), Checksums.seal(bytes.toByteArray()));
+    }
+
+    private Map<String, Entry> readCatalog(long id) throws IOException {
+        byte[] bytes = Checksums.unseal(Files.readAllBytes(dir.resolve(CATALOG_DIR).resolve(Long.toString(id))));
+        Map<String, Entry> entries = new HashMap<>();
+
+        try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            if (input.readInt() != MAGIC)
+                throw new IOException(String.format("%s isn't a backup catalog", id));
+            input.readLong();
+
+            for (int i = input.readInt() ; i > 0 ; i--) {
+                String path = input.readUTF();
+                String version = input.readUTF();
+                long size = input.readLong();
+                long modified = input.readLong();
+                int length = input.readInt();
+
+                List<byte[]> chunks = new ArrayList<>();
+                for (int j = input.readInt() ; j > 0 ; j--) {
+                    byte[] hash = new byte[HASH_SIZE];
+                    input.readFully(hash);
+                    chunks.add(hash);
+                }
+
+                entries.put(path, new Entry(path, version, size, modified, length, chunks));
+            }
+        }
+
+        return entries;
+    }
+
+    private static byte[] hash(byte[] chunk) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(chunk);
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform provides SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+
+    /**
+     * A file saved by a backup.
+     *
+     * @param path the path of the file, relative to the {@code balances} file
+     * @param version the name of the saved version
+     * @param size the size of the version
+     * @param modified the modification time of the version
+     * @param length the length of the content
+     * @param chunks the hashes of the blocks of the content
+     */
+    private record Entry(String path, String version, long size, long modified, int length, List<byte[]> chunks) {}
+
+    /**
+     * The summary of a backup.
+     *
+     * @param id the id of the backup
+     * @param files the number of saved files
+     * @param changed the number of files read, the others being unchanged
+     * @param newChunks the number of blocks written
+     * @param millis the duration of the backup
+     */
+    public record Summary(long id, int files, int changed, int newChunks, long millis) {}
+}
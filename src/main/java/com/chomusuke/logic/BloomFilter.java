@@ -0,0 +1,125 @@
+/*  Accountable: a personal spending monitoring program
+    Copyright (C) 2023  Artur Yukhanov
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package com.chomusuke.logic;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import com.chomusuke.util.Preconditions;
+
+/**
+ * Provides a Bloom filter over 64-bit fingerprints.
+ * <br>
+ * A negative answer is always exact, a positive one may be wrong
+ * with a probability depending on the size of the filter.
+ */
+public class BloomFilter {
+
+    private final long[] bits;
+    private final int hashCount;
+
+    /**
+     * Constructor.
+     *
+     * @param size the number of bits, rounded up to a multiple of 64
+     * @param hashCount the number of bits set per fingerprint
+     */
+    public BloomFilter(int size, int hashCount) {
+        Preconditions.checkArgument(size > 0 && hashCount > 0);
+
+        this.bits = new long[(size + 63) / 64];
+        this.hashCount = hashCount;
+    }
+
+    private BloomFilter(long[] bits, int hashCount) {
+        this.bits = bits;
+        this.hashCount = hashCount;
+    }
+
+    /**
+     * Adds a fingerprint to the filter.
+     *
+     * @param fingerprint a fingerprint
+     */
+    public void add(long fingerprint) {
+        long size = bits.length * 64L;
+        int h1 = (int) fingerprint;
+        int h2 = (int) (fingerprint >>> 32);
+
+        for (int i = 0 ; i < hashCount ; i++) {
+            long bit = Integer.toUnsignedLong(h1 + i * h2) % size;
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    /**
+     * Tests whether a fingerprint may have been added to the filter.
+     *
+     * @param fingerprint a fingerprint
+     *
+     * @return {@code false} if the fingerprint has never been added,
+     *         {@code true} if it may have been
+     */
+    public boolean mightContain(long fingerprint) {
+        long size = bits.length * 64L;
+        int h1 = (int) fingerprint;
+        int h2 = (int) (fingerprint >>> 32);
+
+        for (int i = 0 ; i < hashCount ; i++) {
+            long bit = Integer.toUnsignedLong(h1 + i * h2) % size;
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0)
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Writes the filter to the given stream.
+     *
+     * @param output an output stream
+     *
+     * @throws IOException if the stream can't be written
+     */
+    public void write(DataOutputStream output) throws IOException {
+        output.writeInt(hashCount);
+        output.writeInt(bits.length);
+        for (long word : bits)
+            output.writeLong(word);
+    }
+
+    /**
+     * Reads a filter from the given stream.
+     *
+     * @param input an input stream
+     *
+     * @return the filter
+     *
+     * @throws IOException if the stream can't be read
+     */
+    public static BloomFilter read(DataInputStream input) throws IOException {
+        int hashCount = input.readInt();
+        long[] bits = new long[input.readInt()];
+        for (int i = 0 ; i < bits.length ; i++)
+            bits[i] = input.readLong();
+
+        return new BloomFilter(bits, hashCount);
+    }
+}
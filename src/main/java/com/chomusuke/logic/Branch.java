@@ -0,0 +1,358 @@
+/*  Accountable: a personal spending monitoring program
+    Copyright (C) 2023  Artur Yukhanov
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package com.chomusuke.logic;
+
+import java.time.YearMonth;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+import static com.chomusuke.logic.Transaction.TransactionType;
+import static com.chomusuke.logic.Transaction.ValueType;
+
+/**
+ * Provides a what-if branch of the ledger.
+ * <br>
+ * A branch reads the stored months, and only keeps the months it modifies,
+ * as persistent lists sharing their unmodified rows with the stored month.
+ * Its accounts start as the latest snapshot of the ledger, and only the
+ * accounts touched by a modified month are copied. When a month is modified,
+ * only its values are recomputed, and the balances move by the difference
+ * of its savings.
+ * <br>
+ * Branches forked from the same root share the totals of the stored months,
+ * so that comparing them only computes each stored month once. The carry of
+ * a month is the one of the stored ledger.
+ */
+public class Branch {
+
+    private final String name;
+    // Month key -> modified month
+    private final TreeMap<Integer, Month> months;
+    private final Map<Integer, Totals> storedTotals;
+    private PersistentByteMap<Account> accounts;
+
+    /**
+     * Constructor of a branch without modifications.
+     *
+     * @param name the name of the branch
+     */
+    public Branch(String name) {
+
+        this(name, new TreeMap<>(), new ConcurrentHashMap<>(), Ledger.get().snapshot().accounts());
+    }
+
+    private Branch(String name, TreeMap<Integer, Month> months, Map<Integer, Totals> storedTotals, PersistentByteMap<Account> accounts) {
+        this.name = name;
+        this.months = months;
+        this.storedTotals = storedTotals;
+        this.accounts = accounts;
+    }
+
+    /**
+     * Creates a branch holding the modifications of this one.
+     * Both branches can then be modified independently.
+     *
+     * @param name the name of the new branch
+     *
+     * @return the new branch
+     */
+    public Branch fork(String name) {
+
+        return new Branch(name, new TreeMap<>(months), storedTotals, accounts);
+    }
+
+    public String getName() {
+
+        return name;
+    }
+
+    public PersistentByteMap<Account> getAccounts() {
+
+        return accounts;
+    }
+
+    /**
+     * Returns the dates of the months modified by the branch.
+     *
+     * @return a sorted list of dates
+     */
+    public List<YearMonth> getModifiedMonths() {
+
+        return months.keySet().stream().map(k -> YearMonth.of(k >> 4, k & 0xF)).toList();
+    }
+
+    /**
+     * Reads a month, as modified by the branch.
+     *
+     * @param year a year
+     * @param month a month
+     *
+     * @return the transactions of the month
+     */
+    public PersistentList<Transaction> read(int year, int month) {
+        Month m = months.get(monthKey(year, month));
+
+        return m != null ? m.txs() : PersistentList.of(Storage.read(year, month));
+    }
+
+    /**
+     * Replaces the transactions of a month in the branch.
+     *
+     * @param year a year
+     * @param month a month
+     * @param txs the new transactions
+     */
+    public void write(int year, int month, List<Transaction> txs) {
+        int key = monthKey(year, month);
+        float carry = CarryOver.get().getCarry(year, month);
+
+        Month old = months.get(key);
+        PersistentList<Transaction> base = old != null ? old.base() : PersistentList.of(Storage.read(year, month));
+        PersistentList<Transaction> previous = old != null ? old.txs() : base;
+        PersistentList<Transaction> next = txs instanceof PersistentList<Transaction> p ? p : PersistentList.of(txs);
+
+        accounts = apply(Account.ModMap.of(previous, carry).reverse(), accounts);
+        accounts = apply(Account.ModMap.of(next, carry), accounts);
+
+        months.put(key, new Month(base, next, Totals.of(next, carry)));
+    }
+
+    /**
+     * Edits the months of a range, those stored and those added by the branch.
+     * The months left unchanged by {@code edit} aren't duplicated.
+     *
+     * @param from the first month
+     * @param to the last month
+     * @param edit the edition of a month
+     */
+    public void edit(YearMonth from, YearMonth to, UnaryOperator<PersistentList<Transaction>> edit) {
+        for (YearMonth ym : monthsBetween(from, to)) {
+            PersistentList<Transaction> txs = read(ym.getYear(), ym.getMonthValue());
+            PersistentList<Transaction> edited = edit.apply(txs);
+
+            if (edited != txs)
+                write(ym.getYear(), ym.getMonthValue(), edited);
+        }
+    }
+
+    /**
+     * Scales the absolute amounts of the matching transactions of a range.
+     *
+     * @param from the first month
+     * @param to the last month
+     * @param filter the transactions to scale
+     * @param factor the factor, e.g. {@code 1.1} for a 10% increase
+     */
+    public void scale(YearMonth from, YearMonth to, Predicate<Transaction> filter, float factor) {
+        edit(from, to, txs -> {
+            PersistentList<Transaction> scaled = txs;
+            for (int i = 0 ; i < txs.size() ; i++) {
+                Transaction t = txs.get(i);
+                if (t.valueType() == ValueType.ABSOLUTE && filter.test(t))
+                    scaled = scaled.with(i, new Transaction(t.name(), t.to(), t.transactionType(), t.valueType(),
+                            Math.round(t.value() * factor * 100) / 100f));
+            }
+
+            return scaled;
+        });
+    }
+
+    /**
+     * Adds a transaction at the end of each month of a range.
+     *
+     * @param from the first month
+     * @param to the last month
+     * @param t a transaction
+     */
+    public void addEveryMonth(YearMonth from, YearMonth to, Transaction t) {
+
+        edit(from, to, txs -> txs.plus(t));
+    }
+
+    /**
+     * Creates an account in the branch.
+     *
+     * @param name the name of the account
+     * @param objective the savings objective
+     *
+     * @return the id of the account
+     *
+     * @throws IllegalStateException if all the ids are used
+     */
+    public byte addAccount(String name, double objective) {
+        for (int id = 1 ; id < 256 ; id++) {
+            if (!accounts.containsKey((byte) id)) {
+                accounts = accounts.with((byte) id, new Account(name, 0, objective));
+
+                return (byte) id;
+            }
+        }
+
+        throw new IllegalStateException("No account id left");
+    }
+
+    /**
+     * Sums the months of a range, as modified by the branch.
+     *
+     * @param from the first month
+     * @param to the last month
+     *
+     * @return the totals of the range
+     */
+    public Totals summarize(YearMonth from, YearMonth to) {
+        double[] byType = new double[TransactionType.values().length];
+        double remainder = 0;
+
+        for (YearMonth ym : monthsBetween(from, to)) {
+            int key = monthKey(ym.getYear(), ym.getMonthValue());
+            Month m = months.get(key);
+            Totals t = m != null ? m.totals() : storedTotals.computeIfAbsent(key, k -> Totals.of(
+                    Storage.read(ym.getYear(), ym.getMonthValue()), CarryOver.get().getCarry(ym.getYear(), ym.getMonthValue())));
+
+            Kernels.add(byType, t.byType());
+            remainder += t.remainder();
+        }
+
+        return new Totals(byType, remainder);
+    }
+
+    /**
+     * Writes the modified months to the storage, and applies the difference
+     * of the balances to {@code balances}. Accounts created in the branch are
+     * added to {@code balances}, which still needs to be written. In the
+     * carry-over mode, the balances are then resynced with their history.
+     * <br>
+     * Nothing is written if a modified month was stored again since the
+     * branch read it.
+     *
+     * @param balances the account map of the ledger
+     *
+     * @throws IllegalStateException if a modified month was stored again
+     */
+    public void merge(Map<Byte, Account> balances) {
+        Storage.awaitWrites();
+
+        for (Map.Entry<Integer, Month> e : months.entrySet()) {
+            int year = e.getKey() >> 4;
+            int month = e.getKey() & 0xF;
+
+            if (!Storage.read(year, month).equals(e.getValue().base()))
+                throw new IllegalStateException(String.format("%s/%s was modified since the branch read it", year, month));
+        }
+
+        for (Map.Entry<Byte, Account> e : accounts.entrySet()) {
+            if (!balances.containsKey(e.getKey()))
+                balances.put(e.getKey(), new Account(e.getValue().getName(), 0, e.getValue().getObjective()));
+        }
+
+        for (Map.Entry<Integer, Month> e : months.entrySet()) {
+            int year = e.getKey() >> 4;
+            int month = e.getKey() & 0xF;
+            float carry = CarryOver.get().getCarry(year, month);
+
+            Account.ModMap.of(e.getValue().base(), carry).reverse().apply(balances);
+            Account.ModMap.of(e.getValue().txs(), carry).apply(balances);
+
+            Storage.write(e.getValue().txs(), year, month);
+        }
+
+        // The months following the merged ones may have received other carries
+        if (CarryOver.get().isEnabled())
+            AccountIndex.get().resync(balances);
+
+        System.out.printf("Merged %s months from %s%n", months.size(), name);
+    }
+
+    /**
+     * Applies a {@code ModMap} to persistent accounts, copying the modified accounts.
+     * Follows the conventions of {@code ModMap.apply}.
+     */
+    private static PersistentByteMap<Account> apply(Account.ModMap m, PersistentByteMap<Account> accounts) {
+        for (Map.Entry<Byte, Float> e : m.modMap.entrySet()) {
+            Account a = accounts.get(e.getKey());
+            if (a == null)
+                continue;
+
+            double balance = (a.getBalance() == -1 ? 0 : a.getBalance()) + e.getValue();
+            accounts = accounts.with(e.getKey(), new Account(a.getName(), balance == 0 ? -1 : balance, a.getObjective()));
+        }
+
+        return accounts;
+    }
+
+    /**
+     * Returns the stored months and the months added by the branch, within a range.
+     */
+    private List<YearMonth> monthsBetween(YearMonth from, YearMonth to) {
+        SortedSet<YearMonth> dates = new TreeSet<>(Storage.getAvailableDates());
+        dates.addAll(getModifiedMonths());
+
+        return List.copyOf(dates.subSet(from, to.plusMonths(1)));
+    }
+
+    private static int monthKey(int year, int month) {
+
+        return year << 4 | month;
+    }
+
+
+    /**
+     * A month modified by the branch.
+     *
+     * @param base the stored month, as read when first modified
+     * @param txs the modified transactions
+     * @param totals the totals of the modified transactions
+     */
+    private record Month(PersistentList<Transaction> base, PersistentList<Transaction> txs, Totals totals) {}
+
+    /**
+     * The totals of one or more months.
+     *
+     * @param byType the total of each transaction type, expenses counted positively
+     * @param remainder the remainder, carries included
+     */
+    public record Totals(double[] byType, double remainder) {
+
+        /**
+         * Computes the totals of a month.
+         *
+         * @param txs the transactions of the month
+         * @param carry the remainder carried over to the month
+         *
+         * @return the totals of the month
+         */
+        public static Totals of(List<Transaction> txs, float carry) {
+            float[] values = TransactionList.getValues(txs, carry);
+            double[] byType = new double[TransactionType.values().length];
+
+            for (int i = 0 ; i < txs.size() ; i++) {
+                TransactionType type = txs.get(i).transactionType();
+                byType[type.ordinal()] += type == TransactionType.REVENUE ? values[i] : -values[i];
+            }
+
+            return new Totals(byType, carry + Kernels.sum(values));
+        }
+
+        public double get(TransactionType type) {
+
+            return byType[type.ordinal()];
+        }
+    }
+}
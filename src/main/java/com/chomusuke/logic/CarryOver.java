@@ -0,0 +1,286 @@
+/*  Accountable: a personal spending monitoring program
+    Copyright (C) 2023  Artur Yukhanov
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package com.chomusuke.logic;
+
+import java.io.*;
+import java.time.YearMonth;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+/**
+ * Provides the carry-over mode, in which the remainder of a month
+ * becomes available funds in the following month.
+ * <br>
+ * Months form a chain: the carry of a month is the remainder of the
+ * previous available month. The remainders are kept in memory and saved
+ * next to the {@code balances} file. When a month is written, its
+ * remainder is recomputed, and the following months are only reindexed
+ * as long as the remainder they receive changes.
+ * <br>
+ * Each remainder is saved with the version of its month. When loaded,
+ * the months written since, as by another process, are computed again,
+ * along with the following ones as long as their carry changes.
+ * <br>
+ * This index must be updated before the indexes that use computed values.
+ */
+public class CarryOver implements MonthIndex {
+
+    private static final String FILE_NAME = "carry.idx";
+    private static final int MAGIC = 0x43415232;  // "CAR2"
+
+    private static final CarryOver INSTANCE = new CarryOver();
+
+    private boolean loaded = false;
+    private boolean enabled = false;
+    // Month key -> remainder of the month, carry included
+    private final TreeMap<Integer, Float> remainders = new TreeMap<>();
+    // Month key -> version of the month its remainder was computed from
+    private final TreeMap<Integer, Long> versions = new TreeMap<>();
+
+    /**
+     * Don't let anyone instantiate this class.
+     */
+    private CarryOver() {
+    }
+
+    /**
+     * Returns the carry-over state of the storage.
+     *
+     * @return the carry-over state
+     */
+    public static CarryOver get() {
+
+        return INSTANCE;
+    }
+
+    /**
+     * Tests whether remainders are carried over to the following month.
+     *
+     * @return {@code true} if the carry-over mode is enabled
+     */
+    public synchronized boolean isEnabled() {
+        ensureLoaded();
+
+        return enabled;
+    }
+
+    /**
+     * Enables or disables the carry-over mode.
+     * <br>
+     * All the computed values may change, so all the months are reindexed.
+     *
+     * @param enabled the new mode
+     */
+    public void setEnabled(boolean enabled) {
+        synchronized (this) {
+            ensureLoaded();
+            if (this.enabled == enabled)
+                return;
+
+            this.enabled = enabled;
+            remainders.clear();
+            versions.clear();
+            if (enabled)
+                catchUp();
+            save();
+        }
+
+        Storage.reindexAll();
+    }
+
+    /**
+     * Returns the funds carried over to the specified month.
+     *
+     * @param year a value
+     * @param month a value
+     *
+     * @return the remainder of the previous month, 0 if the mode is disabled
+     */
+    public synchronized float getCarry(int year, int month) {
+        ensureLoaded();
+        if (!enabled)
+            return 0;
+
+        Map.Entry<Integer, Float> previous = remainders.lowerEntry(PersistentIndex.monthKey(year, month));
+
+        return previous == null ? 0 : previous.getValue();
+    }
+
+    /**
+     * Computes the values of the transactions of a month,
+     * taking the carried over funds into account.
+     *
+     * @param year a value
+     * @param month a value
+     * @param txs the transactions of the month
+     *
+     * @return the values of the transactions
+     */
+    public float[] getValues(int year, int month, List<Transaction> txs) {
+
+        return TransactionList.getValues(txs, getCarry(year, month));
+    }
+
+    @Override
+    public void update(int year, int month, List<Transaction> txs) {
+
+        update(year, month, txs, Storage.getMonthVersion(year, month));
+    }
+
+    @Override
+    public void update(int year, int month, List<Transaction> txs, long version) {
+        Integer next;
+
+        synchronized (this) {
+            ensureLoaded();
+            if (!enabled)
+                return;
+
+            int key = PersistentIndex.monthKey(year, month);
+            float remainder = remainder(txs, getCarry(year, month));
+            Float old = remainders.put(key, remainder);
+            Long oldVersion = versions.put(key, version);
+
+            // The following months only depend on this one through its remainder
+            if (old != null && old == remainder) {
+                if (oldVersion == null || oldVersion != version)
+                    save();
+                return;
+            }
+
+            save();
+            next = remainders.higherKey(key);
+        }
+
+        // Reindexing the next month updates this index again, which goes on down the chain.
+        // The lock isn't held meanwhile, as the other indexes ask for carries while holding theirs.
+        if (next != null)
+            Storage.reindex(next / 16, next % 16);
+    }
+
+    /**
+     * Computes again the remainders of the months whose version changed,
+     * and of the following months as long as the carry they receive changes.
+     * The changed months are decoded in parallel.
+     *
+     * @return {@code true} if a remainder was computed again, or a month deleted
+     */
+    private boolean catchUp() {
+        // Taken first, a month written meanwhile is computed again on the next load
+        SortedMap<YearMonth, Long> current = Storage.getMonthVersions();
+        Map<YearMonth, List<Transaction>> decoded = current.entrySet().parallelStream()
+                .filter(e -> !e.getValue().equals(versions.get(PersistentIndex.monthKey(e.getKey().getYear(), e.getKey().getMonthValue()))))
+                .collect(Collectors.toMap(
+                        Map.Entry::getKey,
+                        e -> Storage.read(e.getKey().getYear(), e.getKey().getMonthValue())
+                ));
+
+        boolean deleted = versions.keySet().stream().anyMatch(k -> !current.containsKey(YearMonth.of(k / 16, k % 16)));
+        if (decoded.isEmpty() && !deleted)
+            return false;
+
+        TreeMap<Integer, Float> old = new TreeMap<>(remainders);
+
+        remainders.clear();
+        versions.clear();
+
+        int computed = 0;
+        float carry = 0;
+        for (Map.Entry<YearMonth, Long> e : current.entrySet()) {
+            int key = PersistentIndex.monthKey(e.getKey().getYear(), e.getKey().getMonthValue());
+            Map.Entry<Integer, Float> previous = old.lowerEntry(key);
+            float oldCarry = previous == null ? 0 : previous.getValue();
+
+            // A month left as it was, receiving the same carry, keeps its remainder
+            List<Transaction> txs = decoded.get(e.getKey());
+            if (txs == null && old.containsKey(key) && oldCarry == carry) {
+                carry = old.get(key);
+            } else {
+                if (txs == null)
+                    txs = Storage.read(e.getKey().getYear(), e.getKey().getMonthValue());
+                carry = remainder(txs, carry);
+                computed++;
+            }
+
+            remainders.put(key, carry);
+            versions.put(key, e.getValue());
+        }
+
+        System.out.printf("Computed the remainders of %s of %s months%n", computed, current.size());
+
+        return true;
+    }
+
+    private static float remainder(List<Transaction> txs, float carry) {
+        double sum = carry + Kernels.sum(TransactionList.getValues(txs, carry));
+
+        return (float) (Math.round(sum * 100) / 100.0);
+    }
+
+    private void ensureLoaded() {
+        if (loaded)
+            return;
+
+        loaded = true;
+        File file = Storage.getGlobalFile(FILE_NAME).toFile();
+
+        try (DataInputStream input = new DataInputStream(Encryption.get().open(file))) {
+            if (input.readInt() != MAGIC)
+                return;
+
+            enabled = input.readBoolean();
+            for (int i = input.readInt() ; i > 0 ; i--) {
+                int key = input.readInt();
+                long version = input.readLong();
+                float remainder = input.readFloat();
+
+                versions.put(key, version);
+                remainders.put(key, remainder);
+            }
+        } catch (FileNotFoundException e) {
+            // Disabled by default
+        } catch (IOException e) {
+            // The remainders read before the failure are kept, the others are computed again
+            e.printStackTrace();
+        }
+
+        if (enabled && catchUp())
+            save();
+    }
+
+    private void save() {
+        File file = Storage.getGlobalFile(FILE_NAME).toFile();
+        file.getParentFile().mkdirs();
+
+        try (DataOutputStream output = new DataOutputStream(Encryption.get().create(file))) {
+            output.writeInt(MAGIC);
+            output.writeBoolean(enabled);
+            output.writeInt(remainders.size());
+            for (Map.Entry<Integer, Float> e : remainders.entrySet()) {
+                output.writeInt(e.getKey());
+                output.writeLong(versions.getOrDefault(e.getKey(), -1L));
+                output.writeFloat(e.getValue());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*  Accountable: a personal spending monitoring program
+    Copyright (C) 2023  Artur Yukhanov
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package com.chomusuke.logic;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+
+/**
+ * Provides the checksummed layout of the stored files.
+ * <br>
+ * A sealed file starts with a header holding a magic number, the length
+ * of the content and the checksum of both. The content follows in blocks
+ * of {@code BLOCK_SIZE} bytes, the last one being shorter, each followed
+ * by its CRC32C (computed with the CPU instructions where available).
+ * A truncated or damaged file is detected, and the damaged block is known.
+ * <br>
+ * Files written before checksums existed don't start with the magic
+ * number, and are read as they are.
+ */
+final class Checksums {
+
+    static final int BLOCK_SIZE = 4096;
+
+    // "ACK1", no month file starts with it: its first name would be 16707 bytes long
+    private static final int MAGIC = 0x41434B31;
+    private static final int HEADER_SIZE = 3 * Integer.BYTES;
+    private static final int CRC_SIZE = Integer.BYTES;
+
+    /**
+     * Don't let anyone instantiate this class.
+     */
+    private Checksums() {}
+
+    /**
+     * Tells whether a file has the checksummed layout.
+     *
+     * @param file the bytes of a file
+     *
+     * @return true if the file is sealed
+     */
+    static boolean isSealed(byte[] file) {
+
+        return file.length >= HEADER_SIZE && ByteBuffer.wrap(file).getInt() == MAGIC;
+    }
+
+    /**
+     * Lays out content with its checksums.
+     *
+     * @param content the content
+     *
+     * @return the bytes of the file
+     */
+    static byte[] seal(byte[] content) {
+        int blocks = blockCount(content.length);
+        ByteBuffer file = ByteBuffer.allocate(HEADER_SIZE + content.length + blocks * CRC_SIZE);
+
+        file.putInt(MAGIC).putInt(content.length);
+        file.putInt(crc(file.array(), 0, 2 * Integer.BYTES));
+
+        for (int b = 0 ; b < blocks ; b++) {
+            int from = b * BLOCK_SIZE;
+            int length = Math.min(BLOCK_SIZE, content.length - from);
+
+            file.put(content, from, length);
+            file.putInt(crc(content, from, length));
+        }
+
+        return file.array();
+    }
+
+    /**
+     * Verifies a file and extracts its content. Files without the
+     * checksummed layout are returned as they are.
+     *
+     * @param file the bytes of a file
+     *
+     * @return the content
+     *
+     * @throws CorruptionException if the file is truncated or a checksum doesn't match
+     */
+    static byte[] unseal(byte[] file) throws CorruptionException {
+        if (!isSealed(file))
+            return file;
+
+        ByteBuffer input = ByteBuffer.wrap(file);
+        input.getInt();
+        int length = input.getInt();
+        if (input.getInt() != crc(file, 0, 2 * Integer.BYTES) || length < 0)
+            throw new CorruptionException("damaged header");
+
+        int blocks = blockCount(length);
+        if (file.length < HEADER_SIZE + (long) length + (long) blocks * CRC_SIZE)
+            throw new CorruptionException(String.format("truncated to %s bytes", file.length));
+
+        byte[] content = new byte[length];
+        for (int b = 0 ; b < blocks ; b++) {
+            int from = b * BLOCK_SIZE;
+            int blockLength = Math.min(BLOCK_SIZE, length - from);
+            int position = input.position();
+
+            input.get(content, from, blockLength);
+            if (input.getInt() != crc(file, position, blockLength))
+                throw new CorruptionException(String.format("checksum mismatch in block %s of %s", b, blocks));
+        }
+
+        return content;
+    }
+
+    private static int blockCount(int length) {
+
+        return (length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    }
+
+    private static int crc(byte[] bytes, int from, int length) {
+        CRC32C crc = new CRC32C();
+        crc.update(bytes, from, length);
+
+        return (int) crc.getValue();
+    }
+
+
+    /**
+     * Thrown when a stored file doesn't match its checksums.
+     */
+    static final class CorruptionException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        CorruptionException(String message) {
+
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*  Accountable: a personal spending monitoring program
+    Copyright (C) 2023  Artur Yukhanov
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package com.chomusuke.logic;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.*;
+
+import static com.chomusuke.logic.Transaction.TransactionType;
+
+/**
+ * Provides the distributions of the transaction amounts.
+ * <br>
+ * Each month keeps a quantile sketch of its amounts per transaction
+ * type, and one per token of the transaction names. A write only
+ * replaces the sketches of its month, and the sketches of the months
+ * of interest are merged when a distribution is asked for.
+ * <br>
+ * Amounts are the magnitudes of the computed values.
+ */
+public class DistributionIndex extends PersistentIndex {
+
+    // Month sketches are small, they hold at most one month of rows
+    private static final int MONTH_K = 64;
+
+    private static final DistributionIndex INSTANCE = new DistributionIndex();
+
+    // Month key -> sketches of the month
+    private final Map<Integer, MonthSketches> months = new HashMap<>();
+
+    /**
+     * Don't let anyone instantiate this class.
+     */
+    private DistributionIndex() {
+
+        super("dist.idx", 0x44494458);  // "DIDX"
+    }
+
+    /**
+     * Returns the distribution index of the storage.
+     *
+     * @return the distribution index
+     */
+    public static DistributionIndex get() {
+
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the distribution of the amounts of a transaction type over a range of years.
+     *
+     * @param type a transaction type
+     * @param fromYear the first year
+     * @param toYear the last year, included
+     *
+     * @return a merged sketch
+     */
+    public synchronized QuantileSketch byType(TransactionType type, int fromYear, int toYear) {
+        ensureLoaded();
+
+        QuantileSketch merged = new QuantileSketch();
+        for (Map.Entry<Integer, MonthSketches> e : months.entrySet()) {
+            int year = e.getKey() / 16;
+            if (year >= fromYear && year <= toYear)
+                merged.merge(e.getValue().types[type.ordinal()]);
+        }
+
+        return merged;
+    }
+
+    /**
+     * Returns the distribution of the amounts of the transactions whose name
+     * contains all the words of {@code words}, over the whole history.
+     * <br>
+     * With several words, the distribution of the rarest word is returned.
+     *
+     * @param words one or more words
+     *
+     * @return a merged sketch
+     */
+    public synchronized QuantileSketch byName(String words) {
+        ensureLoaded();
+
+        // The rarest word is the closest to the rows containing all of them
+        String rarest = null;
+        long rarestCount = Long.MAX_VALUE;
+        for (String token : SearchIndex.tokenize(words)) {
+            long n = 0;
+            for (MonthSketches m : months.values()) {
+                QuantileSketch s = m.tokens.get(token);
+                if (s != null)
+                    n += s.getCount();
+            }
+
+            if (n < rarestCount) {
+                rarest = token;
+                rarestCount = n;
+            }
+        }
+
+        QuantileSketch merged = new QuantileSketch();
+        if (rarest == null)
+            return merged;
+
+        for (MonthSketches m : months.values()) {
+            QuantileSketch s = m.tokens.get(rarest);
+            if (s != null)
+                merged.merge(s);
+        }
+
+        return merged;
+    }
+
+    @Override
+    protected void clear() {
+
+        months.clear();
+    }
+
+    @Override
+    protected void index(int year, int month, List<Transaction> txs) {
+        float[] values = CarryOver.get().getValues(year, month, txs);
+
+        MonthSketches m = new MonthSketches();
+        for (int i = 0 ; i < values.length ; i++) {
+            Transaction t = txs.get(i);
+            float amount = Math.abs(values[i]);
+
+            m.types[t.transactionType().ordinal()].add(amount);
+            for (String token : SearchIndex.tokenize(t.name()))
+                m.tokens.computeIfAbsent(token, k -> new QuantileSketch(MONTH_K)).add(amount);
+        }
+
+        if (txs.isEmpty())
+            months.remove(monthKey(year, month));
+        else
+            months.put(monthKey(year, month), m);
+    }
+
+    @Override
+    protected void write(DataOutputStream output) throws IOException {
+        output.writeInt(months.size());
+        for (Map.Entry<Integer, MonthSketches> e : months.entrySet()) {
+            output.writeInt(e.getKey());
+            for (QuantileSketch s : e.getValue().types)
+                s.write(output);
+
+            output.writeShort(e.getValue().tokens.size());
+            for (Map.Entry<String, QuantileSketch> t : e.getValue().tokens.entrySet()) {
+                output.writeUTF(t.getKey());
+                t.getValue().write(output);
+            }
+        }
+    }
+
+    @Override
+    protected void read(DataInputStream input) throws IOException {
+        for (int i = input.readInt() ; i > 0 ; i--) {
+            int key = input.readInt();
+            MonthSketches m = new MonthSketches();
+            for (int t = 0 ; t < m.types.length ; t++)
+                m.types[t] = QuantileSketch.read(input);
+
+            for (int t = input.readShort() ; t > 0 ; t--)
+                m.tokens.put(input.readUTF(), QuantileSketch.read(input));
+
+            months.put(key, m);
+        }
+    }
+
+
+    /**
+     * Sketches of the amounts of a month.
+     */
+    private static class MonthSketches {
+
+        private final QuantileSketch[] types = new QuantileSketch[TransactionType.values().length];
+        private final Map<String, QuantileSketch> tokens = new HashMap<>();
+
+        private MonthSketches() {
+            for (int t = 0 ; t < types.length ; t++)
+                types[t] = new QuantileSketch(MONTH_K);
+        }
+    }
+}
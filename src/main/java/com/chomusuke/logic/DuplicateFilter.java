@@ -0,0 +1,142 @@
+/*  Accountable: a personal spending monitoring program
+    Copyright (C) 2023  Artur Yukhanov
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package com.chomusuke.logic;
+
+import java.io.*;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Provides duplicate detection for months, using positional fingerprints.
+ * <br>
+ * A Bloom filter of the positional fingerprints of each month is kept
+ * next to the month file, so that a transaction can be known as new
+ * without decoding the month. The filter is rebuilt each time the
+ * month is written.
+ * <br>
+ * Each filter is stamped with the version of the month it was built
+ * from, and rebuilt when loaded if the month was written since, by this
+ * process or another one. Files without a stamp are rebuilt when read.
+ */
+public class DuplicateFilter implements MonthIndex {
+
+    private static final String EXTENSION = ".bloom";
+    private static final int MAGIC = 0x424C4D32;  // "BLM2"
+
+    // About 1% of false positives for a full month
+    private static final int BITS = Storage.MAX_TRANSACTION_COUNT * 10;
+    private static final int HASH_COUNT = 7;
+
+    @Override
+    public void update(int year, int month, List<Transaction> txs) {
+
+        update(year, month, txs, Storage.getMonthVersion(year, month));
+    }
+
+    @Override
+    public void update(int year, int month, List<Transaction> txs, long version) {
+
+        write(year, month, version, build(txs));
+    }
+
+    /**
+     * Builds the filter of a list of transactions.
+     *
+     * @param txs a transaction list
+     *
+     * @return the filter containing the positional fingerprints of the list
+     */
+    public static BloomFilter build(List<Transaction> txs) {
+        BloomFilter filter = new BloomFilter(BITS, HASH_COUNT);
+        Map<Long, Integer> positions = new HashMap<>();
+
+        for (Transaction t : txs) {
+            long content = Fingerprint.of(t);
+            int position = positions.merge(content, 1, Integer::sum) - 1;
+
+            filter.add(Fingerprint.of(content, position));
+        }
+
+        return filter;
+    }
+
+    /**
+     * Counts the transactions of a list by content fingerprint.
+     *
+     * @param txs a transaction list
+     *
+     * @return a mapping from content fingerprints to their number of occurrences
+     */
+    public static Map<Long, Integer> count(List<Transaction> txs) {
+        Map<Long, Integer> counts = new HashMap<>();
+
+        for (Transaction t : txs)
+            counts.merge(Fingerprint.of(t), 1, Integer::sum);
+
+        return counts;
+    }
+
+    /**
+     * Loads the filter of the specified month.
+     * <br>
+     * If the month has no filter yet, or the month was written since
+     * its filter was built, it is built from the month and saved for
+     * the next time.
+     *
+     * @param year a value
+     * @param month a value
+     *
+     * @return the filter of the month
+     */
+    public static BloomFilter load(int year, int month) {
+        Path file = Storage.getIndexFile(year, month, EXTENSION);
+        long version = Storage.getMonthVersion(year, month);
+
+        try (DataInputStream input = new DataInputStream(Encryption.get().open(file.toFile()))) {
+            if (input.readInt() == MAGIC && input.readLong() == version)
+                return BloomFilter.read(input);
+        } catch (FileNotFoundException e) {
+            // Built below
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        // Missing, unreadable, stale, or unstamped
+        BloomFilter filter = build(Storage.read(year, month));
+
+        if (Storage.exists(year, month))
+            write(year, month, version, filter);
+
+        return filter;
+    }
+
+    private static void write(int year, int month, long version, BloomFilter filter) {
+        Path file = Storage.getIndexFile(year, month, EXTENSION);
+
+        try (DataOutputStream output = new DataOutputStream(Encryption.get().create(file.toFile()))) {
+            output.writeInt(MAGIC);
+            output.writeLong(version);
+            filter.write(output);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
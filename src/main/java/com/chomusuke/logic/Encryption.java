@@ -0,0 +1,368 @@
+/*  Accountable: a personal spending monitoring program
+    Copyright (C) 2023  Artur Yukhanov
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package com.chomusuke.logic;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Provides the optional encryption of the stored files.
+ * <br>
+ * Once enabled, files are written in blocks of {@code Checksums.BLOCK_SIZE}
+ * bytes, each encrypted with AES-GCM under its own random nonce. The length
+ * of the content and the position of the block are authenticated with each
+ * block, so that a block can't be moved, dropped or truncated unnoticed.
+ * All the blocks but the last have the same size on disk, so a block can be
+ * located and decrypted on its own. The JDK uses the AES and GHASH
+ * instructions of the CPU where available.
+ * <br>
+ * The key is derived from a passphrase with PBKDF2, and kept in memory for
+ * the session. The {@code key} file only holds the salt and a block
+ * encrypted with the key, telling whether a passphrase is the right one.
+ * While the key isn't known, encrypted files can neither be read nor written.
+ */
+public class Encryption {
+
+    private static final String KEY_FILE = "key";
+    private static final int KEY_MAGIC = 0x414B4559;  // "AKEY"
+    // "ACE1", no month file starts with it: its first name would be 16707 bytes long
+    private static final int MAGIC = 0x41434531;
+
+    private static final int KEY_BITS = 256;
+    private static final int ITERATIONS = 310_000;
+    private static final int SALT_SIZE = 16;
+    private static final int NONCE_SIZE = 12;
+    private static final int TAG_SIZE = 16;
+    private static final int HEADER_SIZE = 2 * Integer.BYTES;
+    private static final int STRIDE = NONCE_SIZE + Checksums.BLOCK_SIZE + TAG_SIZE;
+
+    private static final byte[] VERIFIER = "Accountable".getBytes(StandardCharsets.UTF_8);
+
+    private static final Encryption INSTANCE = new Encryption();
+
+    private final SecureRandom random = new SecureRandom();
+    private volatile SecretKey key = null;
+
+    /**
+     * Don't let anyone instantiate this class.
+     */
+    private Encryption() {
+    }
+
+    /**
+     * Returns the encryption of the storage.
+     *
+     * @return the encryption
+     */
+    public static Encryption get() {
+
+        return INSTANCE;
+    }
+
+    /**
+     * Tells whether the storage is encrypted.
+     *
+     * @return true if a passphrase was set
+     */
+    public boolean isEnabled() {
+
+        return Files.exists(Storage.getGlobalFile(KEY_FILE));
+    }
+
+    /**
+     * Tells whether the key is known for this session.
+     *
+     * @return true if the storage can be read
+     */
+    public boolean isUnlocked() {
+
+        return key != null;
+    }
+
+    /**
+     * Derives the key from a passphrase, and keeps it for the session.
+     *
+     * @param passphrase the passphrase, cleared afterwards
+     *
+     * @throws IllegalArgumentException if the passphrase is wrong
+     * @throws IOException if the key file can't be read
+     */
+    public void unlock(char[] passphrase) throws IOException {
+        ByteBuffer file = ByteBuffer.wrap(Files.readAllBytes(Storage.getGlobalFile(KEY_FILE)));
+        if (file.getInt() != KEY_MAGIC)
+            throw new IOException("Unknown key file");
+
+        int iterations = file.getInt();
+        byte[] salt = new byte[SALT_SIZE];
+        file.get(salt);
+        byte[] verifier = new byte[file.remaining()];
+        file.get(verifier);
+
+        SecretKey derived = derive(passphrase, salt, iterations);
+        try {
+            if (!Arrays.equals(decrypt(derived, verifier), VERIFIER))
+                throw new IllegalArgumentException("Wrong passphrase");
+        } catch (Checksums.CorruptionException e) {
+            throw new IllegalArgumentException("Wrong passphrase");
+        }
+
+        key = derived;
+    }
+
+    /**
+     * Forgets the key.
+     */
+    public void lock() {
+
+        key = null;
+    }
+
+    /**
+     * Encrypts the storage with a new passphrase, and keeps the key for the session.
+     * The balances and all the months are written again, encrypted, and their
+     * plain versions are deleted. Existing backups are left as they are.
+     *
+     * @param passphrase the passphrase, cleared afterwards
+     *
+     * @throws IllegalStateException if the storage is already encrypted
+     * @throws IOException if the key file can't be written
+     */
+    public void enable(char[] passphrase) throws IOException {
+        if (isEnabled())
+            throw new IllegalStateException("The storage is already encrypted");
+
+        // Read before the key is set, the files being plain
+        Map<Path, byte[]> contents = new TreeMap<>();
+        Generations generations = Storage.generations();
+        long generation = generations.visible();
+        for (Path file : Storage.getStoredFiles(generation).keySet())
+            contents.put(file, generations.read(file, generation));
+
+        byte[] salt = new byte[SALT_SIZE];
+        random.nextBytes(salt);
+        SecretKey derived = derive(passphrase, salt, ITERATIONS);
+
+        byte[] verifier = encrypt(derived, VERIFIER);
+        Generations.writeDurably(Storage.getGlobalFile(KEY_FILE), ByteBuffer.allocate(2 * Integer.BYTES + SALT_SIZE + verifier.length)
+                .putInt(KEY_MAGIC).putInt(ITERATIONS).put(salt).put(verifier).array());
+        key = derived;
+
+        generations.commit(contents);
+        for (Path file : contents.keySet())
+            generations.purge(file);
+
+        System.out.printf("Encrypted %s files%n", contents.size());
+    }
+
+    /**
+     * Lays out content for the disk: encrypted when the storage is,
+     * else with its checksums.
+     *
+     * @param content the content
+     *
+     * @return the bytes of the file
+     *
+     * @throws IOException if the storage is encrypted but locked
+     */
+    byte[] seal(byte[] content) throws IOException {
+        SecretKey k = key;
+        if (k == null) {
+            if (isEnabled())
+                throw new IOException("The storage is locked");
+
+            return Checksums.seal(content);
+        }
+
+        return encrypt(k, content);
+    }
+
+    /**
+     * Extracts the content of a file, whatever its layout.
+     *
+     * @param file the bytes of a file
+     *
+     * @return the content
+     *
+     * @throws Checksums.CorruptionException if the file was damaged or tampered with
+     * @throws IOException if the file is encrypted but the storage is locked
+     */
+    byte[] unseal(byte[] file) throws IOException {
+        if (!isEncrypted(file))
+            return Checksums.unseal(file);
+
+        SecretKey k = key;
+        if (k == null)
+            throw new IOException("The storage is locked");
+
+        return decrypt(k, file);
+    }
+
+    /**
+     * Tells whether a file is encrypted.
+     *
+     * @param file the bytes of a file
+     *
+     * @return true if the file is encrypted
+     */
+    static boolean isEncrypted(byte[] file) {
+
+        return file.length >= HEADER_SIZE && ByteBuffer.wrap(file).getInt() == MAGIC;
+    }
+
+    /**
+     * Opens a file written by {@code create}, or a plain file.
+     *
+     * @param file a file
+     *
+     * @return a stream over the content
+     *
+     * @throws FileNotFoundException if the file doesn't exist
+     * @throws IOException if the file can't be read or decrypted
+     */
+    InputStream open(File file) throws IOException {
+        byte[] bytes;
+        try (InputStream input = new FileInputStream(file)) {
+            bytes = input.readAllBytes();
+        }
+
+        if (!isEncrypted(bytes))
+            return new ByteArrayInputStream(bytes);
+
+        return new ByteArrayInputStream(unseal(bytes));
+    }
+
+    /**
+     * Creates a file, encrypted when the storage is. The file is written when the stream is closed.
+     *
+     * @param file a file
+     *
+     * @return a stream to the file
+     *
+     * @throws IOException if the storage is encrypted but locked
+     */
+    OutputStream create(File file) throws IOException {
+        if (isEnabled() && key == null)
+            throw new IOException("The storage is locked");
+
+        return new ByteArrayOutputStream() {
+            @Override
+            public void close() throws IOException {
+                byte[] bytes = toByteArray();
+                Generations.writeDurably(file.toPath(), key == null ? bytes : encrypt(key, bytes));
+            }
+        };
+    }
+
+    private static SecretKey derive(char[] passphrase, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(passphrase, salt, iterations, KEY_BITS);
+        try {
+            byte[] k = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+
+            return new SecretKeySpec(k, "AES");
+        } catch (GeneralSecurityException e) {
+            // Every Java platform provides PBKDF2 with SHA-256
+            throw new IllegalStateException(e);
+        } finally {
+            spec.clearPassword();
+            Arrays.fill(passphrase, '\0');
+        }
+    }
+
+    private byte[] encrypt(SecretKey k, byte[] content) {
+        // An empty content still has a block, authenticating the header
+        int blocks = Math.max(1, (content.length + Checksums.BLOCK_SIZE - 1) / Checksums.BLOCK_SIZE);
+        ByteBuffer file = ByteBuffer.allocate(HEADER_SIZE + content.length + blocks * (NONCE_SIZE + TAG_SIZE));
+        file.putInt(MAGIC).putInt(content.length);
+
+        try {
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            byte[] nonce = new byte[NONCE_SIZE];
+
+            for (int b = 0 ; b < blocks ; b++) {
+                int from = b * Checksums.BLOCK_SIZE;
+                int length = Math.min(Checksums.BLOCK_SIZE, content.length - from);
+
+                random.nextBytes(nonce);
+                cipher.init(Cipher.ENCRYPT_MODE, k, new GCMParameterSpec(TAG_SIZE * 8, nonce));
+                cipher.updateAAD(aad(content.length, b));
+
+                file.put(nonce);
+                file.position(file.position() + cipher.doFinal(content, from, length, file.array(), file.position()));
+            }
+        } catch (GeneralSecurityException e) {
+            // Every Java platform provides AES-GCM
+            throw new IllegalStateException(e);
+        }
+
+        return file.array();
+    }
+
+    private static byte[] decrypt(SecretKey k, byte[] file) throws Checksums.CorruptionException {
+        ByteBuffer input = ByteBuffer.wrap(file);
+        input.getInt();
+        int length = input.getInt();
+
+        int blocks = Math.max(1, (length + Checksums.BLOCK_SIZE - 1) / Checksums.BLOCK_SIZE);
+        if (length < 0 || file.length != HEADER_SIZE + (long) length + (long) blocks * (NONCE_SIZE + TAG_SIZE))
+            throw new Checksums.CorruptionException(String.format("truncated to %s bytes", file.length));
+
+        byte[] content = new byte[length];
+        try {
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+
+            for (int b = 0 ; b < blocks ; b++) {
+                // Every block but the last takes STRIDE bytes, so any block can be located
+                int position = HEADER_SIZE + b * STRIDE;
+                int blockLength = Math.min(Checksums.BLOCK_SIZE, length - b * Checksums.BLOCK_SIZE);
+
+                cipher.init(Cipher.DECRYPT_MODE, k, new GCMParameterSpec(TAG_SIZE * 8, file, position, NONCE_SIZE));
+                cipher.updateAAD(aad(length, b));
+                try {
+                    cipher.doFinal(file, position + NONCE_SIZE, blockLength + TAG_SIZE, content, b * Checksums.BLOCK_SIZE);
+                } catch (AEADBadTagException e) {
+                    throw new Checksums.CorruptionException(String.format("authentication failed in block %s of %s", b, blocks));
+                }
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+
+        return content;
+    }
+
+    private static byte[] aad(int length, int block) {
+
+        return ByteBuffer.allocate(2 * Integer.BYTES).putInt(length).putInt(block).array();
+    }
+}
@@ -0,0 +1,487 @@
+/*  Accountable: a personal spending monitoring program
+    Copyright (C) 2023  Artur Yukhanov
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package com.chomusuke.logic;
+
+import java.io.*;
+import java.nio.file.Path;
+import java.time.YearMonth;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.UnaryOperator;
+
+import com.chomusuke.util.Preconditions;
+import com.chomusuke.util.Time;
+
+/**
+ * Keeps the transactions and the accounts in binary files: the
+ * {@code balances} file, a {@code storage/<year>/<month>} file per month,
+ * and a {@code storage/<year>/archive} file per closed year.
+ * <br>
+ * The files are committed as generations, so readers never see a write
+ * halfway, and are laid out by {@code StorageFormat}.
+ */
+final class FileStore implements TransactionStore, AccountStore {
+
+    static final String BALANCES_FILE = "balances";
+    private static final String ARCHIVE_FILE = "archive";
+    private static final int CACHED_MONTHS = 32;
+
+    private final Path root;
+    private final Path dir;
+    private final Generations generations;
+    // Year -> decoded archive, replaced when the archive is
+    private final Map<Integer, YearArchive> archives = new ConcurrentHashMap<>();
+    // Month -> decoded month file, least recently read first, replaced when the file is
+    private final Map<YearMonth, CachedMonth> cache = new LinkedHashMap<>(CACHED_MONTHS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<YearMonth, CachedMonth> eldest) {
+
+            return size() > CACHED_MONTHS;
+        }
+    };
+
+    /**
+     * Constructor.
+     *
+     * @param root the directory holding the {@code balances} file and the {@code storage} directory
+     */
+    FileStore(Path root) {
+        this.root = root;
+        this.dir = root.resolve("storage");
+        this.generations = new Generations(root);
+    }
+
+    @Override
+    public Map<Byte, Account> readAccounts() {
+        try (InputStream input = generations.open(root.resolve(BALANCES_FILE))) {
+
+            return StorageFormat.decodeBalances(input.readAllBytes());
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            e.printStackTrace();
+
+            return new HashMap<>();
+        }
+    }
+
+    @Override
+    public void writeAccounts(Map<Byte, Account> accounts) {
+        try {
+            generations.commit(Map.of(root.resolve(BALANCES_FILE), StorageFormat.encodeBalances(accounts)));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Loads the file of a month, or the month from the archive of its year.
+     * The latest months read are kept decoded, as long as their file isn't replaced.
+     */
+    @Override
+    public List<Transaction> read(int year, int month) {
+        YearMonth ym = YearMonth.of(year, month);
+        Path file = getMonthFile(year, month);
+        long generation = generations.visible();
+
+        Path version = generations.resolve(file, generation);
+        if (version != null) {
+            CachedMonth cached;
+            synchronized (cache) {
+                cached = cache.get(ym);
+            }
+            if (cached != null && cached.version().equals(version))
+                return cached.txs();
+        }
+
+        try {
+            List<Transaction> txs = Collections.unmodifiableList(StorageFormat.decodeMonth(generations.read(file, generation)));
+            if (version != null) {
+                synchronized (cache) {
+                    cache.put(ym, new CachedMonth(version, txs));
+                }
+            }
+
+            return txs;
+        } catch (FileNotFoundException e) {
+            YearArchive archive = readArchive(year);
+            if (archive == null || !archive.months().containsKey(month))
+                return new ArrayList<>();
+
+            return archive.months().get(month);
+        } catch (Checksums.CorruptionException e) {
+            System.out.printf("The file %s/%s can't be read: %s%n", year, month, e.getMessage());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        return new ArrayList<>();
+    }
+
+    @Override
+    public void append(int year, int month, List<Transaction> list) {
+        try {
+            if (isArchived(year)) {
+                updateArchive(year, month, txs -> concat(txs, list));
+            } else {
+                byte[] rows = StorageFormat.encodeRows(list);
+                generations.update(getMonthFile(year, month), old -> append(old, rows));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void write(int year, int month, List<Transaction> list) {
+        try {
+            if (isArchived(year))
+                updateArchive(year, month, txs -> List.copyOf(list));
+            else
+                generations.commit(Map.of(getMonthFile(year, month), StorageFormat.encodeMonth(list)));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public List<YearMonth> months() {
+        List<YearMonth> dates = new ArrayList<>();
+
+        for (int year : list(dir)) {
+            SortedSet<Integer> months = new TreeSet<>(list(dir.resolve(Integer.toString(year))));
+
+            YearArchive archive = readArchive(year);
+            if (archive != null)
+                months.addAll(archive.months().keySet());
+
+            for (int month : months) {
+                if (month >= 1 && month <= 12)
+                    dates.add(YearMonth.of(year, month));
+            }
+        }
+
+        return dates;
+    }
+
+    /**
+     * Returns the generation of the file of each month. The months of an
+     * archived year have the generation of the archive.
+     */
+    @Override
+    public SortedMap<YearMonth, Long> versions() {
+        SortedMap<YearMonth, Long> versions = new TreeMap<>();
+        long generation = generations.visible();
+
+        for (int year : list(dir)) {
+            SortedMap<String, Path> files = generations.resolveAll(dir.resolve(Integer.toString(year)), generation);
+
+            YearArchive archive = files.containsKey(ARCHIVE_FILE) ? readArchive(year) : null;
+            if (archive != null) {
+                for (int month : archive.months().keySet())
+                    versions.put(YearMonth.of(year, month), Generations.generationOf(archive.version()));
+            }
+
+            files.forEach((name, version) -> {
+                if (!name.matches("\\d+"))
+                    return;
+
+                int month = Integer.parseInt(name);
+                if (month >= 1 && month <= 12)
+                    versions.put(YearMonth.of(year, month), Generations.generationOf(version));
+            });
+        }
+
+        return versions;
+    }
+
+    @Override
+    public long version(int year, int month) {
+        Path version = generations.resolve(getMonthFile(year, month));
+        if (version != null)
+            return Generations.generationOf(version);
+
+        YearArchive archive = readArchive(year);
+
+        return archive != null && archive.months().containsKey(month) ? Generations.generationOf(archive.version()) : -1;
+    }
+
+    @Override
+    public boolean exists(int year, int month) {
+        if (generations.resolve(getMonthFile(year, month)) != null)
+            return true;
+
+        YearArchive archive = readArchive(year);
+
+        return archive != null && archive.months().containsKey(month);
+    }
+
+    @Override
+    public void pin() {
+        try {
+            generations.pin();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void unpin() {
+
+        generations.unpin();
+    }
+
+    /**
+     * Returns the generations holding the files.
+     *
+     * @return the generations of the store
+     */
+    Generations generations() {
+
+        return generations;
+    }
+
+    /**
+     * Packs the months of a closed year into a single archive, in a single commit.
+     * The months stay readable and writable as before.
+     *
+     * @param year a year before the current one
+     *
+     * @throws IllegalArgumentException if the year isn't closed
+     * @throws IOException if the year can't be packed, its months are left as they are then
+     */
+    void archive(int year) throws IOException {
+        Preconditions.checkArgument(year < Time.getCurrentYear());
+
+        generations.transact(latest -> {
+            Map<Path, byte[]> contents = new HashMap<>();
+
+            SortedMap<Integer, List<Transaction>> months = new TreeMap<>();
+            Path archive = getArchiveFile(year);
+            if (generations.resolve(archive, latest) != null)
+                months.putAll(YearArchive.decode(generations.read(archive, latest)));
+
+            for (String name : generations.resolveAll(dir.resolve(Integer.toString(year)), latest).keySet()) {
+                if (!name.matches("\\d+"))
+                    continue;
+
+                int month = Integer.parseInt(name);
+                months.put(month, StorageFormat.decodeMonth(generations.read(getMonthFile(year, month), latest)));
+                contents.put(getMonthFile(year, month), null);
+            }
+
+            // Nothing left to pack
+            if (contents.isEmpty())
+                return contents;
+
+            byte[] packed = YearArchive.encode(months);
+            contents.put(archive, packed);
+            System.out.printf("Archived %s months of %s in %s bytes%n", months.size(), year, packed.length);
+
+            return contents;
+        });
+    }
+
+    /**
+     * Packs all the years before the current one which have month files.
+     */
+    void archiveClosedYears() {
+        for (int year : list(dir)) {
+            if (year < Time.getCurrentYear() && !list(dir.resolve(Integer.toString(year))).isEmpty()) {
+                try {
+                    archive(year);
+                } catch (IOException e) {
+                    System.out.printf("The months of %s can't be archived: %s%n", year, e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the balances and month files as committed at a generation.
+     *
+     * @param generation a generation
+     *
+     * @return path of each file, without generation -> path of its version
+     */
+    SortedMap<Path, Path> getStoredFiles(long generation) {
+        SortedMap<Path, Path> files = new TreeMap<>();
+
+        Path balances = generations.resolveAll(root, generation).get(BALANCES_FILE);
+        if (balances != null)
+            files.put(root.resolve(BALANCES_FILE), balances);
+
+        // Year directories aren't versioned, one listing per year
+        for (int year : list(dir)) {
+            Path yearDir = dir.resolve(Integer.toString(year));
+            generations.resolveAll(yearDir, generation).forEach((name, version) -> {
+                if (name.matches("\\d+") || name.equals(ARCHIVE_FILE))
+                    files.put(yearDir.resolve(name), version);
+            });
+        }
+
+        return files;
+    }
+
+    /**
+     * Replaces stored files in a single commit.
+     *
+     * @param contents path of each file, without generation -> content, {@code null} to delete the file
+     *
+     * @return the months whose content may have changed
+     *
+     * @throws IOException if the files can't be committed, none is replaced then
+     */
+    SortedSet<YearMonth> restore(Map<Path, byte[]> contents) throws IOException {
+        generations.commit(contents);
+
+        SortedSet<YearMonth> months = new TreeSet<>();
+        for (Path file : contents.keySet()) {
+            if (!file.startsWith(dir))
+                continue;
+
+            Path relative = dir.relativize(file);
+            int year = Integer.parseInt(relative.getName(0).toString());
+
+            // An archive holds any month of its year
+            if (relative.getName(1).toString().equals(ARCHIVE_FILE)) {
+                for (int m = 1 ; m <= 12 ; m++)
+                    months.add(YearMonth.of(year, m));
+            } else {
+                months.add(YearMonth.of(year, Integer.parseInt(relative.getName(1).toString())));
+            }
+        }
+
+        return months;
+    }
+
+    /**
+     * Returns the path of the file of the specified month.
+     *
+     * @param year a value
+     * @param month a value
+     *
+     * @return the path to the month file
+     */
+    Path getMonthFile(int year, int month) {
+
+        return dir.resolve(String.format("%s/%s", year, month));
+    }
+
+    /**
+     * Returns the path of the archive of the specified year.
+     *
+     * @param year a value
+     *
+     * @return the path to the archive file
+     */
+    Path getArchiveFile(int year) {
+
+        return dir.resolve(String.format("%s/%s", year, ARCHIVE_FILE));
+    }
+
+    /**
+     * Lists the files or directories of a directory named as integers, as seen by the readers.
+     * Older generations of a month are listed under the name of the month.
+     */
+    private SortedSet<Integer> list(Path directory) {
+        SortedSet<Integer> valid = new TreeSet<>();
+
+        for (String name : generations.list(directory)) {
+            // Filters out non-integer-named files and directories
+            try {
+                valid.add(Integer.parseInt(name));
+            } catch (NumberFormatException ignored) {
+                // Exception ignored
+            }
+        }
+
+        return valid;
+    }
+
+    private boolean isArchived(int year) {
+
+        return generations.resolve(getArchiveFile(year)) != null;
+    }
+
+    /**
+     * Returns the archive of a year, decoded once per version.
+     *
+     * @return the archive, {@code null} if the year isn't archived
+     */
+    private YearArchive readArchive(int year) {
+        long generation = generations.visible();
+        Path file = getArchiveFile(year);
+        Path version = generations.resolve(file, generation);
+        if (version == null)
+            return null;
+
+        YearArchive cached = archives.get(year);
+        if (cached != null && cached.version().equals(version))
+            return cached;
+
+        try {
+            YearArchive archive = new YearArchive(version, YearArchive.decode(generations.read(file, generation)));
+            archives.put(year, archive);
+
+            return archive;
+        } catch (IOException e) {
+            System.out.printf("The archive of %s can't be read: %s%n", year, e.getMessage());
+
+            return null;
+        }
+    }
+
+    /**
+     * Replaces a month in the archive of its year.
+     *
+     * @throws IOException if the archive can't be decoded or committed, it is left as it is then
+     */
+    private void updateArchive(int year, int month, UnaryOperator<List<Transaction>> edit) throws IOException {
+        generations.update(getArchiveFile(year), old -> {
+            SortedMap<Integer, List<Transaction>> months = new TreeMap<>(YearArchive.decode(old));
+            months.put(month, edit.apply(months.getOrDefault(month, List.of())));
+
+            return YearArchive.encode(months);
+        });
+    }
+
+    private static List<Transaction> concat(List<Transaction> a, List<Transaction> b) {
+        List<Transaction> c = new ArrayList<>(a);
+        c.addAll(b);
+
+        return c;
+    }
+
+    /**
+     * Appends rows to a month file, keeping its version. A new file gets the current version.
+     */
+    private static byte[] append(byte[] file, byte[] rows) {
+
+        return StorageFormat.concat(file.length == 0 ? StorageFormat.header(StorageFormat.Kind.MONTH) : file, rows);
+    }
+
+
+    /**
+     * A decoded month file.
+     *
+     * @param version the version it was read from
+     * @param txs the transactions, in file order
+     */
+    private record CachedMonth(Path version, List<Transaction> txs) {}
+}
@@ -0,0 +1,103 @@
+/*  Accountable: a personal spending monitoring program
+    Copyright (C) 2023  Artur Yukhanov
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package com.chomusuke.logic;
+
+/**
+ * Provides 64-bit content fingerprints of transactions.
+ * <br>
+ * Two transactions with the same name, value, types and account
+ * share the same content fingerprint. The positional fingerprint
+ * also includes the rank of the transaction among the transactions
+ * of the month with the same content, so that legitimate repetitions
+ * (two identical bills in a month) stay distinguishable.
+ */
+public final class Fingerprint {
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    /**
+     * Don't let anyone instantiate this class.
+     */
+    private Fingerprint() {
+    }
+
+    /**
+     * Computes the content fingerprint of a transaction.
+     *
+     * @param t a transaction
+     *
+     * @return the fingerprint
+     */
+    public static long of(Transaction t) {
+        long h = FNV_OFFSET;
+
+        String name = t.name();
+        for (int i = 0 ; i < name.length() ; i++) {
+            h ^= name.charAt(i);
+            h *= FNV_PRIME;
+        }
+        h ^= t.to() & 0xFF;
+        h *= FNV_PRIME;
+        h ^= t.packTypes() & 0xFF;
+        h *= FNV_PRIME;
+        h ^= Float.floatToIntBits(t.value());
+        h *= FNV_PRIME;
+
+        return mix(h);
+    }
+
+    /**
+     * Computes the positional fingerprint of a transaction.
+     *
+     * @param t a transaction
+     * @param position the number of transactions with the same content
+     *                 that come before {@code t} in its month
+     *
+     * @return the fingerprint
+     */
+    public static long of(Transaction t, int position) {
+
+        return of(of(t), position);
+    }
+
+    /**
+     * Computes a positional fingerprint from a content fingerprint.
+     *
+     * @param content a content fingerprint
+     * @param position a position
+     *
+     * @return the fingerprint
+     */
+    public static long of(long content, int position) {
+
+        return mix(content + (position + 1) * GOLDEN_GAMMA);
+    }
+
+    /**
+     * SplitMix64 finalizer, spreads the bits of {@code h}.
+     */
+    private static long mix(long h) {
+        h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9L;
+        h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL;
+
+        return h ^ (h >>> 31);
+    }
+}
@@ -0,0 +1,392 @@
+/*  Accountable: a personal spending monitoring program
+    Copyright (C) 2023  Artur Yukhanov
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package com.chomusuke.logic;
+
+import java.time.YearMonth;
+import java.util.*;
+import java.util.stream.IntStream;
+
+import com.chomusuke.util.Preconditions;
+
+import static com.chomusuke.logic.Transaction.TransactionType;
+import static com.chomusuke.logic.Transaction.ValueType;
+
+/**
+ * Provides projections of the account balances over future months.
+ * <br>
+ * The last recorded month is used as the template of every future month:
+ * its rows are applied with the same rules as {@code TransactionList.getValues}.
+ * The revenues and the absolute bills and budgets of each simulated month are
+ * scaled by factors drawn from the recent months, relative to the template.
+ * <br>
+ * Scenarios are simulated in batches. Each batch keeps one primitive array
+ * per quantity with one slot per scenario, so that every step of the
+ * simulation is a flat loop over the batch, which the JIT vectorizes.
+ * Batches run in parallel.
+ */
+public class Forecast {
+
+    public static final int MIN_MONTHS = 12;
+    public static final int MAX_MONTHS = 120;
+    public static final int DEFAULT_SCENARIOS = 2000;
+
+    private static final int HISTORY_MONTHS = 12;
+    private static final int BATCH_SIZE = 256;
+
+    // Percentiles of the confidence bands
+    private static final double LOW = 0.1;
+    private static final double MEDIAN = 0.5;
+    private static final double HIGH = 0.9;
+
+    // The template month, one entry per row
+    private final byte[] types;
+    private final byte[] valueTypes;
+    private final byte[] to;
+    private final float[] amounts;
+
+    // Observed month totals, relative to the template
+    private final float[] revenueFactors;
+    private final float[] expenseFactors;
+
+    private final boolean carryOver;
+    private final float initialCarry;
+
+    /**
+     * Constructor.
+     *
+     * @param template the rows applied every month, in {@code Storage.read} order
+     * @param history the recent months, the template included
+     * @param carryOver whether remainders are carried over to the following month
+     * @param carry the funds carried over to the first simulated month, ignored if {@code carryOver} is {@code false}
+     */
+    public Forecast(List<Transaction> template, List<List<Transaction>> history, boolean carryOver, float carry) {
+        int n = template.size();
+        types = new byte[n];
+        valueTypes = new byte[n];
+        to = new byte[n];
+        amounts = new float[n];
+
+        for (int i = 0 ; i < n ; i++) {
+            Transaction t = template.get(i);
+            types[i] = (byte) t.transactionType().ordinal();
+            valueTypes[i] = (byte) t.valueType().ordinal();
+            to[i] = t.to();
+            amounts[i] = t.value();
+        }
+
+        float revenue = revenue(template);
+        float expenses = expenses(template);
+        revenueFactors = new float[Math.max(history.size(), 1)];
+        expenseFactors = new float[Math.max(history.size(), 1)];
+        Arrays.fill(revenueFactors, 1);
+        Arrays.fill(expenseFactors, 1);
+
+        for (int i = 0 ; i < history.size() ; i++) {
+            if (revenue > 0)
+                revenueFactors[i] = revenue(history.get(i)) / revenue;
+            if (expenses > 0)
+                expenseFactors[i] = expenses(history.get(i)) / expenses;
+        }
+
+        this.carryOver = carryOver;
+        this.initialCarry = carryOver ? carry : 0;
+    }
+
+    /**
+     * Builds a forecast from the months recorded up to the specified one.
+     *
+     * @param until the last month to take into account
+     *
+     * @return a forecast, or {@code null} if no month is recorded
+     */
+    public static Forecast ofHistory(YearMonth until) {
+        List<YearMonth> dates = Storage.getAvailableDates().stream()
+                .filter(ym -> !ym.isAfter(until))
+                .toList();
+
+        // Most recent first
+        List<List<Transaction>> history = new ArrayList<>();
+        for (int i = dates.size() - 1 ; i >= 0 && history.size() < HISTORY_MONTHS ; i--) {
+            List<Transaction> txs = Storage.read(dates.get(i).getYear(), dates.get(i).getMonthValue());
+            if (!txs.isEmpty())
+                history.add(txs);
+        }
+
+        if (history.isEmpty())
+            return null;
+
+        // The first simulated month receives the remainder of the last recorded one
+        YearMonth next = until.plusMonths(1);
+        boolean carryOver = CarryOver.get().isEnabled();
+
+        return new Forecast(history.get(0), history, carryOver, CarryOver.get().getCarry(next.getYear(), next.getMonthValue()));
+    }
+
+    /**
+     * Simulates the specified number of future months.
+     *
+     * @param balances the current balances, deleted accounts are skipped
+     * @param months the number of months, between {@code MIN_MONTHS} and {@code MAX_MONTHS}
+     * @param scenarios the number of scenarios
+     * @param seed the seed of the random draws
+     *
+     * @return the projection of each account
+     */
+    public Map<Byte, Projection> run(Map<Byte, Account> balances, int months, int scenarios, long seed) {
+        Preconditions.checkArgument(months >= MIN_MONTHS && months <= MAX_MONTHS);
+        Preconditions.checkArgument(scenarios > 0);
+
+        byte[] ids = new byte[balances.size()];
+        double[] start = new double[ids.length];
+        double[] objectives = new double[ids.length];
+        int a = 0;
+        for (Map.Entry<Byte, Account> e : balances.entrySet()) {
+            if (e.getValue().getBalance() == -1)
+                continue;
+
+            ids[a] = e.getKey();
+            start[a] = e.getValue().getBalance();
+            objectives[a] = e.getValue().getObjective();
+            a++;
+        }
+        int accountCount = a;
+
+        // Row -> index of its account, -1 if it moves no tracked account
+        int[] rowAccount = new int[to.length];
+        for (int i = 0 ; i < to.length ; i++) {
+            rowAccount[i] = -1;
+            for (int j = 0 ; j < accountCount ; j++) {
+                if (types[i] == TransactionType.SAVINGS.ordinal() && ids[j] == to[i])
+                    rowAccount[i] = j;
+            }
+        }
+
+        // Account -> month -> scenario
+        float[][][] paths = new float[accountCount][months][scenarios];
+        // Account -> scenario -> first month reaching the objective, -1 if never
+        int[][] reached = new int[accountCount][scenarios];
+
+        long startTime = System.nanoTime();
+        SplittableRandom root = new SplittableRandom(seed);
+        int batchCount = (scenarios + BATCH_SIZE - 1) / BATCH_SIZE;
+        SplittableRandom[] randoms = new SplittableRandom[batchCount];
+        for (int b = 0 ; b < batchCount ; b++)
+            randoms[b] = root.split();
+
+        IntStream.range(0, batchCount).parallel().forEach(b -> {
+            int from = b * BATCH_SIZE;
+            int size = Math.min(BATCH_SIZE, scenarios - from);
+            simulate(randoms[b], from, size, months, accountCount, start, objectives, rowAccount, paths, reached);
+        });
+
+        Map<Byte, Projection> projections = new HashMap<>();
+        for (int j = 0 ; j < accountCount ; j++)
+            projections.put(ids[j], Projection.of(paths[j], reached[j], objectives[j]));
+
+        System.out.printf("Simulated %s scenarios over %s months in %s ms%n", scenarios, months, (System.nanoTime() - startTime) / 1_000_000);
+
+        return projections;
+    }
+
+    /**
+     * Simulates a batch of scenarios.
+     */
+    private void simulate(SplittableRandom random, int from, int size, int months, int accountCount,
+                          double[] start, double[] objectives, int[] rowAccount,
+                          float[][][] paths, int[][] reached) {
+        float[] revenueFactor = new float[size];
+        float[] expenseFactor = new float[size];
+        float[] total = new float[size];
+        float[] used = new float[size];
+        float[] carry = new float[size];
+        float[] value = new float[size];
+        Arrays.fill(carry, initialCarry);
+        double[][] balance = new double[accountCount][size];
+
+        for (int j = 0 ; j < accountCount ; j++) {
+            Arrays.fill(balance[j], start[j]);
+            Arrays.fill(reached[j], from, from + size, objectives[j] > 0 && start[j] >= objectives[j] ? 0 : -1);
+        }
+
+        for (int m = 0 ; m < months ; m++) {
+            for (int s = 0 ; s < size ; s++) {
+                revenueFactor[s] = revenueFactors[random.nextInt(revenueFactors.length)];
+                expenseFactor[s] = expenseFactors[random.nextInt(expenseFactors.length)];
+            }
+
+            Arrays.fill(total, 0);
+            for (int s = 0 ; s < size ; s++)
+                used[s] = -carry[s];
+
+            for (int i = 0 ; i < amounts.length ; i++) {
+                rowValues(i, size, revenueFactor, expenseFactor, total, used, value);
+
+                if (types[i] == TransactionType.REVENUE.ordinal()) {
+                    for (int s = 0 ; s < size ; s++)
+                        total[s] += value[s];
+                } else {
+                    for (int s = 0 ; s < size ; s++)
+                        used[s] += value[s];
+                }
+
+                // Same sign as Account.ModMap
+                if (rowAccount[i] >= 0) {
+                    double[] b = balance[rowAccount[i]];
+                    for (int s = 0 ; s < size ; s++)
+                        b[s] += value[s];
+                }
+            }
+
+            if (carryOver) {
+                for (int s = 0 ; s < size ; s++)
+                    carry[s] = total[s] - used[s];
+            }
+
+            for (int j = 0 ; j < accountCount ; j++) {
+                float[] path = paths[j][m];
+                double[] b = balance[j];
+                for (int s = 0 ; s < size ; s++)
+                    path[from + s] = (float) b[s];
+
+                if (objectives[j] > 0) {
+                    int[] r = reached[j];
+                    for (int s = 0 ; s < size ; s++) {
+                        if (r[from + s] < 0 && b[s] >= objectives[j])
+                            r[from + s] = m + 1;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes the value of a template row in each scenario of a batch,
+     * following {@code Transaction.value}: computed values are rounded to cents.
+     */
+    private void rowValues(int i, int size, float[] revenueFactor, float[] expenseFactor,
+                           float[] total, float[] used, float[] value) {
+        float amount = amounts[i];
+
+        switch (ValueType.values()[valueTypes[i]]) {
+            case ABSOLUTE -> {
+                if (types[i] == TransactionType.REVENUE.ordinal()) {
+                    for (int s = 0 ; s < size ; s++)
+                        value[s] = amount * revenueFactor[s];
+                } else if (types[i] == TransactionType.SAVINGS.ordinal()) {
+                    Arrays.fill(value, 0, size, amount);
+                } else {
+                    for (int s = 0 ; s < size ; s++)
+                        value[s] = amount * expenseFactor[s];
+                }
+            }
+            case TOTAL -> {
+                for (int s = 0 ; s < size ; s++)
+                    value[s] = Math.round(Math.max(amount / 100 * total[s], 0) * 100) / 100f;
+            }
+            case REMAINDER -> {
+                for (int s = 0 ; s < size ; s++)
+                    value[s] = Math.round(Math.max((total[s] - used[s]) * amount / 100, 0) * 100) / 100f;
+            }
+            case ALL -> {
+                for (int s = 0 ; s < size ; s++)
+                    value[s] = Math.round(Math.max(total[s] - used[s], 0) * 100) / 100f;
+            }
+        }
+    }
+
+    private static float revenue(List<Transaction> txs) {
+        float s = 0;
+        for (Transaction t : txs) {
+            if (t.transactionType() == TransactionType.REVENUE && t.valueType() == ValueType.ABSOLUTE)
+                s += t.value();
+        }
+
+        return s;
+    }
+
+    private static float expenses(List<Transaction> txs) {
+        float s = 0;
+        for (Transaction t : txs) {
+            if ((t.transactionType() == TransactionType.BILL || t.transactionType() == TransactionType.BUDGET)
+                    && t.valueType() == ValueType.ABSOLUTE)
+                s += t.value();
+        }
+
+        return s;
+    }
+
+
+    /**
+     * This record provides the projection of an account.
+     *
+     * @param low the 10th percentile of the balance at the end of each month
+     * @param median the median balance at the end of each month
+     * @param high the 90th percentile of the balance at the end of each month
+     * @param etaLow the number of months needed to reach the objective in the 10% fastest scenarios,
+     *               -1 if not reached within the horizon
+     * @param eta the median number of months needed to reach the objective, -1 if not reached
+     * @param etaHigh the number of months needed in the 10% slowest scenarios, -1 if not reached
+     * @param probability the share of the scenarios reaching the objective within the horizon
+     */
+    public record Projection(double[] low, double[] median, double[] high,
+                             int etaLow, int eta, int etaHigh, double probability) {
+
+        private static Projection of(float[][] paths, int[] reached, double objective) {
+            int months = paths.length;
+            double[] low = new double[months];
+            double[] median = new double[months];
+            double[] high = new double[months];
+
+            for (int m = 0 ; m < months ; m++) {
+                float[] sorted = paths[m].clone();
+                Arrays.sort(sorted);
+                low[m] = percentile(sorted, LOW);
+                median[m] = percentile(sorted, MEDIAN);
+                high[m] = percentile(sorted, HIGH);
+            }
+
+            if (objective <= 0)
+                return new Projection(low, median, high, -1, -1, -1, 0);
+
+            // Scenarios never reaching the objective are sorted last
+            int[] etas = new int[reached.length];
+            int count = 0;
+            for (int i = 0 ; i < reached.length ; i++) {
+                etas[i] = reached[i] < 0 ? Integer.MAX_VALUE : reached[i];
+                if (reached[i] >= 0)
+                    count++;
+            }
+            Arrays.sort(etas);
+
+            return new Projection(low, median, high,
+                    eta(etas, LOW), eta(etas, MEDIAN), eta(etas, HIGH),
+                    (double) count / reached.length);
+        }
+
+        private static double percentile(float[] sorted, double p) {
+
+            return sorted[(int) Math.min(Math.round(p * (sorted.length - 1)), sorted.length - 1)];
+        }
+
+        private static int eta(int[] sorted, double p) {
+            int v = sorted[(int) Math.round(p * (sorted.length - 1))];
+
+            return v == Integer.MAX_VALUE ? -1 : v;
+        }
+    }
+}
@@ -0,0 +1,760 @@
+/*  Accountable: a personal spending monitoring program
+    Copyright (C) 2023  Artur Yukhanov
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package com.chomusuke.logic;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Provides multi-version storage of files, shared by several processes.
+ * <br>
+ * A file is never modified in place: each commit writes new versions of
+ * its files, named {@code <name>.<generation>}, then moves the commit pointer
+ * to the new generation. A file without generation is generation 0. Readers
+ * read the pointer once, and see for each file its newest version up to that
+ * generation, so they never see a commit halfway.
+ * <br>
+ * Writers of all processes are serialized by an exclusive lock on the lock
+ * file. Readers don't lock it, so they never block the writer. They take a
+ * shared lock on the version they read, and old versions are only deleted
+ * once they are no longer locked and were superseded for a while. A process
+ * pinned to a generation holds a lease naming it, and the versions seen at
+ * that generation are kept until the lease is released.
+ * <br>
+ * Versions are written with their checksums and flushed to the disk before
+ * being renamed, so a crash leaves either the old or the new version. A
+ * version failing its checksums is reported, and the previous version is
+ * read instead: the version preceding the latest one is always kept.
+ * <br>
+ * A file is deleted by committing an empty version, which a checksummed
+ * version can't be.
+ */
+final class Generations {
+
+    private static final String COMMIT_FILE = ".commit";
+    private static final String LOCK_FILE = ".lock";
+    private static final String PINS_DIR = ".pins";
+    private static final String TEMP_EXTENSION = ".tmp";
+    private static final long GRACE_PERIOD_MS = 60_000;
+
+    private static final Pattern VERSION = Pattern.compile("^(.+)\\.(\\d+)$");
+
+    private final Path root;
+    // File locks are held by the process, so the threads of the process are serialized first
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private volatile long pinned = -1;
+    // Lease of the pinned generation, locked as long as this process is pinned
+    private FileChannel lease = null;
+    private Path leaseFile = null;
+    private volatile long lastCommit = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param root the directory holding the commit pointer
+     */
+    Generations(Path root) {
+
+        this.root = root;
+    }
+
+    /**
+     * Returns the generation seen by the readers of this process:
+     * the pinned one, or the latest committed one.
+     *
+     * @return a generation
+     */
+    long visible() {
+        long p = pinned;
+
+        return p >= 0 ? p : committed();
+    }
+
+    /**
+     * Reads the commit pointer, for the readers: generation 0 is seen if it can't be read.
+     *
+     * @return the latest committed generation, 0 if nothing was committed
+     */
+    long committed() {
+        try {
+            return readCommitted();
+        } catch (IOException e) {
+            e.printStackTrace();
+
+            return 0;
+        }
+    }
+
+    /**
+     * Reads the commit pointer, failing if it exists but can't be read.
+     * Writers build on it, and must not move it back.
+     *
+     * @return the latest committed generation, 0 if nothing was committed
+     *
+     * @throws IOException if the pointer can't be read, or is truncated
+     */
+    private long readCommitted() throws IOException {
+        byte[] pointer;
+        try {
+            pointer = Files.readAllBytes(root.resolve(COMMIT_FILE));
+        } catch (NoSuchFileException e) {
+            return 0;
+        }
+
+        if (pointer.length != Long.BYTES)
+            throw new IOException(String.format("The commit pointer holds %s bytes instead of %s", pointer.length, Long.BYTES));
+
+        return ByteBuffer.wrap(pointer).getLong();
+    }
+
+    /**
+     * Returns the time of the latest commit of this process.
+     *
+     * @return a time in milliseconds, 0 if nothing was committed
+     */
+    long lastCommit() {
+
+        return lastCommit;
+    }
+
+    /**
+     * Makes the readers of this process see the latest committed generation,
+     * until {@code unpin} is called, whatever is committed meanwhile.
+     * <br>
+     * The generation is written to a lease which the writers of all the
+     * processes read before deleting old versions.
+     *
+     * @return the pinned generation
+     *
+     * @throws IOException if the lease can't be written, the readers aren't pinned then
+     */
+    synchronized long pin() throws IOException {
+        unpin();
+
+        Path file = root.resolve(PINS_DIR).resolve(Long.toString(ProcessHandle.current().pid()));
+        Files.createDirectories(file.getParent());
+
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            // The version seen now is the latest one, it can't be collected before the lease is written
+            channel.lock(Long.BYTES, 1, false);
+            long generation = readCommitted();
+            channel.truncate(0);
+            channel.write(ByteBuffer.allocate(Long.BYTES).putLong(generation).flip(), 0);
+
+            lease = channel;
+            leaseFile = file;
+            pinned = generation;
+
+            return generation;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Makes the readers of this process see the latest committed generation again.
+     */
+    synchronized void unpin() {
+        pinned = -1;
+        if (lease == null)
+            return;
+
+        try {
+            lease.close();
+            Files.deleteIfExists(leaseFile);
+        } catch (IOException e) {
+            // An unlocked lease is deleted by the next writer
+            e.printStackTrace();
+        }
+        lease = null;
+        leaseFile = null;
+    }
+
+    /**
+     * Returns the version of a file seen by the readers.
+     *
+     * @param file the path of the file, without generation
+     *
+     * @return the path of the version, {@code null} if the file doesn't exist
+     */
+    Path resolve(Path file) {
+
+        return resolve(file, visible());
+    }
+
+    /**
+     * Opens the version of a file seen by the readers, once its checksums are verified.
+     *
+     * @param file the path of the file, without generation
+     *
+     * @return a stream over the content of the version
+     *
+     * @throws FileNotFoundException if the file doesn't exist
+     * @throws Checksums.CorruptionException if no version of the file passes its checksums
+     * @throws IOException if the version can't be read
+     */
+    InputStream open(Path file) throws IOException {
+
+        return new ByteArrayInputStream(readVerified(file, visible()));
+    }
+
+    /**
+     * Reads the content of a file as committed at a generation, once its checksums are verified.
+     *
+     * @param file the path of the file, without generation
+     * @param generation a generation
+     *
+     * @return the content
+     *
+     * @throws FileNotFoundException if the file didn't exist at that generation
+     * @throws Checksums.CorruptionException if no version of the file passes its checksums
+     * @throws IOException if the version can't be read
+     */
+    byte[] read(Path file, long generation) throws IOException {
+
+        return readVerified(file, generation);
+    }
+
+    /**
+     * Reads the content of a version, without falling back to an older version.
+     *
+     * @param version the path of a version
+     *
+     * @return the content
+     *
+     * @throws Checksums.CorruptionException if the version doesn't pass its checksums
+     * @throws IOException if the version can't be read
+     */
+    byte[] readVersion(Path version) throws IOException {
+
+        return Encryption.get().unseal(readLocked(version));
+    }
+
+    /**
+     * Verifies the checksums of the version of a file seen by the readers,
+     * without falling back to an older version.
+     *
+     * @param file the path of the file, without generation
+     *
+     * @return the verified version, {@code null} if the file doesn't exist
+     *
+     * @throws Checksums.CorruptionException if the version doesn't pass its checksums
+     * @throws IOException if the version can't be read
+     */
+    Verified verify(Path file) throws IOException {
+        Path version = resolve(file);
+        if (version == null)
+            return null;
+
+        byte[] bytes = readLocked(version);
+        try {
+            Encryption.get().unseal(bytes);
+        } catch (Checksums.CorruptionException e) {
+            throw new Checksums.CorruptionException(String.format("%s: %s", version, e.getMessage()));
+        }
+
+        return new Verified(version, bytes.length, Checksums.isSealed(bytes) || Encryption.isEncrypted(bytes));
+    }
+
+    /**
+     * Commits new contents of some files.
+     *
+     * @param contents path of each file, without generation -> new content, {@code null} to delete the file
+     *
+     * @throws IOException if the commit failed, nothing is committed then
+     */
+    void commit(Map<Path, byte[]> contents) throws IOException {
+
+        transact(latest -> contents);
+    }
+
+    /**
+     * Commits the new content of a file computed from its latest committed content.
+     *
+     * @param file the path of the file, without generation
+     * @param update latest content, empty if the file doesn't exist -> new content
+     *
+     * @throws IOException if the update or the commit failed, nothing is committed then
+     */
+    void update(Path file, Update update) throws IOException {
+        transact(latest -> {
+            byte[] old;
+            try {
+                old = readVerified(file, latest);
+            } catch (FileNotFoundException e) {
+                old = new byte[0];
+            }
+
+            return Map.of(file, update.apply(old));
+        });
+    }
+
+    /**
+     * Commits new contents of some files computed from the latest committed generation.
+     * No other commit, of any process, happens in between. Nothing is committed
+     * if there is no new content.
+     *
+     * @param changes the computation of the new contents
+     *
+     * @throws IOException if the commit failed, nothing is committed then
+     */
+    @SuppressWarnings("try")
+    void transact(Changes changes) throws IOException {
+        writeLock.lock();
+        try {
+            Files.createDirectories(root);
+
+            // The lock only needs to be held, it is released with the channel
+            try (FileChannel lockChannel = FileChannel.open(root.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                 FileLock ignored = lockChannel.lock()) {
+
+                long generation = readCommitted() + 1;
+                Map<Path, byte[]> all = changes.at(generation - 1);
+                if (all.isEmpty())
+                    return;
+
+                List<Path> written = new ArrayList<>();
+                try {
+                    for (Map.Entry<Path, byte[]> e : all.entrySet()) {
+                        Path version = version(e.getKey(), generation);
+                        written.add(version);
+                        writeDurably(version, e.getValue() == null ? new byte[0] : Encryption.get().seal(e.getValue()));
+                    }
+
+                    // The commit itself
+                    writeDurably(root.resolve(COMMIT_FILE), ByteBuffer.allocate(Long.BYTES).putLong(generation).array());
+                } catch (IOException | RuntimeException e) {
+                    // The next commit reuses the generation, it must not find these versions
+                    for (Path version : written)
+                        Files.deleteIfExists(version);
+                    throw e;
+                }
+
+                Set<Long> pins = pins();
+                for (Path file : all.keySet())
+                    collect(file, generation, pins);
+
+                lastCommit = System.currentTimeMillis();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Deletes all the versions of a file older than the latest committed one,
+     * without waiting for the grace period. Versions held by a reader, or seen
+     * by a pinned process, are kept.
+     *
+     * @param file the path of the file, without generation
+     */
+    void purge(Path file) {
+        TreeMap<Long, Path> versions = versions(file);
+        if (versions.isEmpty())
+            return;
+
+        Set<Long> pins = pins();
+        for (Map.Entry<Long, Path> v : versions.headMap(versions.lastKey(), false).entrySet()) {
+            if (isPinned(versions, v.getKey(), pins))
+                continue;
+
+            Path p = v.getValue();
+            try (FileChannel channel = FileChannel.open(p, StandardOpenOption.WRITE);
+                 FileLock lock = tryLock(channel, false)) {
+                if (lock != null)
+                    Files.delete(p);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Lists the files of a directory seen by the readers.
+     *
+     * @param dir a directory
+     *
+     * @return the names of the files, without generation
+     */
+    Set<String> list(Path dir) {
+
+        return resolveAll(dir, visible()).keySet();
+    }
+
+    /**
+     * Returns the versions of all the files of a directory at a generation,
+     * listing the directory once.
+     *
+     * @param dir a directory
+     * @param generation a generation
+     *
+     * @return name of each file, without generation -> path of its version
+     */
+    SortedMap<String, Path> resolveAll(Path dir, long generation) {
+        Map<String, TreeMap<Long, Path>> versions = new HashMap<>();
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path p : stream) {
+                String name = p.getFileName().toString();
+                Matcher m = VERSION.matcher(name);
+
+                if (m.matches())
+                    versions.computeIfAbsent(m.group(1), k -> new TreeMap<>()).put(Long.parseLong(m.group(2)), p);
+                else if (!name.endsWith(TEMP_EXTENSION))
+                    versions.computeIfAbsent(name, k -> new TreeMap<>()).put(0L, p);
+            }
+        } catch (NoSuchFileException ignored) {
+            // Exception ignored
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        SortedMap<String, Path> resolved = new TreeMap<>();
+        versions.forEach((name, v) -> {
+            Map.Entry<Long, Path> e = v.floorEntry(generation);
+            if (e != null && !isDeletion(e.getKey(), e.getValue()))
+                resolved.put(name, e.getValue());
+        });
+
+        return resolved;
+    }
+
+    /**
+     * Returns the newest version of a file up to a generation, as {@code resolveAll} does.
+     *
+     * @param file the path of the file, without generation
+     * @param generation a generation
+     *
+     * @return the path of the version, {@code null} if the file doesn't exist at that generation
+     */
+    Path resolve(Path file, long generation) {
+        Map.Entry<Long, Path> e = versions(file).floorEntry(generation);
+
+        return e == null || isDeletion(e.getKey(), e.getValue()) ? null : e.getValue();
+    }
+
+    /**
+     * Reads the newest version of a file up to a generation passing its checksums.
+     */
+    private static byte[] readVerified(Path file, long generation) throws IOException {
+        TreeMap<Long, Path> versions = versions(file);
+        if (versions.isEmpty())
+            throw new FileNotFoundException(file.toString());
+
+        // Only created later, the versions seen by pinned readers are kept
+        NavigableMap<Long, Path> candidates = versions.headMap(generation, true);
+
+        Checksums.CorruptionException corruption = null;
+        for (Map.Entry<Long, Path> candidate : candidates.descendingMap().entrySet()) {
+            Path version = candidate.getValue();
+            if (isDeletion(candidate.getKey(), version))
+                break;
+
+            try {
+                byte[] content = Encryption.get().unseal(readLocked(version));
+                if (corruption != null)
+                    System.out.printf("Read %s instead%n", version.getFileName());
+
+                return content;
+            } catch (Checksums.CorruptionException e) {
+                System.out.printf("%s is corrupted: %s%n", version, e.getMessage());
+                if (corruption == null)
+                    corruption = new Checksums.CorruptionException(String.format("%s: %s", version, e.getMessage()));
+            } catch (NoSuchFileException e) {
+                // Collected meanwhile, an older version is read
+            }
+        }
+
+        if (corruption != null)
+            throw corruption;
+        throw new FileNotFoundException(file.toString());
+    }
+
+    /**
+     * Reads a version, holding a shared lock on it so that it isn't collected meanwhile.
+     */
+    @SuppressWarnings("try")
+    private static byte[] readLocked(Path version) throws IOException {
+        try (FileChannel channel = FileChannel.open(version, StandardOpenOption.READ);
+             FileLock ignored = tryLock(channel, true)) {
+
+            ByteBuffer bytes = ByteBuffer.allocate((int) channel.size());
+            while (bytes.hasRemaining() && channel.read(bytes) >= 0);
+
+            return bytes.position() == bytes.capacity() ? bytes.array() : Arrays.copyOf(bytes.array(), bytes.position());
+        }
+    }
+
+    /**
+     * Lists the versions of a file, by generation.
+     */
+    private static TreeMap<Long, Path> versions(Path file) {
+        TreeMap<Long, Path> versions = new TreeMap<>();
+        String name = file.getFileName().toString();
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(file.getParent(), name + "*")) {
+            for (Path p : stream) {
+                String n = p.getFileName().toString();
+                if (n.equals(name)) {
+                    versions.put(0L, p);
+                    continue;
+                }
+
+                Matcher m = VERSION.matcher(n);
+                if (m.matches() && m.group(1).equals(name))
+                    versions.put(Long.parseLong(m.group(2)), p);
+            }
+        } catch (NoSuchFileException ignored) {
+            // Exception ignored
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        return versions;
+    }
+
+    /**
+     * Deletes the versions of a file superseded for longer than the grace period,
+     * unless a reader still holds them or a pinned process sees them. The version
+     * preceding the latest one is kept, in case the latest one gets damaged.
+     */
+    private static void collect(Path file, long generation, Set<Long> pins) {
+        TreeMap<Long, Path> versions = versions(file);
+        long now = System.currentTimeMillis();
+
+        Long newer = generation;
+        for (Long g : versions.headMap(generation, false).descendingKeySet()) {
+            Path p = versions.get(g);
+            try {
+                if (!newer.equals(generation) && !isPinned(versions, g, pins) && now - Files.getLastModifiedTime(versions.get(newer)).toMillis() > GRACE_PERIOD_MS) {
+                    try (FileChannel channel = FileChannel.open(p, StandardOpenOption.WRITE);
+                         FileLock lock = tryLock(channel, false)) {
+                        if (lock != null)
+                            Files.delete(p);
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            newer = g;
+        }
+    }
+
+    /**
+     * Returns the generations the running processes are pinned to.
+     * Leases left by ended processes are deleted.
+     */
+    private Set<Long> pins() {
+        Set<Long> pins = new HashSet<>();
+        List<Path> released = new ArrayList<>();
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(root.resolve(PINS_DIR))) {
+            for (Path p : stream) {
+                try (FileChannel channel = FileChannel.open(p, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    ByteBuffer generation = ByteBuffer.allocate(Long.BYTES);
+                    while (generation.hasRemaining() && channel.read(generation) >= 0);
+
+                    // An empty lease is being written
+                    if (generation.hasRemaining())
+                        continue;
+
+                    if (isHeld(channel))
+                        pins.add(generation.flip().getLong());
+                    else
+                        released.add(p);
+                }
+            }
+        } catch (NoSuchFileException ignored) {
+            // Exception ignored
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        for (Path p : released) {
+            try {
+                Files.deleteIfExists(p);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        return pins;
+    }
+
+    /**
+     * Tells whether the process which wrote a lease still holds it.
+     * The lock is taken past the generation, which stays readable on every platform.
+     */
+    private static boolean isHeld(FileChannel lease) throws IOException {
+        try {
+            // Released with the channel
+            return lease.tryLock(Long.BYTES, 1, false) == null;
+        } catch (OverlappingFileLockException e) {
+            // Held by this process
+            return true;
+        }
+    }
+
+    /**
+     * Tells whether a version is the one a pinned process sees.
+     */
+    private static boolean isPinned(TreeMap<Long, Path> versions, long generation, Set<Long> pins) {
+        for (long pin : pins) {
+            Long seen = versions.floorKey(pin);
+            if (seen != null && seen == generation)
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Tells whether a version marks its file as deleted. Files written
+     * before generations existed may be empty, but they are generation 0.
+     */
+    private static boolean isDeletion(long generation, Path version) {
+        try {
+            return generation > 0 && Files.size(version) == 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static FileLock tryLock(FileChannel channel, boolean shared) {
+        try {
+            return channel.tryLock(0, Long.MAX_VALUE, shared);
+        } catch (OverlappingFileLockException | IOException e) {
+            // Held by another thread of this process
+            return null;
+        }
+    }
+
+    /**
+     * Returns the generation of a version.
+     *
+     * @param version the path of a version
+     *
+     * @return the generation, 0 for a file without generation
+     */
+    static long generationOf(Path version) {
+        Matcher m = VERSION.matcher(version.getFileName().toString());
+
+        return m.matches() ? Long.parseLong(m.group(2)) : 0;
+    }
+
+    private static Path version(Path file, long generation) {
+
+        return file.resolveSibling(String.format("%s.%s", file.getFileName(), generation));
+    }
+
+    /**
+     * Writes a file under a temporary name, flushes it to the disk, then renames it.
+     * After a crash, the file holds either its old or its new content.
+     *
+     * @param file the path of the file
+     * @param content the new content
+     *
+     * @throws IOException if the file can't be written
+     */
+    static void writeDurably(Path file, byte[] content) throws IOException {
+        Files.createDirectories(file.getParent());
+
+        Path temp = file.resolveSibling(file.getFileName() + TEMP_EXTENSION);
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer bytes = ByteBuffer.wrap(content);
+            while (bytes.hasRemaining())
+                channel.write(bytes);
+
+            // The content must be on the disk before the rename can be
+            channel.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        // Makes the rename itself durable, directories can't be opened on every platform
+        try (FileChannel dir = FileChannel.open(file.getParent(), StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (IOException ignored) {
+            // Exception ignored
+        }
+    }
+
+
+    /**
+     * Computes the new contents of a commit.
+     */
+    @FunctionalInterface
+    interface Changes {
+
+        /**
+         * Computes the new contents.
+         *
+         * @param latest the latest committed generation
+         *
+         * @return path of each file, without generation -> new content, {@code null} to delete the file
+         *
+         * @throws IOException if a file can't be read
+         */
+        Map<Path, byte[]> at(long latest) throws IOException;
+    }
+
+    /**
+     * Computes the new content of a file.
+     */
+    @FunctionalInterface
+    interface Update {
+
+        /**
+         * Computes the new content.
+         *
+         * @param latest the latest committed content, empty if the file doesn't exist
+         *
+         * @return the new content
+         *
+         * @throws IOException if the latest content can't be decoded
+         */
+        byte[] apply(byte[] latest) throws IOException;
+    }
+
+    /**
+     * A version whose checksums were verified.
+     *
+     * @param version the path of the version
+     * @param size the size of the version, in bytes
+     * @param sealed false if the version was written without checksums nor encryption
+     */
+    record Verified(Path version, long size, boolean sealed) {}
+}
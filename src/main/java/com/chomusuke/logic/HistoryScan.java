@@ -0,0 +1,90 @@
+/*  Accountable: a personal spending monitoring program
+    Copyright (C) 2023  Artur Yukhanov
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package com.chomusuke.logic;
+
+import java.time.YearMonth;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Provides the pruning of the months before a scan over the whole history.
+ * <br>
+ * The zone map of each month is consulted first, so that only the months
+ * that may contain matching rows are decoded.
+ */
+public final class HistoryScan {
+
+    /**
+     * Don't let anyone instantiate this class.
+     */
+    private HistoryScan() {
+    }
+
+    /**
+     * Returns the months which may contain matching rows, without decoding any.
+     * The summary of a month is only loaded if the predicate asks for it.
+     *
+     * @param mightMatch a predicate on months, which must hold for a month containing a matching row
+     *
+     * @return the months to decode, in chronological order
+     */
+    public static List<YearMonth> candidates(Predicate<Candidate> mightMatch) {
+        List<YearMonth> months = Storage.getAvailableDates();
+        List<YearMonth> candidates = months.parallelStream()
+                .filter(ym -> mightMatch.test(new Candidate(ym.getYear(), ym.getMonthValue())))
+                .toList();
+
+        System.out.printf("Kept %s of %s months%n", candidates.size(), months.size());
+
+        return candidates;
+    }
+
+
+    /**
+     * A month about to be scanned. Its summary is only loaded if asked for.
+     */
+    public static final class Candidate {
+
+        private final int year;
+        private final int month;
+        private MonthSummary summary = null;
+
+        private Candidate(int year, int month) {
+            this.year = year;
+            this.month = month;
+        }
+
+        public int year() {
+
+            return year;
+        }
+
+        public int month() {
+
+            return month;
+        }
+
+        public MonthSummary summary() {
+            if (summary == null)
+                summary = ZoneMapIndex.load(year, month);
+
+            return summary;
+        }
+    }
+}
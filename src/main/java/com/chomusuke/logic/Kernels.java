@@ -0,0 +1,109 @@
+/*  Accountable: a personal spending monitoring program
+    Copyright (C) 2023  Artur Yukhanov
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package com.chomusuke.logic;
+
+/**
+ * Provides aggregation kernels over primitive arrays.
+ * <br>
+ * The loops are written so that the JIT can turn them into SIMD code:
+ * no branches in the loop bodies, independent accumulators so that
+ * additions don't wait on each other, and no boxing.
+ * Sums are accumulated as doubles, so that long series of cents
+ * don't drift.
+ */
+public final class Kernels {
+
+    /**
+     * Don't let anyone instantiate this class.
+     */
+    private Kernels() {
+    }
+
+    /**
+     * Sums the first values of an array.
+     *
+     * @param values an array
+     * @param length the number of values to sum
+     *
+     * @return the sum
+     */
+    public static double sum(float[] values, int length) {
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+
+        int i = 0;
+        for ( ; i + 3 < length ; i += 4) {
+            s0 += values[i];
+            s1 += values[i + 1];
+            s2 += values[i + 2];
+            s3 += values[i + 3];
+        }
+        for ( ; i < length ; i++)
+            s0 += values[i];
+
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * Sums all the values of an array.
+     *
+     * @param values an array
+     *
+     * @return the sum
+     */
+    public static double sum(float[] values) {
+
+        return sum(values, values.length);
+    }
+
+    /**
+     * Sums the values whose key equals {@code key}.
+     * <br>
+     * The mask is applied with a select rather than a branch.
+     *
+     * @param keys the key of each value
+     * @param values an array
+     * @param length the number of values
+     * @param key the selected key
+     *
+     * @return the sum of the selected values
+     */
+    public static double maskedSum(byte[] keys, float[] values, int length, byte key) {
+        double s0 = 0, s1 = 0;
+
+        int i = 0;
+        for ( ; i + 1 < length ; i += 2) {
+            s0 += keys[i] == key ? values[i] : 0;
+            s1 += keys[i + 1] == key ? values[i + 1] : 0;
+        }
+        for ( ; i < length ; i++)
+            s0 += keys[i] == key ? values[i] : 0;
+
+        return s0 + s1;
+    }
+
+    /**
+     * Adds an array to another, element by element.
+     *
+     * @param into the array added to
+     * @param values the array to add
+     */
+    public static void add(double[] into, double[] values) {
+        for (int i = 0 ; i < into.length ; i++)
+            into[i] += values[i];
+    }
+}
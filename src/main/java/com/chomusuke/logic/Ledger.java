@@ -0,0 +1,204 @@
+/*  Accountable: a personal spending monitoring program
+    Copyright (C) 2023  Artur Yukhanov
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package com.chomusuke.logic;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javafx.collections.ListChangeListener;
+
+/**
+ * Provides immutable snapshots of the loaded month and of the accounts.
+ * <br>
+ * The transaction list and the account map can only be modified on the
+ * JavaFX thread. After each modification, a new snapshot is built from
+ * the previous one, sharing all the unmodified parts, and published with
+ * a single volatile write. Other threads can then read a consistent
+ * state without copying nor locking.
+ */
+public class Ledger {
+
+    private static final Ledger INSTANCE = new Ledger();
+
+    private volatile Snapshot current = Snapshot.EMPTY;
+
+    private int year = 0;
+    private int month = 0;
+
+    /**
+     * Don't let anyone instantiate this class.
+     */
+    private Ledger() {
+    }
+
+    /**
+     * Returns the ledger of the application.
+     *
+     * @return the ledger
+     */
+    public static Ledger get() {
+
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the latest published snapshot. May be called from any thread.
+     *
+     * @return a snapshot
+     */
+    public Snapshot snapshot() {
+
+        return current;
+    }
+
+    /**
+     * Follows the changes made to a transaction list, and publishes
+     * an event for each of them.
+     * <br>
+     * Must be called before other listeners read the snapshots.
+     *
+     * @param txList a transaction list
+     */
+    public void attach(TransactionList txList) {
+        txList.getTransactionList().addListener((ListChangeListener<Transaction>) c -> {
+            if (txList.setAllFlag()) {
+                publish(new Snapshot(current.version() + 1, year, month, txList.getCarry(),
+                        PersistentList.of(txList.getTransactionList()), current.accounts()));
+                LedgerEvents.get().publish(new LedgerEvent.MonthLoaded(current));
+
+                return;
+            }
+
+            while (c.next()) {
+                int from = c.getFrom();
+
+                if (c.getRemovedSize() == 1 && c.getAddedSize() == 1) {
+                    Transaction t = c.getList().get(from);
+                    Snapshot before = change(current.transactions().with(from, t));
+                    LedgerEvents.get().publish(new LedgerEvent.TransactionReplaced(before, current, from, c.getRemoved().get(0), t));
+                    continue;
+                }
+
+                for (Transaction t : c.getRemoved()) {
+                    Snapshot before = change(current.transactions().minus(from));
+                    LedgerEvents.get().publish(new LedgerEvent.TransactionRemoved(before, current, from, t));
+                }
+                for (int i = from ; i < c.getTo() ; i++) {
+                    Transaction t = c.getList().get(i);
+                    Snapshot before = change(current.transactions().plus(i, t));
+                    LedgerEvents.get().publish(new LedgerEvent.TransactionAdded(before, current, i, t));
+                }
+            }
+        });
+    }
+
+    /**
+     * Sets the date of the month about to be loaded.
+     *
+     * @param year a year
+     * @param month a month
+     */
+    public void select(int year, int month) {
+        this.year = year;
+        this.month = month;
+    }
+
+    /**
+     * Publishes the accounts after they were modified, and an event
+     * for each modified account.
+     * <br>
+     * Only the modified accounts are copied, the others are shared
+     * with the previous snapshot.
+     *
+     * @param balances an account map
+     */
+    public void publishAccounts(Map<Byte, Account> balances) {
+        PersistentByteMap<Account> accounts = current.accounts();
+        List<Byte> changed = new ArrayList<>();
+
+        for (Map.Entry<Byte, Account> e : balances.entrySet()) {
+            Account a = e.getValue();
+            if (!a.equals(accounts.get(e.getKey()))) {
+                accounts = accounts.with(e.getKey(), new Account(a.getName(), a.getBalance(), a.getObjective()));
+                changed.add(e.getKey());
+            }
+        }
+        for (Byte id : current.accounts().keySet()) {
+            if (!balances.containsKey(id)) {
+                accounts = accounts.without(id);
+                changed.add(id);
+            }
+        }
+
+        if (changed.isEmpty())
+            return;
+
+        publish(new Snapshot(current.version() + 1, current.year(), current.month(), current.carry(), current.transactions(), accounts));
+        for (byte id : changed)
+            LedgerEvents.get().publish(new LedgerEvent.AccountChanged(current, id, current.accounts().get(id)));
+    }
+
+    /**
+     * Publishes a snapshot with modified transactions.
+     *
+     * @param txs the new transactions
+     *
+     * @return the snapshot before the change
+     */
+    private Snapshot change(PersistentList<Transaction> txs) {
+        Snapshot before = current;
+        publish(new Snapshot(before.version() + 1, year, month, before.carry(), txs, before.accounts()));
+
+        return before;
+    }
+
+    private void publish(Snapshot s) {
+
+        current = s;
+    }
+
+
+    /**
+     * An immutable state of the ledger.
+     * <br>
+     * The accounts of a snapshot are copies, which must not be updated.
+     *
+     * @param version the number of the snapshot, increasing with each publication
+     * @param year the year of the loaded month
+     * @param month the loaded month
+     * @param carry the remainder carried over to the loaded month
+     * @param transactions the transactions of the loaded month
+     * @param accounts the accounts
+     */
+    public record Snapshot(long version, int year, int month, float carry,
+                           PersistentList<Transaction> transactions, PersistentByteMap<Account> accounts) {
+
+        private static final Snapshot EMPTY = new Snapshot(0, 0, 0, 0, PersistentList.empty(), PersistentByteMap.empty());
+
+        /**
+         * Computes the values of the transactions of the snapshot.
+         *
+         * @return the values of the transactions
+         */
+        public float[] values() {
+
+            return TransactionList.getValues(transactions, carry);
+        }
+    }
+}
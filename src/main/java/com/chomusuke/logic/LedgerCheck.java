@@ -0,0 +1,216 @@
+/*  Accountable: a personal spending monitoring program
+    Copyright (C) 2023  Artur Yukhanov
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package com.chomusuke.logic;
+
+import java.time.YearMonth;
+import java.util.*;
+
+import static com.chomusuke.logic.Transaction.TransactionType;
+
+/**
+ * Checks the stored balances against the transactions.
+ * <br>
+ * All the months are decoded and replayed in parallel, independently of
+ * the indexes, then the changes of each account are summed in chronological
+ * order and compared with the {@code balances} file. Each discrepancy comes
+ * with the months most likely to cause it: a single month moving the account
+ * by the difference, or else the shortest run of latest months doing so,
+ * as left by writes whose balances were never saved.
+ * <br>
+ * The repair keeps the names and objectives of the accounts, and only
+ * replaces the balances.
+ */
+public final class LedgerCheck {
+
+    private static final double EPSILON = 0.005;
+
+    /**
+     * Don't let anyone instantiate this class.
+     */
+    private LedgerCheck() {
+    }
+
+    /**
+     * Replays all the months and compares the result with the given accounts.
+     *
+     * @param balances an account map
+     *
+     * @return the discrepancies found
+     */
+    public static Report check(Map<Byte, Account> balances) {
+        List<YearMonth> dates = Storage.getAvailableDates();
+
+        // Each month is replayed on its own, the carries being known beforehand
+        List<double[]> deltas = dates.parallelStream()
+                .map(ym -> replay(ym.getYear(), ym.getMonthValue()))
+                .toList();
+
+        List<Discrepancy> discrepancies = new ArrayList<>();
+        // Account 0 means no account
+        for (int id = 1 ; id < 256 ; id++) {
+            Map<YearMonth, Double> moves = new LinkedHashMap<>();
+            double replayed = 0;
+            for (int i = 0 ; i < dates.size() ; i++) {
+                double d = deltas.get(i)[id];
+                if (d != 0) {
+                    moves.put(dates.get(i), d);
+                    replayed += d;
+                }
+            }
+            replayed = Math.round(replayed * 100) / 100d;
+
+            Account a = balances.get((byte) id);
+            if (a == null && moves.isEmpty())
+                continue;
+
+            double stored = a == null || a.getBalance() == -1 ? 0 : a.getBalance();
+            if (a != null && Math.abs(replayed - stored) < EPSILON)
+                continue;
+
+            discrepancies.add(new Discrepancy((byte) id, a, stored, replayed, suspects(moves, replayed - stored)));
+        }
+
+        System.out.printf("Checked %s accounts over %s months, %s discrepancies%n", balances.size(), dates.size(), discrepancies.size());
+
+        return new Report(dates.size(), discrepancies);
+    }
+
+    /**
+     * Replaces the wrong balances with the replayed ones, keeping the names and
+     * objectives, and adds the accounts moved by transactions but missing from
+     * the map. The accounts are then written.
+     *
+     * @param balances the checked account map, modified in place
+     * @param report the report of the check
+     */
+    public static void repair(Map<Byte, Account> balances, Report report) {
+        for (Discrepancy d : report.discrepancies()) {
+            // Empty accounts are stored with a balance of -1
+            double balance = d.replayed() == 0 ? -1 : d.replayed();
+
+            if (d.account() == null)
+                balances.put(d.id(), new Account(Integer.toString(balances.size() + 1), balance));
+            else
+                balances.put(d.id(), new Account(d.account().getName(), balance, d.account().getObjective()));
+        }
+
+        if (!report.discrepancies().isEmpty())
+            Storage.writeAccounts(balances);
+
+        System.out.printf("Repaired %s accounts%n", report.discrepancies().size());
+    }
+
+    /**
+     * Computes the change of each account made by a month, the same way {@code Account.ModMap} does.
+     *
+     * @return account id -> change
+     */
+    private static double[] replay(int year, int month) {
+        List<Transaction> txs = Storage.read(year, month);
+        float[] values = CarryOver.get().getValues(year, month, txs);
+
+        double[] deltas = new double[256];
+        for (int i = 0 ; i < txs.size() ; i++) {
+            Transaction t = txs.get(i);
+            if (t.transactionType().equals(TransactionType.SAVINGS))
+                deltas[t.to() & 0xFF] -= values[i];
+        }
+
+        return deltas;
+    }
+
+    /**
+     * Returns the months explaining a difference: a single month, else the
+     * shortest run of latest months, else all the months of the account.
+     */
+    private static List<YearMonth> suspects(Map<YearMonth, Double> moves, double difference) {
+        for (Map.Entry<YearMonth, Double> e : moves.entrySet()) {
+            if (Math.abs(e.getValue() - difference) < EPSILON)
+                return List.of(e.getKey());
+        }
+
+        List<YearMonth> months = new ArrayList<>(moves.keySet());
+        double run = 0;
+        for (int i = months.size() - 1 ; i >= 0 ; i--) {
+            run += moves.get(months.get(i));
+            if (Math.abs(run - difference) < EPSILON)
+                return months.subList(i, months.size());
+        }
+
+        return months;
+    }
+
+
+    /**
+     * The result of a check.
+     *
+     * @param months the number of replayed months
+     * @param discrepancies the accounts whose balance doesn't match
+     */
+    public record Report(int months, List<Discrepancy> discrepancies) {
+
+        public boolean isConsistent() {
+
+            return discrepancies.isEmpty();
+        }
+
+        /**
+         * Formats the report, one line per discrepancy.
+         *
+         * @return the formatted report
+         */
+        public String format() {
+            StringBuilder sb = new StringBuilder();
+            for (Discrepancy d : discrepancies)
+                sb.append(d).append('\n');
+            sb.append(String.format("%s months, %s discrepancies%n", months, discrepancies.size()));
+
+            return sb.toString();
+        }
+    }
+
+    /**
+     * An account whose stored balance doesn't match the transactions.
+     *
+     * @param id the id of the account
+     * @param account the stored account, {@code null} if it is missing
+     * @param stored the stored balance, 0 for an empty account
+     * @param replayed the balance replayed from the transactions
+     * @param months the months most likely to cause the difference
+     */
+    public record Discrepancy(byte id, Account account, double stored, double replayed, List<YearMonth> months) {
+
+        /**
+         * Tells whether the difference is the one left by the empty account marker.
+         *
+         * @return true if the balances differ by exactly 1
+         */
+        public boolean isMarker() {
+
+            return Math.abs(Math.abs(replayed - stored) - 1) < EPSILON;
+        }
+
+        @Override
+        public String toString() {
+
+            return String.format("%s (%s): stored %.2f, replayed %.2f%s, months %s",
+                    account == null ? "missing account" : account.getName(), id & 0xFF, stored, replayed,
+                    isMarker() ? " (empty account marker)" : "", months);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*  Accountable: a personal spending monitoring program
+    Copyright (C) 2023  Artur Yukhanov
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package com.chomusuke.logic;
+
+/**
+ * A change of the ledger, carrying the snapshot published after it,
+ * so that subscribers read a consistent state on any thread.
+ */
+public sealed interface LedgerEvent {
+
+    /**
+     * Returns the snapshot published after the change.
+     *
+     * @return a snapshot
+     */
+    Ledger.Snapshot snapshot();
+
+    /**
+     * A change of the transactions of the loaded month.
+     */
+    sealed interface TransactionEvent extends LedgerEvent {
+
+        /**
+         * Returns the snapshot published before the change.
+         *
+         * @return a snapshot
+         */
+        Ledger.Snapshot previous();
+
+        /**
+         * Returns the position of the changed transaction in the loaded month.
+         *
+         * @return an index
+         */
+        int index();
+    }
+
+    /**
+     * A month was loaded, replacing all the transactions.
+     *
+     * @param snapshot the snapshot of the loaded month
+     */
+    record MonthLoaded(Ledger.Snapshot snapshot) implements LedgerEvent {}
+
+    /**
+     * @param previous the snapshot before the change
+     * @param snapshot the snapshot after the change
+     * @param index the position of the transaction
+     * @param transaction the added transaction
+     */
+    record TransactionAdded(Ledger.Snapshot previous, Ledger.Snapshot snapshot, int index,
+                            Transaction transaction) implements TransactionEvent {}
+
+    /**
+     * @param previous the snapshot before the change
+     * @param snapshot the snapshot after the change
+     * @param index the position of the transaction
+     * @param old the replaced transaction
+     * @param transaction the new transaction
+     */
+    record TransactionReplaced(Ledger.Snapshot previous, Ledger.Snapshot snapshot, int index,
+                               Transaction old, Transaction transaction) implements TransactionEvent {}
+
+    /**
+     * @param previous the snapshot before the change
+     * @param snapshot the snapshot after the change
+     * @param index the former position of the transaction
+     * @param transaction the removed transaction
+     */
+    record TransactionRemoved(Ledger.Snapshot previous, Ledger.Snapshot snapshot, int index,
+                              Transaction transaction) implements TransactionEvent {}
+
+    /**
+     * An account was created, modified or deleted.
+     *
+     * @param snapshot the snapshot after the change
+     * @param id the id of the account
+     * @param account a copy of the account, {@code null} if it was deleted
+     */
+    record AccountChanged(Ledger.Snapshot snapshot, byte id, Account account) implements LedgerEvent {}
+}
@@ -0,0 +1,240 @@
+/*  Accountable: a personal spending monitoring program
+    Copyright (C) 2023  Artur Yukhanov
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package com.chomusuke.logic;
+
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Provides the stream of the changes of the ledger.
+ * <br>
+ * Each subscriber has its own buffer and its own executor, so that a slow
+ * subscriber doesn't delay the others. Events are delivered in order, one
+ * at a time. When the buffer of a subscriber is full, publishing waits for
+ * it to catch up.
+ * <br>
+ * Subscribers touching the user interface must hand their work over to
+ * the JavaFX thread without waiting for it, since events are published
+ * from that thread.
+ */
+public class LedgerEvents implements Flow.Publisher<LedgerEvent> {
+
+    public static final int BUFFER_SIZE = 256;
+
+    private static final LedgerEvents INSTANCE = new LedgerEvents();
+
+    private final List<Channel> channels = new CopyOnWriteArrayList<>();
+
+    /**
+     * Don't let anyone instantiate this class.
+     */
+    private LedgerEvents() {
+    }
+
+    /**
+     * Returns the stream of the application.
+     *
+     * @return the stream
+     */
+    public static LedgerEvents get() {
+
+        return INSTANCE;
+    }
+
+    /**
+     * Subscribes to the stream, the subscriber being called on the common pool.
+     *
+     * @param subscriber a subscriber
+     */
+    @Override
+    public void subscribe(Flow.Subscriber<? super LedgerEvent> subscriber) {
+
+        subscribe("subscriber", ForkJoinPool.commonPool(), subscriber);
+    }
+
+    /**
+     * Subscribes to the stream.
+     *
+     * @param name the name of the subscription
+     * @param executor the executor calling the subscriber
+     * @param subscriber a subscriber
+     *
+     * @return the subscription
+     */
+    public Channel subscribe(String name, Executor executor, Flow.Subscriber<? super LedgerEvent> subscriber) {
+        Channel c = new Channel(name, new SubmissionPublisher<>(executor, BUFFER_SIZE));
+        c.publisher.subscribe(new CountingSubscriber(c, subscriber));
+        channels.add(c);
+
+        return c;
+    }
+
+    /**
+     * Subscribes a handler called on its own thread, for one event at a time.
+     * Exceptions thrown by the handler are reported, and don't end the subscription.
+     *
+     * @param name the name of the subscription, and of its thread
+     * @param handler the handler of the events
+     *
+     * @return the subscription
+     */
+    public Channel subscribe(String name, Consumer<? super LedgerEvent> handler) {
+        ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+
+            return t;
+        });
+
+        return subscribe(name, executor, new Flow.Subscriber<LedgerEvent>() {
+            private Flow.Subscription subscription;
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                this.subscription = subscription;
+                subscription.request(1);
+            }
+
+            @Override
+            public void onNext(LedgerEvent item) {
+                try {
+                    handler.accept(item);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+
+                subscription.request(1);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+
+                throwable.printStackTrace();
+            }
+
+            @Override
+            public void onComplete() {
+
+                executor.shutdown();
+            }
+        });
+    }
+
+    /**
+     * Publishes an event to all the subscribers.
+     *
+     * @param event an event
+     */
+    public void publish(LedgerEvent event) {
+        for (Channel c : channels) {
+            c.pending.incrementAndGet();
+            c.publisher.submit(event);
+        }
+    }
+
+    /**
+     * Waits for all the subscribers to handle the published events, then ends the stream.
+     */
+    public void close() {
+        for (Channel c : channels) {
+            c.awaitIdle();
+            c.publisher.close();
+        }
+        channels.clear();
+    }
+
+
+    /**
+     * A subscription to the stream.
+     */
+    public static final class Channel {
+
+        private final String name;
+        private final SubmissionPublisher<LedgerEvent> publisher;
+        private final AtomicLong pending = new AtomicLong();
+
+        private Channel(String name, SubmissionPublisher<LedgerEvent> publisher) {
+            this.name = name;
+            this.publisher = publisher;
+        }
+
+        /**
+         * Waits for the subscriber to handle all the published events.
+         * Must not be called by the subscriber itself.
+         */
+        public void awaitIdle() {
+            synchronized (this) {
+                while (pending.get() > 0) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }
+
+        private synchronized void handled() {
+            if (pending.decrementAndGet() == 0)
+                notifyAll();
+        }
+
+        @Override
+        public String toString() {
+
+            return String.format("%s (%s pending)", name, pending.get());
+        }
+    }
+
+    /**
+     * Counts the handled events of a channel.
+     */
+    private record CountingSubscriber(Channel channel, Flow.Subscriber<? super LedgerEvent> delegate)
+            implements Flow.Subscriber<LedgerEvent> {
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+
+            delegate.onSubscribe(subscription);
+        }
+
+        @Override
+        public void onNext(LedgerEvent item) {
+            try {
+                delegate.onNext(item);
+            } finally {
+                channel.handled();
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+
+            delegate.onError(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+
+            delegate.onComplete();
+        }
+    }
+}
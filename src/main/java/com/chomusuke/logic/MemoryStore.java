@@ -0,0 +1,104 @@
+/*  Accountable: a personal spending monitoring program
+    Copyright (C) 2023  Artur Yukhanov
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package com.chomusuke.logic;
+
+import java.time.YearMonth;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the transactions and the accounts in memory only, for tests and benchmarks.
+ * Nothing is left once the process exits, but the indexes, which are still
+ * kept in the directory of the profile.
+ */
+public final class MemoryStore implements TransactionStore, AccountStore {
+
+    // Lists are never modified once stored, readers get them as they are
+    private final ConcurrentSkipListMap<YearMonth, List<Transaction>> months = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListMap<YearMonth, Long> versions = new ConcurrentSkipListMap<>();
+    // Starts anywhere, so that the versions of another process never match
+    private final AtomicLong lastVersion = new AtomicLong(ThreadLocalRandom.current().nextLong(1L << 62));
+    private volatile Map<Byte, Account> accounts = null;
+
+    @Override
+    public Map<Byte, Account> readAccounts() {
+        Map<Byte, Account> a = accounts;
+
+        return a == null ? null : copy(a);
+    }
+
+    @Override
+    public void writeAccounts(Map<Byte, Account> accounts) {
+
+        this.accounts = copy(accounts);
+    }
+
+    @Override
+    public List<Transaction> read(int year, int month) {
+
+        return new ArrayList<>(months.getOrDefault(YearMonth.of(year, month), List.of()));
+    }
+
+    @Override
+    public void append(int year, int month, List<Transaction> list) {
+        months.merge(YearMonth.of(year, month), List.copyOf(list), (old, added) -> {
+            List<Transaction> all = new ArrayList<>(old);
+            all.addAll(added);
+
+            return Collections.unmodifiableList(all);
+        });
+        versions.put(YearMonth.of(year, month), lastVersion.incrementAndGet());
+    }
+
+    @Override
+    public void write(int year, int month, List<Transaction> list) {
+
+        months.put(YearMonth.of(year, month), List.copyOf(list));
+        versions.put(YearMonth.of(year, month), lastVersion.incrementAndGet());
+    }
+
+    @Override
+    public List<YearMonth> months() {
+
+        return new ArrayList<>(months.keySet());
+    }
+
+    @Override
+    public SortedMap<YearMonth, Long> versions() {
+
+        return new TreeMap<>(versions);
+    }
+
+    @Override
+    public boolean exists(int year, int month) {
+
+        return months.containsKey(YearMonth.of(year, month));
+    }
+
+    /**
+     * Copies accounts, which are modified in place by their users.
+     */
+    private static Map<Byte, Account> copy(Map<Byte, Account> accounts) {
+        Map<Byte, Account> copy = new HashMap<>();
+        accounts.forEach((id, a) -> copy.put(id, new Account(a.getName(), a.getBalance(), a.getObjective())));
+
+        return copy;
+    }
+}
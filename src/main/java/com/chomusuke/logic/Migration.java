@@ -0,0 +1,262 @@
+/*  Accountable: a personal spending monitoring program
+    Copyright (C) 2023  Artur Yukhanov
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package com.chomusuke.logic;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Upgrades the stored files to the current version of {@code StorageFormat}.
+ * <br>
+ * The files are taken by batches of {@code BATCH_SIZE}: the files of a batch
+ * are read and rewritten in parallel, then committed together. The storage
+ * stays usable meanwhile, old files being read as they are: a file written
+ * by the application between its reading and the commit is left out of the
+ * commit, and taken again by the next pass.
+ * <br>
+ * A file whose latest version is damaged is left as it is, for the scrubber
+ * to report, rather than replaced by an older version.
+ */
+public class Migration {
+
+    private static final int BATCH_SIZE = 64;
+    private static final int MAX_PASSES = 3;
+
+    private static final Migration INSTANCE = new Migration();
+
+    private final List<Consumer<Progress>> listeners = new CopyOnWriteArrayList<>();
+    private volatile Progress progress = new Progress(0, 0, 0);
+    private Thread thread = null;
+
+    /**
+     * Don't let anyone instantiate this class.
+     */
+    private Migration() {
+    }
+
+    /**
+     * Returns the migration of the storage.
+     *
+     * @return the migration
+     */
+    public static Migration get() {
+
+        return INSTANCE;
+    }
+
+    /**
+     * Starts the migration on a background thread, once per session.
+     */
+    public synchronized void start() {
+        if (thread != null)
+            return;
+
+        thread = new Thread(this::migrate, "migration");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Registers a listener called after each batch, on the migration thread.
+     *
+     * @param listener a progress listener
+     */
+    public void addListener(Consumer<Progress> listener) {
+
+        listeners.add(listener);
+    }
+
+    /**
+     * Returns the progress of the current, or latest, migration.
+     *
+     * @return the progress
+     */
+    public Progress getProgress() {
+
+        return progress;
+    }
+
+    /**
+     * Upgrades all the stored files, on the calling thread.
+     *
+     * @return the final progress
+     */
+    public Progress migrate() {
+        long start = System.nanoTime();
+        Generations generations = Storage.generations();
+
+        List<Path> files = new ArrayList<>(Storage.getStoredFiles(generations.committed()).keySet());
+        files.removeIf(file -> kind(file) == null);
+
+        int total = files.size();
+        int checked = 0;
+        int upgraded = 0;
+        report(new Progress(0, total, 0));
+
+        for (int pass = 0 ; pass < MAX_PASSES && !files.isEmpty() ; pass++) {
+            List<Path> retry = new ArrayList<>();
+
+            for (int from = 0 ; from < files.size() ; from += BATCH_SIZE) {
+                List<Path> batch = files.subList(from, Math.min(files.size(), from + BATCH_SIZE));
+
+                Map<Path, Upgrade> upgrades;
+                try {
+                    upgrades = upgrade(batch);
+                } catch (IOException e) {
+                    // The storage was locked or written by a newer version, nothing more can be done
+                    System.out.printf("Migration stopped: %s%n", e.getMessage());
+                    return progress;
+                }
+
+                // Up to date batches aren't committed: an empty commit still syncs the disk, and delays the scrubber
+                List<Path> committed = new ArrayList<>();
+                if (!upgrades.isEmpty()) {
+                    try {
+                        generations.transact(latest -> {
+                            Map<Path, byte[]> contents = new HashMap<>();
+                            committed.clear();
+
+                            upgrades.forEach((file, u) -> {
+                                // Written meanwhile, the content is stale
+                                if (!u.version().equals(generations.resolve(file, latest)))
+                                    return;
+
+                                contents.put(file, u.content());
+                                committed.add(file);
+                            });
+
+                            return contents;
+                        });
+                    } catch (IOException e) {
+                        // Nothing of the batch was committed, the files are left in their old format
+                        System.out.printf("Migration stopped: %s%n", e.getMessage());
+                        return progress;
+                    }
+                }
+
+                for (Path file : upgrades.keySet()) {
+                    if (!committed.contains(file))
+                        retry.add(file);
+                }
+                upgraded += committed.size();
+                checked += batch.size() - upgrades.size() + committed.size();
+                report(new Progress(checked, total, upgraded));
+            }
+
+            files = retry;
+        }
+
+        System.out.printf("Migrated %s of %s files to version %s in %s ms%n",
+                upgraded, total, StorageFormat.CURRENT, (System.nanoTime() - start) / 1_000_000);
+
+        return progress;
+    }
+
+    /**
+     * Reads the files of a batch in parallel, and rewrites those in an old version.
+     *
+     * @return path of each old file -> its upgrade
+     *
+     * @throws IOException if a file can't be decoded
+     */
+    private static Map<Path, Upgrade> upgrade(List<Path> batch) throws IOException {
+        Generations generations = Storage.generations();
+        long generation = generations.committed();
+
+        Map<Path, Upgrade> upgrades = Collections.synchronizedMap(new HashMap<>());
+        List<IOException> failures = new CopyOnWriteArrayList<>();
+
+        batch.parallelStream().forEach(file -> {
+            Path version = generations.resolve(file, generation);
+            if (version == null)
+                return;
+
+            try {
+                byte[] content = generations.readVersion(version);
+                StorageFormat.Kind kind = kind(file);
+                if (StorageFormat.version(kind, content) != StorageFormat.CURRENT)
+                    upgrades.put(file, new Upgrade(version, StorageFormat.upgrade(kind, content)));
+            } catch (Checksums.CorruptionException e) {
+                System.out.printf("%s isn't migrated: %s%n", version, e.getMessage());
+            } catch (IOException e) {
+                failures.add(e);
+            }
+        });
+
+        if (!failures.isEmpty())
+            throw failures.get(0);
+
+        return upgrades;
+    }
+
+    private void report(Progress p) {
+        progress = p;
+        for (Consumer<Progress> listener : listeners)
+            listener.accept(p);
+    }
+
+    /**
+     * Returns the kind of a stored file.
+     *
+     * @return the kind, {@code null} for a file without header
+     */
+    private static StorageFormat.Kind kind(Path file) {
+        String name = file.getFileName().toString();
+
+        if (file.equals(Storage.getGlobalFile(FileStore.BALANCES_FILE)))
+            return StorageFormat.Kind.BALANCES;
+        if (name.matches("\\d+"))
+            return StorageFormat.Kind.MONTH;
+
+        return null;
+    }
+
+
+    /**
+     * A file rewritten in the current version.
+     *
+     * @param version the version it was read from
+     * @param content the new content
+     */
+    private record Upgrade(Path version, byte[] content) {}
+
+    /**
+     * The progress of a migration.
+     *
+     * @param checked the number of files done with
+     * @param total the number of files to check
+     * @param upgraded the number of files rewritten
+     */
+    public record Progress(int checked, int total, int upgraded) {
+
+        public boolean isFinished() {
+
+            return checked >= total;
+        }
+
+        @Override
+        public String toString() {
+
+            return String.format("%s/%s files checked, %s upgraded", checked, total, upgraded);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/*  Accountable: a personal spending monitoring program
+    Copyright (C) 2023  Artur Yukhanov
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package com.chomusuke.logic;
+
+import java.util.List;
+
+/**
+ * Provides maintenance of a derived structure each time
+ * a month is written to the storage.
+ * <br>
+ * Indexes are registered with {@link Storage#register(MonthIndex)}.
+ */
+public interface MonthIndex {
+
+    /**
+     * Updates the index with the new content of a month.
+     *
+     * @param year a value
+     * @param month a value
+     * @param txs the complete list of transactions of the month,
+     *            in the order in which {@code Storage.read} returns them
+     */
+    void update(int year, int month, List<Transaction> txs);
+
+    /**
+     * Updates the index with the new content of a month, read at the specified version.
+     *
+     * @param year a value
+     * @param month a value
+     * @param txs the complete list of transactions of the month,
+     *            in the order in which {@code Storage.read} returns them
+     * @param version the version of the month, see {@code TransactionStore.versions}
+     */
+    default void update(int year, int month, List<Transaction> txs, long version) {
+
+        update(year, month, txs);
+    }
+}
@@ -0,0 +1,142 @@
+/*  Accountable: a personal spending monitoring program
+    Copyright (C) 2023  Artur Yukhanov
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package com.chomusuke.logic;
+
+import java.time.YearMonth;
+import java.util.*;
+import java.util.concurrent.*;
+
+import com.chomusuke.util.Time;
+
+/**
+ * Reads in the background the months likely to be opened next, so that
+ * opening them finds them decoded in the cache of the store.
+ * <br>
+ * When a month is opened, the months before and after it are read, then
+ * the most recently opened ones, which a scan of the history may have
+ * pushed out of the cache. When the months of a year are listed, all of
+ * them are read.
+ */
+public class MonthPrefetcher {
+
+    private static final int RECENT_COUNT = 6;
+
+    private static final MonthPrefetcher INSTANCE = new MonthPrefetcher();
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "prefetcher");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+    });
+
+    // Most recently opened first
+    private final Deque<YearMonth> recent = new ArrayDeque<>();
+    // Months waiting to be read, not queued twice
+    private final Set<YearMonth> pending = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Don't let anyone instantiate this class.
+     */
+    private MonthPrefetcher() {
+    }
+
+    /**
+     * Returns the prefetcher of the storage.
+     *
+     * @return the prefetcher
+     */
+    public static MonthPrefetcher get() {
+
+        return INSTANCE;
+    }
+
+    /**
+     * Records that a month was opened, and reads the months likely to be opened next.
+     *
+     * @param year a value
+     * @param month a value
+     */
+    public void opened(int year, int month) {
+        YearMonth ym = YearMonth.of(year, month);
+
+        List<YearMonth> next = new ArrayList<>(List.of(ym.minusMonths(1), ym.plusMonths(1)));
+        synchronized (recent) {
+            recent.remove(ym);
+            recent.addFirst(ym);
+            if (recent.size() > RECENT_COUNT)
+                recent.removeLast();
+
+            next.addAll(recent);
+        }
+        next.remove(ym);
+
+        next.forEach(this::prefetch);
+    }
+
+    /**
+     * Reads all the months of a year.
+     *
+     * @param year a value
+     */
+    public void openedYear(int year) {
+        for (String m : Storage.getAvailableMonths(year))
+            prefetch(YearMonth.of(year, Integer.parseInt(m)));
+    }
+
+    /**
+     * Reads, in parallel, what the window shows first: the accounts, the
+     * current month and the year-to-date balances. Waits until all of them are read.
+     * <br>
+     * The balances are only read if the account index can be loaded from its
+     * file. Rebuilding it is left to the thread loading the indexes.
+     *
+     * @return the accounts
+     */
+    public Map<Byte, Account> warmUp() {
+        long start = System.nanoTime();
+
+        CompletableFuture<Map<Byte, Account>> accounts = CompletableFuture.supplyAsync(Storage::readAccounts);
+        CompletableFuture<?> current = CompletableFuture.runAsync(() -> Storage.read(Time.getCurrentYear(), Time.getCurrentMonth()));
+        CompletableFuture<?> ytd = CompletableFuture.runAsync(() -> {
+            if (AccountIndex.get().loadSaved())
+                Storage.readYTDBalances();
+        });
+        CompletableFuture.allOf(accounts, current, ytd).join();
+
+        System.out.printf("Warmed up in %s ms%n", (System.nanoTime() - start) / 1_000_000);
+
+        return accounts.join();
+    }
+
+    private void prefetch(YearMonth ym) {
+        if (!pending.add(ym))
+            return;
+
+        executor.execute(() -> {
+            try {
+                if (Storage.exists(ym.getYear(), ym.getMonthValue()))
+                    Storage.read(ym.getYear(), ym.getMonthValue());
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            } finally {
+                pending.remove(ym);
+            }
+        });
+    }
+}
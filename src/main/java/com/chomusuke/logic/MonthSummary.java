@@ -0,0 +1,209 @@
+/*  Accountable: a personal spending monitoring program
+    Copyright (C) 2023  Artur Yukhanov
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package com.chomusuke.logic;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.chomusuke.logic.Transaction.TransactionType;
+
+/**
+ * This class provides a small summary of a month, used to know whether
+ * a month can contain rows of interest without decoding it.
+ * <br>
+ * Amounts are the magnitudes of the computed values of the transactions.
+ */
+public class MonthSummary {
+
+    private final float[] min = new float[TransactionType.values().length];
+    private final float[] max = new float[TransactionType.values().length];
+    // Bit set of the ids of the accounts touched by the month
+    private final long[] accounts = new long[4];
+    private float revenue;
+    private float remainder;
+    private int count;
+
+    private MonthSummary() {
+        Arrays.fill(min, Float.POSITIVE_INFINITY);
+        Arrays.fill(max, Float.NEGATIVE_INFINITY);
+    }
+
+    /**
+     * Summarizes a month.
+     *
+     * @param txs the transactions of the month
+     * @param carry the remainder carried over to the month
+     *
+     * @return the summary of the month
+     */
+    public static MonthSummary of(List<Transaction> txs, float carry) {
+
+        return of(txs, carry, TransactionList.getValues(txs, carry));
+    }
+
+    /**
+     * Summarizes a month whose values are already computed.
+     *
+     * @param txs the transactions of the month
+     * @param carry the remainder carried over to the month
+     * @param values the computed values of the transactions
+     *
+     * @return the summary of the month
+     */
+    public static MonthSummary of(List<Transaction> txs, float carry, float[] values) {
+        MonthSummary s = new MonthSummary();
+        byte[] types = new byte[values.length];
+
+        for (int i = 0 ; i < values.length ; i++) {
+            Transaction t = txs.get(i);
+            int type = t.transactionType().ordinal();
+            float amount = Math.abs(values[i]);
+
+            types[i] = (byte) type;
+            s.min[type] = Math.min(s.min[type], amount);
+            s.max[type] = Math.max(s.max[type], amount);
+
+            if (t.to() != 0)
+                s.accounts[(t.to() & 0xFF) >>> 6] |= 1L << t.to();
+        }
+
+        s.revenue = (float) Kernels.maskedSum(types, values, values.length, (byte) TransactionType.REVENUE.ordinal());
+        // Same as TransactionList.getRemainder
+        s.remainder = (float) (Math.round((carry + Kernels.sum(values)) * 100) / 100.0);
+        s.count = txs.size();
+
+        return s;
+    }
+
+    /**
+     * Tests whether the month contains transactions of the given type.
+     *
+     * @param type a transaction type
+     *
+     * @return {@code true} if it does
+     */
+    public boolean hasType(TransactionType type) {
+
+        return max[type.ordinal()] >= 0;
+    }
+
+    /**
+     * Returns the smallest amount of the transactions of the given type.
+     *
+     * @param type a transaction type
+     *
+     * @return an amount, positive infinity if the type is absent
+     */
+    public float getMin(TransactionType type) {
+
+        return min[type.ordinal()];
+    }
+
+    /**
+     * Returns the largest amount of the transactions of the given type.
+     *
+     * @param type a transaction type
+     *
+     * @return an amount, negative infinity if the type is absent
+     */
+    public float getMax(TransactionType type) {
+
+        return max[type.ordinal()];
+    }
+
+    /**
+     * Tests whether a transaction of the month moves the given account.
+     *
+     * @param id an account id
+     *
+     * @return {@code true} if the account is touched
+     */
+    public boolean touches(byte id) {
+
+        return (accounts[(id & 0xFF) >>> 6] & (1L << id)) != 0;
+    }
+
+    public float getRevenue() {
+
+        return revenue;
+    }
+
+    public float getRemainder() {
+
+        return remainder;
+    }
+
+    public int getCount() {
+
+        return count;
+    }
+
+    /**
+     * Writes the summary to the given stream.
+     *
+     * @param output an output stream
+     *
+     * @throws IOException if the stream can't be written
+     */
+    public void write(DataOutputStream output) throws IOException {
+        for (int i = 0 ; i < min.length ; i++) {
+            output.writeFloat(min[i]);
+            output.writeFloat(max[i]);
+        }
+        for (long word : accounts)
+            output.writeLong(word);
+        output.writeFloat(revenue);
+        output.writeFloat(remainder);
+        output.writeShort(count);
+    }
+
+    /**
+     * Reads a summary from the given stream.
+     *
+     * @param input an input stream
+     *
+     * @return the summary
+     *
+     * @throws IOException if the stream can't be read
+     */
+    public static MonthSummary read(DataInputStream input) throws IOException {
+        MonthSummary s = new MonthSummary();
+
+        for (int i = 0 ; i < s.min.length ; i++) {
+            s.min[i] = input.readFloat();
+            s.max[i] = input.readFloat();
+        }
+        for (int i = 0 ; i < s.accounts.length ; i++)
+            s.accounts[i] = input.readLong();
+        s.revenue = input.readFloat();
+        s.remainder = input.readFloat();
+        s.count = input.readShort();
+
+        return s;
+    }
+
+    @Override
+    public String toString() {
+
+        return String.format("MonthSummary {count:%s, revenue:%s, remainder:%s}", count, revenue, remainder);
+    }
+}
@@ -0,0 +1,187 @@
+/*  Accountable: a personal spending monitoring program
+    Copyright (C) 2023  Artur Yukhanov
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package com.chomusuke.logic;
+
+import java.util.*;
+
+/**
+ * Provides an immutable map with byte keys, sharing its structure with
+ * the maps it derives from.
+ * <br>
+ * The map is a trie of two levels of 16 slots, indexed by the high and the
+ * low bits of the key. A modification copies the root and one leaf, that is
+ * 32 references, whatever the size of the map.
+ *
+ * @param <V> the type of the values
+ */
+public final class PersistentByteMap<V> extends AbstractMap<Byte, V> {
+
+    private static final int WIDTH = 16;
+
+    private static final PersistentByteMap<?> EMPTY = new PersistentByteMap<>(new Object[WIDTH][], 0);
+
+    private final Object[][] root;
+    private final int size;
+
+    private PersistentByteMap(Object[][] root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    /**
+     * Returns the empty map.
+     *
+     * @return an empty map
+     *
+     * @param <V> the type of the values
+     */
+    @SuppressWarnings("unchecked")
+    public static <V> PersistentByteMap<V> empty() {
+
+        return (PersistentByteMap<V>) EMPTY;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        if (!(key instanceof Byte b))
+            return null;
+
+        Object[] leaf = root[high(b)];
+
+        return leaf == null ? null : (V) leaf[low(b)];
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+
+        return get(key) != null;
+    }
+
+    @Override
+    public int size() {
+
+        return size;
+    }
+
+    /**
+     * Returns a map in which {@code key} is mapped to {@code value}.
+     *
+     * @param key a key
+     * @param value a value, not {@code null}
+     *
+     * @return the new map
+     */
+    public PersistentByteMap<V> with(byte key, V value) {
+        Objects.requireNonNull(value);
+
+        Object[] leaf = root[high(key)];
+        Object[] newLeaf = leaf == null ? new Object[WIDTH] : leaf.clone();
+        boolean added = newLeaf[low(key)] == null;
+        newLeaf[low(key)] = value;
+
+        Object[][] newRoot = root.clone();
+        newRoot[high(key)] = newLeaf;
+
+        return new PersistentByteMap<>(newRoot, added ? size + 1 : size);
+    }
+
+    /**
+     * Returns a map in which {@code key} isn't mapped.
+     *
+     * @param key a key
+     *
+     * @return the new map, or this map if {@code key} wasn't mapped
+     */
+    public PersistentByteMap<V> without(byte key) {
+        if (!containsKey(key))
+            return this;
+
+        Object[] newLeaf = root[high(key)].clone();
+        newLeaf[low(key)] = null;
+
+        Object[][] newRoot = root.clone();
+        newRoot[high(key)] = newLeaf;
+
+        return new PersistentByteMap<>(newRoot, size - 1);
+    }
+
+    @Override
+    public Set<Entry<Byte, V>> entrySet() {
+
+        return new AbstractSet<>() {
+            @Override
+            public Iterator<Entry<Byte, V>> iterator() {
+
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size() {
+
+                return size;
+            }
+        };
+    }
+
+    private static int high(byte key) {
+
+        return (key & 0xFF) >>> 4;
+    }
+
+    private static int low(byte key) {
+
+        return key & 0xF;
+    }
+
+    /**
+     * Iterates over the entries by increasing unsigned key.
+     */
+    private final class EntryIterator implements Iterator<Entry<Byte, V>> {
+
+        private int next = -1;
+
+        private EntryIterator() {
+            advance();
+        }
+
+        @Override
+        public boolean hasNext() {
+
+            return next < WIDTH * WIDTH;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Entry<Byte, V> next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+
+            Entry<Byte, V> e = new SimpleImmutableEntry<>((byte) next, (V) root[next / WIDTH][next % WIDTH]);
+            advance();
+
+            return e;
+        }
+
+        private void advance() {
+            do {
+                next++;
+            } while (next < WIDTH * WIDTH && (root[next / WIDTH] == null || root[next / WIDTH][next % WIDTH] == null));
+        }
+    }
+}
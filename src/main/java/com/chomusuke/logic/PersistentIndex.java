@@ -0,0 +1,384 @@
+/*  Accountable: a personal spending monitoring program
+    Copyright (C) 2023  Artur Yukhanov
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package com.chomusuke.logic;
+
+import java.io.*;
+import java.time.YearMonth;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Provides the common behaviour of the global indexes kept in memory
+ * and saved to a single file next to the {@code balances} file.
+ * <br>
+ * The index is loaded on first use, or rebuilt from all the months
+ * (decoded in parallel) if its file can't be read, see {@link #rebuild()}. Each write to the
+ * storage updates it incrementally, and it is saved shortly after the
+ * last change.
+ * <br>
+ * The file also holds the version of each month the index was computed
+ * from. The file may miss the latest writes, after a crash, a write by
+ * another process, or a save by a process which missed them: the months
+ * whose version changed since are indexed again when the file is loaded.
+ * <br>
+ * Writes made before the index is loaded are left to that catch-up, so
+ * that no writer waits for a rebuild. Callers which can't wait either,
+ * like the JavaFX thread, test {@link #isLoaded()} before querying.
+ * <br>
+ * Subclasses synchronize their queries on the index itself.
+ */
+public abstract class PersistentIndex implements MonthIndex {
+
+    private static final long SAVE_DELAY_MS = 1000;
+    // Follows the magic in files holding the versions of the months
+    private static final int STAMPED = 0x76657273;
+
+    // Postings are (year * 16 + month) << ROW_BITS | row
+    protected static final int ROW_BITS = 10;
+    protected static final int ROW_MASK = (1 << ROW_BITS) - 1;
+
+    private static final ScheduledExecutorService SAVER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "index-saver");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final String fileName;
+    private final int magic;
+    private volatile boolean loaded = false;
+    private ScheduledFuture<?> pendingSave = null;
+    // Month key -> version of the month the index holds
+    private final Map<Integer, Long> versions = new HashMap<>();
+
+    /**
+     * Constructor.
+     *
+     * @param fileName the name of the index file
+     * @param magic the first int of the index file
+     */
+    protected PersistentIndex(String fileName, int magic) {
+        this.fileName = fileName;
+        this.magic = magic;
+    }
+
+    @Override
+    public final void update(int year, int month, List<Transaction> txs) {
+
+        update(year, month, txs, Storage.getMonthVersion(year, month));
+    }
+
+    @Override
+    public final void update(int year, int month, List<Transaction> txs, long version) {
+        // The month is already written, the catch-up following the load indexes it
+        if (!loaded)
+            return;
+
+        synchronized (this) {
+            index(year, month, txs);
+            setVersion(monthKey(year, month), version);
+            scheduleSave();
+        }
+    }
+
+    /**
+     * Loads the index from disk, or rebuilds it if it can't be loaded.
+     * <br>
+     * This may decode the whole history, so it is never called on the JavaFX thread.
+     */
+    public final synchronized void ensureLoaded() {
+        if (!loadSaved())
+            rebuild();
+    }
+
+    /**
+     * Loads the index from its file, then indexes again the months written
+     * since it was saved. The index is never rebuilt here.
+     *
+     * @return {@code true} if the index is loaded, false if its file can't be used
+     */
+    public final synchronized boolean loadSaved() {
+        if (loaded)
+            return true;
+
+        if (!load()) {
+            clear();
+            versions.clear();
+            return false;
+        }
+        loaded = true;
+
+        // Months written while loading were not indexed by their writers
+        catchUp();
+
+        return true;
+    }
+
+    /**
+     * Tests whether the index is loaded, without waiting for it.
+     *
+     * @return {@code true} if the queries won't load or rebuild the index
+     */
+    public final boolean isLoaded() {
+
+        return loaded;
+    }
+
+    /**
+     * Tests whether the index is loaded and holds the stored version of
+     * every month. Only waits for the incremental updates.
+     *
+     * @return {@code true} if the index reflects the storage
+     */
+    public final boolean isFresh() {
+        if (!loaded)
+            return false;
+
+        SortedMap<YearMonth, Long> current = Storage.getMonthVersions();
+        synchronized (this) {
+            return staleMonths(current).isEmpty();
+        }
+    }
+
+    /**
+     * Loads the index if needed, then indexes again the months written
+     * meanwhile, as by another process.
+     * <br>
+     * This may decode the whole history, so it is never called on the JavaFX thread.
+     */
+    public final synchronized void refresh() {
+        if (!loaded)
+            ensureLoaded();
+        else
+            catchUp();
+    }
+
+    /**
+     * Waits for the pending saves of all the indexes.
+     * No index can be saved afterwards, so this is only called on exit.
+     */
+    public static void awaitPendingSaves() {
+        SAVER.shutdown();
+
+        try {
+            SAVER.awaitTermination(SAVE_DELAY_MS * 10, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Rebuilds the whole index from the storage, whether it is loaded or not,
+     * then saves it. Months are decoded in parallel, then indexed in
+     * chronological order.
+     * <br>
+     * This decodes the whole history, so it is never called on the JavaFX thread.
+     */
+    public final synchronized void rebuild() {
+        rebuildFromStorage();
+        save();
+        loaded = true;
+
+        // Months written while rebuilding were not indexed by their writers
+        catchUp();
+    }
+
+    private void rebuildFromStorage() {
+        // Taken first, a month written meanwhile is indexed again on the next load
+        SortedMap<YearMonth, Long> current = Storage.getMonthVersions();
+
+        Map<YearMonth, List<Transaction>> decoded = decode(current.keySet());
+
+        clear();
+        versions.clear();
+        decoded.forEach((ym, txs) -> index(ym.getYear(), ym.getMonthValue(), txs));
+        current.forEach((ym, v) -> versions.put(monthKey(ym.getYear(), ym.getMonthValue()), v));
+
+        System.out.printf("Rebuilt %s from %s months%n", fileName, decoded.size());
+    }
+
+    /**
+     * Empties the index.
+     */
+    protected abstract void clear();
+
+    /**
+     * Replaces the content of a month in the index.
+     *
+     * @param year a value
+     * @param month a value
+     * @param txs the transactions of the month
+     */
+    protected abstract void index(int year, int month, List<Transaction> txs);
+
+    /**
+     * Writes the content of the index.
+     *
+     * @param output an output stream
+     *
+     * @throws IOException if the stream can't be written
+     */
+    protected abstract void write(DataOutputStream output) throws IOException;
+
+    /**
+     * Reads the content of the index into the emptied index.
+     *
+     * @param input an input stream
+     *
+     * @throws IOException if the stream can't be read
+     */
+    protected abstract void read(DataInputStream input) throws IOException;
+
+    protected static int monthKey(int year, int month) {
+
+        return year * 16 + month;
+    }
+
+    protected static int posting(int monthKey, int row) {
+
+        return monthKey << ROW_BITS | row;
+    }
+
+    private void scheduleSave() {
+        if (pendingSave != null)
+            pendingSave.cancel(false);
+
+        pendingSave = SAVER.schedule(this::save, SAVE_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void save() {
+        File file = Storage.getGlobalFile(fileName).toFile();
+        file.getParentFile().mkdirs();
+
+        try (DataOutputStream output = new DataOutputStream(Encryption.get().create(file))) {
+            output.writeInt(magic);
+            output.writeInt(STAMPED);
+            output.writeInt(versions.size());
+            for (Map.Entry<Integer, Long> e : versions.entrySet()) {
+                output.writeInt(e.getKey());
+                output.writeLong(e.getValue());
+            }
+            write(output);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Loads the index from its file, as it was saved.
+     *
+     * @return false if the file can't be read, or was saved without the versions of the months
+     */
+    private boolean load() {
+        File file = Storage.getGlobalFile(fileName).toFile();
+
+        clear();
+        versions.clear();
+        try (DataInputStream input = new DataInputStream(Encryption.get().open(file))) {
+            if (input.readInt() != magic || input.readInt() != STAMPED)
+                return false;
+
+            for (int n = input.readInt() ; n > 0 ; n--)
+                versions.put(input.readInt(), input.readLong());
+            read(input);
+        } catch (FileNotFoundException e) {
+            return false;
+        } catch (IOException e) {
+            e.printStackTrace();
+            clear();
+
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Indexes again, in chronological order, the months written or deleted
+     * since the index was saved.
+     */
+    private void catchUp() {
+        SortedMap<YearMonth, Long> current = Storage.getMonthVersions();
+        SortedMap<YearMonth, Long> stale = staleMonths(current);
+        if (stale.isEmpty())
+            return;
+
+        decode(stale.keySet()).forEach((ym, txs) -> {
+            index(ym.getYear(), ym.getMonthValue(), txs);
+            setVersion(monthKey(ym.getYear(), ym.getMonthValue()), stale.get(ym));
+        });
+        scheduleSave();
+
+        System.out.printf("Caught %s up on %s months%n", fileName, stale.size());
+    }
+
+    /**
+     * Compares the versions of the index with the stored ones.
+     *
+     * @param current the stored version of each month
+     *
+     * @return month -> its stored version, -1 for a deleted month, for each month whose version differs
+     */
+    private SortedMap<YearMonth, Long> staleMonths(SortedMap<YearMonth, Long> current) {
+        SortedMap<YearMonth, Long> stale = new TreeMap<>();
+
+        current.forEach((ym, v) -> {
+            if (!v.equals(versions.get(monthKey(ym.getYear(), ym.getMonthValue()))))
+                stale.put(ym, v);
+        });
+        for (int key : versions.keySet()) {
+            YearMonth ym = YearMonth.of(key / 16, key % 16);
+            if (!current.containsKey(ym))
+                stale.put(ym, -1L);
+        }
+
+        return stale;
+    }
+
+    /**
+     * Decodes months in parallel.
+     *
+     * @return month -> its transactions, in chronological order
+     */
+    private static SortedMap<YearMonth, List<Transaction>> decode(Collection<YearMonth> months) {
+
+        return months.parallelStream()
+                .collect(Collectors.toMap(
+                        ym -> ym,
+                        ym -> Storage.read(ym.getYear(), ym.getMonthValue()),
+                        (a, b) -> a,
+                        TreeMap::new
+                ));
+    }
+
+    private void setVersion(int monthKey, long version) {
+        if (version < 0)
+            versions.remove(monthKey);
+        else
+            versions.put(monthKey, version);
+    }
+}
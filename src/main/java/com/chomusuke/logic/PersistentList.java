@@ -0,0 +1,223 @@
+/*  Accountable: a personal spending monitoring program
+    Copyright (C) 2023  Artur Yukhanov
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package com.chomusuke.logic;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.RandomAccess;
+
+/**
+ * Provides an immutable list sharing its structure with the lists it derives from.
+ * <br>
+ * Elements are stored in chunks of at most {@code 2 * CHUNK_SIZE} elements.
+ * A modification copies the modified chunk and the array of chunk references,
+ * the other chunks are shared, so that a modified list can be published
+ * without copying it, and older versions stay valid.
+ *
+ * @param <T> the type of the elements
+ */
+public final class PersistentList<T> extends AbstractList<T> implements RandomAccess {
+
+    private static final int CHUNK_SIZE = 32;
+
+    private static final PersistentList<?> EMPTY = new PersistentList<>(new Object[0][], new int[0], 0);
+
+    private final Object[][] chunks;
+    // Index of the first element of each chunk
+    private final int[] offsets;
+    private final int size;
+
+    private PersistentList(Object[][] chunks, int[] offsets, int size) {
+        this.chunks = chunks;
+        this.offsets = offsets;
+        this.size = size;
+    }
+
+    /**
+     * Returns the empty list.
+     *
+     * @return an empty list
+     *
+     * @param <T> the type of the elements
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> PersistentList<T> empty() {
+
+        return (PersistentList<T>) EMPTY;
+    }
+
+    /**
+     * Returns a list holding the elements of {@code list}.
+     *
+     * @param list a list
+     *
+     * @return a persistent list
+     *
+     * @param <T> the type of the elements
+     */
+    public static <T> PersistentList<T> of(List<? extends T> list) {
+        Object[] elements = list.toArray();
+        int chunkCount = (elements.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+
+        Object[][] chunks = new Object[chunkCount][];
+        int[] offsets = new int[chunkCount];
+        for (int c = 0 ; c < chunkCount ; c++) {
+            offsets[c] = c * CHUNK_SIZE;
+            chunks[c] = Arrays.copyOfRange(elements, offsets[c], Math.min(offsets[c] + CHUNK_SIZE, elements.length));
+        }
+
+        return new PersistentList<>(chunks, offsets, elements.length);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T get(int index) {
+        Objects.checkIndex(index, size);
+
+        int c = chunkOf(index);
+
+        return (T) chunks[c][index - offsets[c]];
+    }
+
+    @Override
+    public int size() {
+
+        return size;
+    }
+
+    /**
+     * Returns a list in which the element at {@code index} is replaced.
+     *
+     * @param index an index
+     * @param t the new element
+     *
+     * @return the new list
+     */
+    public PersistentList<T> with(int index, T t) {
+        Objects.checkIndex(index, size);
+
+        int c = chunkOf(index);
+        Object[] chunk = chunks[c].clone();
+        chunk[index - offsets[c]] = t;
+
+        Object[][] newChunks = chunks.clone();
+        newChunks[c] = chunk;
+
+        return new PersistentList<>(newChunks, offsets, size);
+    }
+
+    /**
+     * Returns a list in which {@code t} is inserted at {@code index}.
+     *
+     * @param index an index, up to the size of the list
+     * @param t the new element
+     *
+     * @return the new list
+     */
+    public PersistentList<T> plus(int index, T t) {
+        Objects.checkIndex(index, size + 1);
+
+        if (size == 0)
+            return new PersistentList<>(new Object[][]{{t}}, new int[]{0}, 1);
+
+        int c = index == size ? chunks.length - 1 : chunkOf(index);
+        int at = index - offsets[c];
+
+        Object[] old = chunks[c];
+        Object[] chunk = new Object[old.length + 1];
+        System.arraycopy(old, 0, chunk, 0, at);
+        chunk[at] = t;
+        System.arraycopy(old, at, chunk, at + 1, old.length - at);
+
+        // A full chunk is split in halves
+        if (chunk.length > 2 * CHUNK_SIZE) {
+            int half = chunk.length / 2;
+
+            return replace(c, Arrays.copyOfRange(chunk, 0, half), Arrays.copyOfRange(chunk, half, chunk.length));
+        }
+
+        return replace(c, chunk);
+    }
+
+    /**
+     * Returns a list in which {@code t} is appended.
+     *
+     * @param t the new element
+     *
+     * @return the new list
+     */
+    public PersistentList<T> plus(T t) {
+
+        return plus(size, t);
+    }
+
+    /**
+     * Returns a list in which the element at {@code index} is removed.
+     *
+     * @param index an index
+     *
+     * @return the new list
+     */
+    public PersistentList<T> minus(int index) {
+        Objects.checkIndex(index, size);
+
+        int c = chunkOf(index);
+        int at = index - offsets[c];
+
+        Object[] old = chunks[c];
+        if (old.length == 1)
+            return replace(c);
+
+        Object[] chunk = new Object[old.length - 1];
+        System.arraycopy(old, 0, chunk, 0, at);
+        System.arraycopy(old, at + 1, chunk, at, old.length - at - 1);
+
+        return replace(c, chunk);
+    }
+
+    /**
+     * Builds a list in which chunk {@code c} is replaced by {@code replacements}.
+     * Only the offsets of the following chunks are recomputed.
+     */
+    private PersistentList<T> replace(int c, Object[]... replacements) {
+        int chunkCount = chunks.length - 1 + replacements.length;
+        Object[][] newChunks = new Object[chunkCount][];
+        int[] newOffsets = new int[chunkCount];
+
+        System.arraycopy(chunks, 0, newChunks, 0, c);
+        System.arraycopy(offsets, 0, newOffsets, 0, c);
+        System.arraycopy(replacements, 0, newChunks, c, replacements.length);
+        System.arraycopy(chunks, c + 1, newChunks, c + replacements.length, chunks.length - c - 1);
+
+        int offset = c == 0 ? 0 : offsets[c];
+        for (int i = c ; i < chunkCount ; i++) {
+            newOffsets[i] = offset;
+            offset += newChunks[i].length;
+        }
+
+        return new PersistentList<>(newChunks, newOffsets, offset);
+    }
+
+    private int chunkOf(int index) {
+        int c = Arrays.binarySearch(offsets, index);
+
+        return c >= 0 ? c : -c - 2;
+    }
+}
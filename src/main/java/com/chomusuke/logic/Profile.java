@@ -0,0 +1,114 @@
+/*  Accountable: a personal spending monitoring program
+    Copyright (C) 2023  Artur Yukhanov
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package com.chomusuke.logic;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * Tells where, and how, a profile keeps its data.
+ * <br>
+ * The profile is named by the {@code accountable.profile} system property.
+ * The {@code default} profile lives in the data directory of the platform,
+ * the others in its {@code profiles} subdirectory. The {@code profiles.properties}
+ * file of the data directory can set, for each profile:
+ * <ul>
+ *     <li>{@code <profile>.dir}: the directory of the profile</li>
+ *     <li>{@code <profile>.store}: {@code file} or {@code memory}</li>
+ * </ul>
+ * The {@code accountable.dir} and {@code accountable.store} system properties
+ * take precedence, for a single run.
+ *
+ * @param name the name of the profile
+ * @param dir the directory holding the balances, the indexes and the {@code storage} directory
+ * @param store the kind of store
+ */
+public record Profile(String name, Path dir, StoreKind store) {
+
+    private static final String DEFAULT = "default";
+    private static final String PROFILES_FILE = "profiles.properties";
+
+    /**
+     * The kinds of stores.
+     */
+    public enum StoreKind {
+        FILE, MEMORY
+    }
+
+    /**
+     * Returns the profile of this run.
+     *
+     * @return the profile
+     */
+    public static Profile current() {
+        Path base = dataDir().resolve("Accountable");
+        String name = System.getProperty("accountable.profile", DEFAULT);
+
+        Properties properties = new Properties();
+        try (InputStream input = Files.newInputStream(base.resolve(PROFILES_FILE))) {
+            properties.load(input);
+        } catch (NoSuchFileException ignored) {
+            // Exception ignored
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        String dir = setting(properties, name, "dir");
+        Path path = dir != null ? Path.of(dir) : name.equals(DEFAULT) ? base : base.resolve("profiles").resolve(name);
+
+        String store = setting(properties, name, "store");
+        StoreKind kind = store == null ? StoreKind.FILE : StoreKind.valueOf(store.toUpperCase(Locale.ROOT));
+
+        return new Profile(name, path, kind);
+    }
+
+    private static String setting(Properties properties, String profile, String key) {
+
+        return System.getProperty("accountable." + key, properties.getProperty(profile + "." + key));
+    }
+
+    /**
+     * Returns the directory where the platform keeps the data of applications.
+     * On Linux, the directory used by earlier versions is kept if it holds data.
+     */
+    private static Path dataDir() {
+        Path home = Path.of(System.getProperty("user.home"));
+        String os = System.getProperty("os.name");
+
+        if (os.equals("Mac OS X"))
+            return home.resolve("Library/Application Support");
+
+        Path roaming = home.resolve("AppData/Roaming");
+        if (os.startsWith("Windows")) {
+            String appData = System.getenv("APPDATA");
+            return appData != null ? Path.of(appData) : roaming;
+        }
+
+        if (Files.isDirectory(roaming.resolve("Accountable")))
+            return roaming;
+
+        String xdg = System.getenv("XDG_DATA_HOME");
+
+        return xdg != null && !xdg.isEmpty() ? Path.of(xdg) : home.resolve(".local/share");
+    }
+}
@@ -0,0 +1,328 @@
+/*  Accountable: a personal spending monitoring program
+    Copyright (C) 2023  Artur Yukhanov
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package com.chomusuke.logic;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Provides a KLL quantile sketch of float values.
+ * <br>
+ * Values are kept in levels: an item of level {@code h} stands for
+ * {@code 2^h} values. When a level is full, it is sorted and every
+ * other item is promoted to the next level, so the sketch keeps about
+ * {@code 3k} items whatever the number of values, with a rank error
+ * of about {@code 1.7/k}. Sketches can be merged, so they can be built
+ * per month and combined at query time.
+ */
+public class QuantileSketch {
+
+    public static final int DEFAULT_K = 128;
+
+    private static final double CAPACITY_RATIO = 2 / 3.0;
+    private static final int MIN_CAPACITY = 2;
+
+    private final int k;
+    // Level -> items, unsorted
+    private final List<float[]> levels = new ArrayList<>();
+    private final List<Integer> sizes = new ArrayList<>();
+    private long count = 0;
+    private float min = Float.POSITIVE_INFINITY;
+    private float max = Float.NEGATIVE_INFINITY;
+    // Alternates the kept half when compacting, instead of a random bit
+    private boolean odd = false;
+
+    /**
+     * Constructor.
+     *
+     * @param k the accuracy parameter, the larger the more accurate
+     */
+    public QuantileSketch(int k) {
+        this.k = k;
+        addLevel();
+    }
+
+    /**
+     * Constructor with the default accuracy.
+     */
+    public QuantileSketch() {
+
+        this(DEFAULT_K);
+    }
+
+    /**
+     * Adds a value.
+     *
+     * @param v a value
+     */
+    public void add(float v) {
+        count++;
+        min = Math.min(min, v);
+        max = Math.max(max, v);
+
+        push(0, v);
+        compress();
+    }
+
+    /**
+     * Adds all the values summarized by another sketch.
+     *
+     * @param that a sketch
+     */
+    public void merge(QuantileSketch that) {
+        if (that.count == 0)
+            return;
+
+        count += that.count;
+        min = Math.min(min, that.min);
+        max = Math.max(max, that.max);
+
+        for (int h = 0 ; h < that.levels.size() ; h++) {
+            float[] items = that.levels.get(h);
+            for (int i = 0 ; i < that.sizes.get(h) ; i++)
+                push(h, items[i]);
+        }
+        compress();
+    }
+
+    /**
+     * Estimates the value below which a fraction {@code q} of the values fall.
+     *
+     * @param q a fraction between 0 and 1
+     *
+     * @return the estimated quantile, {@code NaN} if the sketch is empty
+     */
+    public float quantile(double q) {
+        if (count == 0)
+            return Float.NaN;
+        if (q <= 0)
+            return min;
+        if (q >= 1)
+            return max;
+
+        float[][] sorted = weighted();
+        double target = q * totalWeight(sorted);
+        double cumulated = 0;
+        for (int i = 0 ; i < sorted[0].length ; i++) {
+            cumulated += sorted[1][i];
+            if (cumulated >= target)
+                return sorted[0][i];
+        }
+
+        return max;
+    }
+
+    /**
+     * Estimates the fraction of the values smaller than or equal to {@code v}.
+     *
+     * @param v a value
+     *
+     * @return a fraction between 0 and 1
+     */
+    public double rank(float v) {
+        if (count == 0)
+            return 0;
+
+        float[][] sorted = weighted();
+        double below = 0;
+        for (int i = 0 ; i < sorted[0].length && sorted[0][i] <= v ; i++)
+            below += sorted[1][i];
+
+        return below / totalWeight(sorted);
+    }
+
+    /**
+     * Returns the number of values added to the sketch.
+     *
+     * @return a count
+     */
+    public long getCount() {
+
+        return count;
+    }
+
+    /**
+     * Returns the smallest value added to the sketch.
+     *
+     * @return a value, positive infinity if the sketch is empty
+     */
+    public float getMin() {
+
+        return min;
+    }
+
+    /**
+     * Returns the largest value added to the sketch.
+     *
+     * @return a value, negative infinity if the sketch is empty
+     */
+    public float getMax() {
+
+        return max;
+    }
+
+    /**
+     * Writes the sketch.
+     *
+     * @param output an output stream
+     *
+     * @throws IOException if the stream can't be written
+     */
+    public void write(DataOutputStream output) throws IOException {
+        output.writeShort(k);
+        output.writeLong(count);
+        output.writeFloat(min);
+        output.writeFloat(max);
+        output.writeByte(levels.size());
+        for (int h = 0 ; h < levels.size() ; h++) {
+            output.writeShort(sizes.get(h));
+            for (int i = 0 ; i < sizes.get(h) ; i++)
+                output.writeFloat(levels.get(h)[i]);
+        }
+    }
+
+    /**
+     * Reads a sketch written by {@code write}.
+     *
+     * @param input an input stream
+     *
+     * @return the sketch
+     *
+     * @throws IOException if the stream can't be read
+     */
+    public static QuantileSketch read(DataInputStream input) throws IOException {
+        QuantileSketch s = new QuantileSketch(input.readShort());
+        s.count = input.readLong();
+        s.min = input.readFloat();
+        s.max = input.readFloat();
+
+        int levelCount = input.readByte();
+        for (int h = 0 ; h < levelCount ; h++) {
+            for (int i = input.readShort() ; i > 0 ; i--)
+                s.push(h, input.readFloat());
+        }
+
+        return s;
+    }
+
+    /**
+     * Returns all the items sorted by value, with their weight.
+     *
+     * @return the values, then the weights
+     */
+    private float[][] weighted() {
+        int n = 0;
+        for (int size : sizes)
+            n += size;
+
+        float[] values = new float[n];
+        float[] weights = new float[n];
+        int j = 0;
+        for (int h = 0 ; h < levels.size() ; h++) {
+            for (int i = 0 ; i < sizes.get(h) ; i++) {
+                values[j] = levels.get(h)[i];
+                weights[j++] = 1L << h;
+            }
+        }
+
+        // Sort the indexes by value
+        Integer[] order = new Integer[n];
+        for (int i = 0 ; i < n ; i++)
+            order[i] = i;
+        Arrays.sort(order, (a, b) -> Float.compare(values[a], values[b]));
+
+        float[][] sorted = new float[2][n];
+        for (int i = 0 ; i < n ; i++) {
+            sorted[0][i] = values[order[i]];
+            sorted[1][i] = weights[order[i]];
+        }
+
+        return sorted;
+    }
+
+    private static double totalWeight(float[][] sorted) {
+        double total = 0;
+        for (float w : sorted[1])
+            total += w;
+
+        return total;
+    }
+
+    private void push(int h, float v) {
+        while (levels.size() <= h)
+            addLevel();
+
+        float[] items = levels.get(h);
+        int size = sizes.get(h);
+        if (size == items.length) {
+            items = Arrays.copyOf(items, items.length * 2);
+            levels.set(h, items);
+        }
+
+        items[size] = v;
+        sizes.set(h, size + 1);
+    }
+
+    private void addLevel() {
+        levels.add(new float[MIN_CAPACITY * 4]);
+        sizes.add(0);
+    }
+
+    /**
+     * Capacity of a level: the top level holds {@code k} items,
+     * each level below holds 2/3 of the level above.
+     */
+    private int capacity(int h) {
+        int depth = levels.size() - 1 - h;
+
+        return Math.max((int) Math.ceil(k * Math.pow(CAPACITY_RATIO, depth)), MIN_CAPACITY);
+    }
+
+    /**
+     * Compacts the full levels, from the bottom up.
+     */
+    private void compress() {
+        for (int h = 0 ; h < levels.size() ; h++) {
+            int size = sizes.get(h);
+            if (size < capacity(h))
+                continue;
+
+            float[] items = levels.get(h);
+            Arrays.sort(items, 0, size);
+
+            // An odd item stays at its level
+            int pairs = size / 2;
+            int offset = odd ? 1 : 0;
+            odd = !odd;
+
+            float leftover = items[size - 1];
+            boolean keepLeftover = size % 2 == 1;
+
+            for (int i = 0 ; i < pairs ; i++)
+                push(h + 1, items[i * 2 + offset]);
+
+            sizes.set(h, 0);
+            if (keepLeftover)
+                push(h, leftover);
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*  Accountable: a personal spending monitoring program
+    Copyright (C) 2023  Artur Yukhanov
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package com.chomusuke.logic;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Verifies the checksums of all the stored files in the background,
+ * so that a damaged month is found before it is needed.
+ * <br>
+ * The scrubber runs on a low-priority thread, one file at a time, and
+ * waits while the storage is being written. The result of each pass is
+ * written to the {@code manifest} file, with the time spent verifying.
+ */
+public class Scrubber {
+
+    private static final String MANIFEST_FILE = "manifest";
+    private static final long IDLE_MS = 5_000;
+    private static final long PASS_INTERVAL_MS = 6 * 3600_000;
+
+    private static final Scrubber INSTANCE = new Scrubber();
+
+    private final List<Consumer<Map<String, String>>> listeners = new CopyOnWriteArrayList<>();
+    // Path relative to the storage -> result of the latest pass
+    private volatile Map<String, String> results = Map.of();
+    private Thread thread = null;
+
+    /**
+     * Don't let anyone instantiate this class.
+     */
+    private Scrubber() {
+    }
+
+    /**
+     * Returns the scrubber of the storage.
+     *
+     * @return the scrubber
+     */
+    public static Scrubber get() {
+
+        return INSTANCE;
+    }
+
+    /**
+     * Starts the background passes, the first one once the storage is idle.
+     */
+    public synchronized void start() {
+        if (thread != null)
+            return;
+
+        thread = new Thread(() -> {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    scrub();
+                    Thread.sleep(PASS_INTERVAL_MS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "scrubber");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Registers a listener called with the damaged files, on the scrubber thread,
+     * after each pass which found other damaged files than the previous one.
+     *
+     * @param listener a listener of path relative to the storage -> cause
+     */
+    public void addListener(Consumer<Map<String, String>> listener) {
+
+        listeners.add(listener);
+    }
+
+    /**
+     * Returns the files found damaged by the latest pass.
+     *
+     * @return path relative to the storage -> cause
+     */
+    public Map<String, String> getCorrupted() {
+        Map<String, String> corrupted = new TreeMap<>();
+        results.forEach((file, result) -> {
+            if (!result.startsWith("ok") && !result.startsWith("unsealed"))
+                corrupted.put(file, result);
+        });
+
+        return corrupted;
+    }
+
+    /**
+     * Verifies all the stored files, then writes the manifest.
+     *
+     * @throws InterruptedException if the thread is interrupted while waiting for the storage
+     */
+    void scrub() throws InterruptedException {
+        // The balances, the months and the archives of the closed years
+        List<Path> files = new ArrayList<>(Storage.getStoredFiles(Storage.generations().visible()).keySet());
+
+        Map<String, String> checked = new TreeMap<>();
+        long bytes = 0;
+        long nanos = 0;
+
+        for (Path file : files) {
+            awaitIdle();
+
+            String name = Storage.getGlobalFile("").relativize(file).toString();
+            long start = System.nanoTime();
+            try {
+                Generations.Verified v = Storage.generations().verify(file);
+                if (v == null)
+                    continue;
+
+                bytes += v.size();
+                checked.put(name, String.format("%s\t%s", v.sealed() ? "ok" : "unsealed", v.version().getFileName()));
+            } catch (Checksums.CorruptionException e) {
+                checked.put(name, "corrupted\t" + e.getMessage());
+                System.out.printf("Scrubber: %s%n", e.getMessage());
+            } catch (IOException e) {
+                checked.put(name, "unreadable\t" + e.getMessage());
+            }
+            nanos += System.nanoTime() - start;
+        }
+
+        Set<String> damaged = getCorrupted().keySet();
+        results = checked;
+        writeManifest(checked, bytes, nanos);
+
+        Map<String, String> corrupted = getCorrupted();
+        if (!corrupted.keySet().equals(damaged)) {
+            for (Consumer<Map<String, String>> listener : listeners)
+                listener.accept(corrupted);
+        }
+
+        System.out.printf("Scrubbed %s files (%s bytes) in %.1f ms%n", checked.size(), bytes, nanos / 1e6);
+    }
+
+    private static void awaitIdle() throws InterruptedException {
+        long idle;
+        while ((idle = System.currentTimeMillis() - Storage.generations().lastCommit()) < IDLE_MS)
+            Thread.sleep(IDLE_MS - idle);
+    }
+
+    private static void writeManifest(Map<String, String> checked, long bytes, long nanos) {
+        StringBuilder manifest = new StringBuilder();
+        manifest.append(String.format("# %s: %s files, %s bytes verified in %.1f ms%n",
+                Instant.now(), checked.size(), bytes, nanos / 1e6));
+        checked.forEach((file, result) -> manifest.append(file).append('\t').append(result).append('\n'));
+
+        try {
+            Generations.writeDurably(Storage.getGlobalFile(MANIFEST_FILE), manifest.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,338 @@
+/*  Accountable: a personal spending monitoring program
+    Copyright (C) 2023  Artur Yukhanov
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package com.chomusuke.logic;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Provides full-history search over transaction names.
+ * <br>
+ * Names are split into lower-case tokens. Each token maps to the
+ * postings of the rows containing it, encoded as {@code (year, month, row)}
+ * integers, and all the tokens are kept in a prefix trie so that the
+ * last word of a query can be matched while it is being typed.
+ * <br>
+ * The names and computed values of the rows are kept as well, so that
+ * hits can be displayed without decoding their months.
+ */
+public class SearchIndex extends PersistentIndex {
+
+    private static final int MAX_TOKEN_COMPLETIONS = 64;
+
+    private static final SearchIndex INSTANCE = new SearchIndex();
+
+    // Month key -> names and computed values of its rows
+    private final Map<Integer, MonthEntry> months = new HashMap<>();
+    // Token -> sorted postings
+    private final Map<String, TreeSet<Integer>> postings = new HashMap<>();
+    private final TokenTrie trie = new TokenTrie();
+
+    /**
+     * Don't let anyone instantiate this class.
+     */
+    private SearchIndex() {
+
+        super("search.idx", 0x53494458);  // "SIDX"
+    }
+
+    /**
+     * Returns the search index of the storage.
+     *
+     * @return the search index
+     */
+    public static SearchIndex get() {
+
+        return INSTANCE;
+    }
+
+    /**
+     * Searches the whole history for rows whose name contains all the
+     * words of {@code query}. The last word may be incomplete.
+     *
+     * @param query a query
+     * @param limit the maximum number of hits
+     *
+     * @return the hits, most recent first
+     */
+    public synchronized List<Hit> search(String query, int limit) {
+        ensureLoaded();
+
+        List<String> tokens = tokenize(query);
+        if (tokens.isEmpty())
+            return List.of();
+
+        // Exact words first, they are the most selective
+        Set<Integer> result = null;
+        for (String token : tokens.subList(0, tokens.size() - 1)) {
+            TreeSet<Integer> p = postings.get(token);
+            if (p == null)
+                return List.of();
+
+            result = intersect(result, p);
+        }
+
+        // The last word is a prefix
+        Set<Integer> prefixed = new HashSet<>();
+        for (String token : trie.complete(tokens.get(tokens.size() - 1), MAX_TOKEN_COMPLETIONS))
+            prefixed.addAll(postings.get(token));
+        result = intersect(result, prefixed);
+
+        List<Hit> hits = new ArrayList<>();
+        for (int posting : new TreeSet<>(result).descendingSet()) {
+            if (hits.size() >= limit)
+                break;
+
+            int key = posting >>> ROW_BITS;
+            int row = posting & ROW_MASK;
+            MonthEntry entry = months.get(key);
+            hits.add(new Hit(key / 16, key % 16, row, entry.names[row], entry.values[row]));
+        }
+
+        return hits;
+    }
+
+    @Override
+    protected void clear() {
+        months.clear();
+        postings.clear();
+        trie.clear();
+    }
+
+    @Override
+    protected void index(int year, int month, List<Transaction> txs) {
+        int key = monthKey(year, month);
+
+        MonthEntry old = months.remove(key);
+        if (old != null)
+            removePostings(key, old);
+
+        MonthEntry entry = MonthEntry.of(txs, CarryOver.get().getValues(year, month, txs));
+        months.put(key, entry);
+        addPostings(key, entry);
+    }
+
+    @Override
+    protected void write(DataOutputStream output) throws IOException {
+        output.writeInt(months.size());
+        for (Map.Entry<Integer, MonthEntry> e : months.entrySet()) {
+            output.writeInt(e.getKey());
+            output.writeShort(e.getValue().names.length);
+            for (int row = 0 ; row < e.getValue().names.length ; row++) {
+                output.writeUTF(e.getValue().names[row]);
+                output.writeFloat(e.getValue().values[row]);
+            }
+        }
+
+        output.writeInt(postings.size());
+        for (Map.Entry<String, TreeSet<Integer>> e : postings.entrySet()) {
+            output.writeUTF(e.getKey());
+            output.writeInt(e.getValue().size());
+            for (int posting : e.getValue())
+                output.writeInt(posting);
+        }
+    }
+
+    @Override
+    protected void read(DataInputStream input) throws IOException {
+        for (int i = input.readInt() ; i > 0 ; i--) {
+            int key = input.readInt();
+            int n = input.readShort();
+            MonthEntry entry = new MonthEntry(new String[n], new float[n]);
+            for (int row = 0 ; row < n ; row++) {
+                entry.names[row] = input.readUTF();
+                entry.values[row] = input.readFloat();
+            }
+            months.put(key, entry);
+        }
+
+        for (int i = input.readInt() ; i > 0 ; i--) {
+            String token = input.readUTF();
+            TreeSet<Integer> set = new TreeSet<>();
+            for (int j = input.readInt() ; j > 0 ; j--)
+                set.add(input.readInt());
+
+            postings.put(token, set);
+            trie.add(token);
+        }
+    }
+
+    private void addPostings(int key, MonthEntry entry) {
+        for (int row = 0 ; row < entry.names.length ; row++) {
+            for (String token : tokenize(entry.names[row])) {
+                postings.computeIfAbsent(token, t -> {
+                    trie.add(t);
+                    return new TreeSet<>();
+                }).add(posting(key, row));
+            }
+        }
+    }
+
+    private void removePostings(int key, MonthEntry entry) {
+        for (int row = 0 ; row < entry.names.length ; row++) {
+            for (String token : tokenize(entry.names[row])) {
+                TreeSet<Integer> p = postings.get(token);
+                if (p == null)
+                    continue;
+
+                p.remove(posting(key, row));
+                if (p.isEmpty()) {
+                    postings.remove(token);
+                    trie.remove(token);
+                }
+            }
+        }
+    }
+
+    private static Set<Integer> intersect(Set<Integer> a, Set<Integer> b) {
+        if (a == null)
+            return b;
+
+        Set<Integer> result = new HashSet<>();
+        Set<Integer> small = a.size() < b.size() ? a : b;
+        Set<Integer> large = small == a ? b : a;
+        for (int p : small) {
+            if (large.contains(p))
+                result.add(p);
+        }
+
+        return result;
+    }
+
+    /**
+     * Splits a name into lower-case tokens made of letters and digits.
+     *
+     * @param s a string
+     *
+     * @return the distinct tokens of the string
+     */
+    static List<String> tokenize(String s) {
+        List<String> tokens = new ArrayList<>();
+        StringBuilder token = new StringBuilder();
+
+        for (int i = 0 ; i <= s.length() ; i++) {
+            char c = i < s.length() ? s.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                token.append(Character.toLowerCase(c));
+            } else if (token.length() > 0) {
+                if (!tokens.contains(token.toString()))
+                    tokens.add(token.toString());
+                token.setLength(0);
+            }
+        }
+
+        return tokens;
+    }
+
+    /**
+     * This record provides a search result.
+     *
+     * @param year the year of the row
+     * @param month the month of the row
+     * @param row the index of the row in its month, as read from the storage
+     * @param name the name of the transaction
+     * @param value the computed value of the transaction
+     */
+    public record Hit(int year, int month, int row, String name, float value) {
+    }
+
+    /**
+     * Names and computed values of the rows of a month.
+     */
+    private record MonthEntry(String[] names, float[] values) {
+
+        private static MonthEntry of(List<Transaction> txs, float[] values) {
+            String[] names = new String[txs.size()];
+            for (int i = 0 ; i < names.length ; i++)
+                names[i] = txs.get(i).name();
+
+            return new MonthEntry(names, values);
+        }
+    }
+
+    /**
+     * Provides a prefix tree of tokens.
+     */
+    private static class TokenTrie {
+
+        private Node root = new Node();
+
+        private void add(String token) {
+            Node n = root;
+            for (int i = 0 ; i < token.length() ; i++)
+                n = n.children.computeIfAbsent(token.charAt(i), c -> new Node());
+
+            n.terminal = true;
+        }
+
+        private void remove(String token) {
+            Deque<Node> path = new ArrayDeque<>();
+            Node n = root;
+            for (int i = 0 ; i < token.length() && n != null ; i++) {
+                path.push(n);
+                n = n.children.get(token.charAt(i));
+            }
+            if (n == null)
+                return;
+
+            n.terminal = false;
+
+            // Prune the branches that don't lead to any token
+            for (int i = token.length() - 1 ; i >= 0 && !n.terminal && n.children.isEmpty() ; i--) {
+                Node parent = path.pop();
+                parent.children.remove(token.charAt(i));
+                n = parent;
+            }
+        }
+
+        private List<String> complete(String prefix, int limit) {
+            Node n = root;
+            for (int i = 0 ; i < prefix.length() && n != null ; i++)
+                n = n.children.get(prefix.charAt(i));
+
+            List<String> tokens = new ArrayList<>();
+            if (n != null)
+                collect(n, new StringBuilder(prefix), tokens, limit);
+
+            return tokens;
+        }
+
+        private void collect(Node n, StringBuilder prefix, List<String> tokens, int limit) {
+            if (tokens.size() >= limit)
+                return;
+            if (n.terminal)
+                tokens.add(prefix.toString());
+
+            for (Map.Entry<Character, Node> e : n.children.entrySet()) {
+                prefix.append(e.getKey());
+                collect(e.getValue(), prefix, tokens, limit);
+                prefix.setLength(prefix.length() - 1);
+            }
+        }
+
+        private void clear() {
+
+            root = new Node();
+        }
+
+        private static class Node {
+            private final Map<Character, Node> children = new HashMap<>();
+            private boolean terminal = false;
+        }
+    }
+}
@@ -17,69 +17,79 @@
 
 package com.chomusuke.logic;
 
-import java.io.*;
-import java.nio.file.FileAlreadyExistsException;
-import java.nio.file.Files;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Path;
+import java.time.YearMonth;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 import com.chomusuke.util.Preconditions;
 import com.chomusuke.util.Time;
 
 import static com.chomusuke.logic.Transaction.TransactionType;
-import static com.chomusuke.logic.Transaction.ValueType;
 
 /**
- * Provides disk storage for transactions.
+ * Provides storage for transactions, through the store of the profile.
  */
 public class Storage {
 
-    private static final int MAX_TRANSACTION_COUNT = 512;
+    public static final int MAX_TRANSACTION_COUNT = 512;
     private static final int MAX_ACCOUNT_COUNT = 256;
 
-    private static final Path ROOT_DIR = Path.of(System.getProperty("user.home")).resolve(System.getProperty("os.name").equals("Mac OS X") ? "Library/Application Support" : "AppData/Roaming");
-    private static final Path DIR_NAME = ROOT_DIR.resolve("Accountable/storage/");
+    private static final Profile PROFILE = Profile.current();
+    private static final Path DIR_NAME = PROFILE.dir().resolve("storage");
+
+    // The transactions and the accounts are kept by the same store
+    private static final TransactionStore STORE = open(PROFILE);
+    private static final AccountStore ACCOUNTS = (AccountStore) STORE;
+
+    // The carry-over comes first, the other indexes use the carries it computes
+    private static final List<MonthIndex> INDEXES = new CopyOnWriteArrayList<>(List.of(
+            CarryOver.get(),
+            new DuplicateFilter(),
+            SearchIndex.get(),
+            new ZoneMapIndex(),
+            AccountIndex.get(),
+            DistributionIndex.get()
+    ));
+
+    // Subscription writing the changes of the ledger, and version of the last written accounts
+    private static LedgerEvents.Channel writer = null;
+    private static long writtenAccounts = 0;
+    // Told about the changes of the ledger which couldn't be stored
+    private static volatile Consumer<UncheckedIOException> onWriteFailure = e -> {};
+
+    // Month loaded in the window, only written through the changes of the ledger
+    private static final Object LOADED_LOCK = new Object();
+    private static YearMonth loaded = null;
 
     /**
      * Don't let anyone instantiate this class.
      */
     private Storage() {}
 
-    public static void writeAccounts(Map<Byte, Account> accounts) {
-        Path file = DIR_NAME.getParent().resolve("balances");
+    private static TransactionStore open(Profile profile) {
+        System.out.printf("Using the %s store of the %s profile in %s%n", profile.store().name().toLowerCase(), profile.name(), profile.dir());
 
-        createDirFiles(file);
+        return switch (profile.store()) {
+            case FILE -> new FileStore(profile.dir());
+            case MEMORY -> new MemoryStore();
+        };
+    }
 
-        try (DataOutputStream output = new DataOutputStream(new FileOutputStream(file.toString()))) {
-            for (Byte id : accounts.keySet()) {
-                output.writeByte(id);
-                output.writeUTF(accounts.get(id).getName());
-                output.writeDouble(accounts.get(id).getBalance());
-                output.writeDouble(accounts.get(id).getObjective());
-            }
+    public static synchronized void writeAccounts(Map<Byte, Account> accounts) {
 
-            System.out.printf("Wrote %s balances%n", accounts.size());
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        ACCOUNTS.writeAccounts(accounts);
+        System.out.printf("Wrote %s balances%n", accounts.size());
     }
 
     public static Map<Byte, Account> readAccounts() {
-        Path file = DIR_NAME.getParent().resolve("balances");
-
-        Map<Byte, Account> balances = new HashMap<>();
-
-        try (DataInputStream input = new DataInputStream(new FileInputStream(file.toString()))) {
-            byte id;
-            Account account;
-            for (int i = 0 ; i < MAX_ACCOUNT_COUNT ; i++) {
-                id = input.readByte();
-                account = new Account(input.readUTF(), input.readDouble(), input.readDouble());
-                balances.put(id, account);
-            }
+        Map<Byte, Account> balances = ACCOUNTS.readAccounts();
 
-            throw new RuntimeException("The file contains too much accounts.");
-        } catch (FileNotFoundException notFoundException) {
+        if (balances == null) {
             // Account balance recovery if the file is missing, but transactions are still there
             // The account names can't be recovered
             System.out.println("The balances file is missing. Reconstructing...");
@@ -87,10 +97,8 @@ public class Storage {
             balances = readBalancesFromTransactions();
 
             writeAccounts(balances);
-        } catch (EOFException ignored) {
-            // Exception ignored
-        } catch (IOException exception) {
-            exception.printStackTrace();
+        } else if (balances.size() > MAX_ACCOUNT_COUNT) {
+            throw new RuntimeException("The file contains too much accounts.");
         }
 
         return balances;
@@ -107,55 +115,91 @@ public class Storage {
     public static void write(Transaction t, int year, int month) {
         Preconditions.checkArgument(month > 0 && month <= 12);
 
-        Path file = DIR_NAME.resolve(String.format("%s/%s", year, month));
+        STORE.append(year, month, List.of(t));
+        System.out.println("Wrote 1 transaction");
 
-        createDirFiles(file);
+        updateIndexes(year, month);
+    }
 
-        try (DataOutputStream output = new DataOutputStream(new FileOutputStream(file.toString(), true))) {
+    /**
+     * Appends all the transactions of the specified list to a file according
+     * to the given year and month, using a single output stream.
+     * This method does not overwrite existing data in the file.
+     *
+     * @param list  a {@code Transaction} list
+     * @param year  a value
+     * @param month a value
+     */
+    public static void append(List<Transaction> list, int year, int month) {
+        Preconditions.checkArgument(month > 0 && month <= 12);
 
-            output.writeUTF(t.name());
-            output.writeByte(t.to());
-            output.writeByte(t.packTypes());
-            output.writeFloat(t.value());
+        STORE.append(year, month, list);
+        System.out.printf("Appended %s transactions%n", list.size());
 
-            System.out.println("Wrote 1 transaction");
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        updateIndexes(year, month);
     }
 
     /**
-     * Writes the specified list to a file according to the given year and month.
-     * This method overwrites any existing date in the file.
+     * Appends transactions to a month, unless the month is loaded in the window.
+     * <br>
+     * The window rewrites the loaded month from its own content, so rows
+     * appended behind its back could be lost: they must be added to the
+     * transaction list instead.
      *
      * @param list  a {@code Transaction} list
      * @param year  a value
      * @param month a value
+     *
+     * @return false if the month is loaded, and nothing was appended
      */
-    public static void write(List<Transaction> list, int year, int month) {
+    public static boolean appendUnlessLoaded(List<Transaction> list, int year, int month) {
         Preconditions.checkArgument(month > 0 && month <= 12);
 
-        Path file = DIR_NAME.resolve(String.format("%s/%s", year, month));
+        synchronized (LOADED_LOCK) {
+            if (YearMonth.of(year, month).equals(loaded))
+                return false;
 
-        createDirFiles(file);
+            STORE.append(year, month, list);
+        }
+        System.out.printf("Appended %s transactions%n", list.size());
 
-        try (DataOutputStream output = new DataOutputStream(new FileOutputStream(file.toString()))) {
+        updateIndexes(year, month);
 
-            for (Transaction t : list) {
-                output.writeUTF(t.name());
-                output.writeByte(t.to());
-                output.writeByte(t.packTypes());
-                output.writeFloat(t.value());
-            }
+        return true;
+    }
 
-            System.out.printf("Wrote %s transactions%n", list.size());
-        } catch (IOException e) {
-            e.printStackTrace();
+    /**
+     * Records the month about to be loaded in the window.
+     * Must be called once its pending changes are written, before it is read.
+     *
+     * @param year a value
+     * @param month a value
+     */
+    public static void setLoaded(int year, int month) {
+        synchronized (LOADED_LOCK) {
+            loaded = YearMonth.of(year, month);
         }
     }
 
     /**
-     * Loads the file located at year/month.
+     * Writes the specified list to a file according to the given year and month.
+     * This method overwrites any existing date in the file.
+     *
+     * @param list  a {@code Transaction} list
+     * @param year  a value
+     * @param month a value
+     */
+    public static void write(List<Transaction> list, int year, int month) {
+        Preconditions.checkArgument(month > 0 && month <= 12);
+
+        STORE.write(year, month, list);
+        System.out.printf("Wrote %s transactions%n", list.size());
+
+        updateIndexes(year, month);
+    }
+
+    /**
+     * Loads the transactions of a month, revenues first.
      *
      * @param year a value
      * @param month a value
@@ -165,122 +209,378 @@ public class Storage {
     public static List<Transaction> read(int year, int month) {
         Preconditions.checkArgument(month > 0 && month <= 12);
 
-        Path file = DIR_NAME.resolve(String.format("%s/%s", year, month));
-
         LinkedList<Transaction> txs = new LinkedList<>();
+        List<Transaction> rows = STORE.read(year, month);
 
-        try (DataInputStream input = new DataInputStream(new FileInputStream(file.toString()))) {
-            for (int i = 0 ; i < MAX_TRANSACTION_COUNT ; i++) {
-                String name = input.readUTF();
+        if (rows.size() > MAX_TRANSACTION_COUNT)
+            System.out.printf("The file %s/%s contains too much transactions.%n", year, month);
 
-                byte to = input.readByte();
+        for (Transaction t : rows.subList(0, Math.min(rows.size(), MAX_TRANSACTION_COUNT)))
+            addInReadOrder(txs, t);
 
-                byte types = input.readByte();
-                TransactionType tt = TransactionType.of((byte) (types >>> 2));
-                ValueType vt = ValueType.of(types);
+        return txs;
+    }
 
-                float value = input.readFloat();
+    /**
+     * Packs the months of a closed year into a single archive.
+     *
+     * @param year a year before the current one
+     *
+     * @throws IllegalArgumentException if the year isn't closed
+     * @throws IOException if the year can't be packed, its months are left as they are then
+     */
+    public static void archive(int year) throws IOException {
 
-                Transaction newTx = new Transaction(name, to, tt, vt, value);
-                if (tt.equals(TransactionType.REVENUE))
-                    txs.add(0, newTx);
-                else
-                    txs.add(newTx);
-            }
+        files().archive(year);
+    }
 
-            throw new RuntimeException(String.format("The file %s/%s contains too much transactions.", year, month));
-        } catch (FileNotFoundException e) {
-            return new ArrayList<>();
-        } catch (EOFException ignored) {
-            // Exception ignored
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+    /**
+     * Packs all the years before the current one which have month files,
+     * if the months are kept in files.
+     */
+    public static void archiveClosedYears() {
+        if (STORE instanceof FileStore f)
+            f.archiveClosedYears();
+    }
 
-        return txs;
+    /**
+     * Adds a transaction to a list the same way {@code read} does:
+     * revenues first, the other transactions in file order.
+     *
+     * @param txs a list
+     * @param t a transaction
+     */
+    private static void addInReadOrder(List<Transaction> txs, Transaction t) {
+        if (t.transactionType().equals(TransactionType.REVENUE))
+            txs.add(0, t);
+        else
+            txs.add(t);
     }
 
     /**
-     * Returns the files that exist in the corresponding
-     * year's directory.
-     * <br>
-     * The files need to be named as integers
-     * in order to be counted.
+     * Returns the months written in the specified year.
      *
      * @param year a value
      *
-     * @return a list of available months
+     * @return a list of available months, sorted as strings
      */
     public static List<String> getAvailableMonths(int year) {
+        List<String> months = new ArrayList<>();
+        for (YearMonth ym : STORE.months()) {
+            if (ym.getYear() == year)
+                months.add(Integer.toString(ym.getMonthValue()));
+        }
 
-        return getAvailable(Integer.toString(year));
+        Collections.sort(months);
+
+        return months;
     }
 
     /**
-     * Returns the directories that exist in the
-     * global storage directory.
-     * <br>
-     * The directories need to be named as integers
-     * in order to be counted.
+     * Returns the years in which a month was written.
      *
      * @return a list of available years
      */
     public static List<String> getAvailableYears() {
+        SortedSet<String> years = new TreeSet<>();
+        for (YearMonth ym : STORE.months())
+            years.add(Integer.toString(ym.getYear()));
 
-        return getAvailable("");
+        return new ArrayList<>(years);
     }
 
     /**
-     * Lists the existing files or directories at the given path.
-     * <br>
-     * The files/directories need to be named as integers
-     * in order to be counted.
+     * Returns all the months that exist in the storage,
+     * in chronological order.
+     *
+     * @return a list of available months
+     */
+    public static List<YearMonth> getAvailableDates() {
+
+        return STORE.months();
+    }
+
+    /**
+     * Returns the version of each month, which changes each time the month is written.
+     *
+     * @return month -> version, in chronological order
+     */
+    static SortedMap<YearMonth, Long> getMonthVersions() {
+
+        return STORE.versions();
+    }
+
+    /**
+     * Returns the version of a month, which changes each time the month is written.
      *
-     * @param path a path
+     * @param year a value
+     * @param month a value
      *
-     * @return a list of files/directories
+     * @return the version, -1 if the month doesn't exist
      */
-    private static List<String> getAvailable(String path) {
+    static long getMonthVersion(int year, int month) {
 
-        List<String> valid = new ArrayList<>();
-        File[] availableF = new File(DIR_NAME.resolve(path).toString()).listFiles();
+        return STORE.version(year, month);
+    }
 
-        if (availableF != null) {
-            for (File f : availableF) {
-                // Filters out non-integer-named files and directories
-                try {
-                    Integer.parseInt(f.getName());
+    /**
+     * Tells whether the specified month was written, as seen by the readers.
+     *
+     * @param year a value
+     * @param month a value
+     *
+     * @return true if the month exists
+     */
+    public static boolean exists(int year, int month) {
+        return STORE.exists(year, month);
+    }
 
-                    valid.add(f.getName());
-                } catch (NumberFormatException ignored) {
-                    // Exception ignored
-                }
+    /**
+     * Makes the reads of this process see the storage as currently committed,
+     * until {@code unpin} is called. Writes made meanwhile, by this process
+     * or another one, are kept but not seen.
+     *
+     * Stores without snapshots keep showing the latest writes.
+     */
+    public static void pin() {
+
+        STORE.pin();
+    }
+
+    /**
+     * Makes the reads of this process see the latest committed storage again.
+     */
+    public static void unpin() {
+
+        STORE.unpin();
+    }
+
+    /**
+     * Tells whether the months and the balances are kept in files.
+     * Backups, encryption, scrubbing, migration and archives only apply to files.
+     *
+     * @return true if the profile uses the file store
+     */
+    public static boolean hasFiles() {
+
+        return STORE instanceof FileStore;
+    }
+
+    /**
+     * Returns the file store of the profile.
+     *
+     * @return the file store
+     *
+     * @throws IllegalStateException if the profile uses another store
+     */
+    static FileStore files() {
+        if (STORE instanceof FileStore f)
+            return f;
+
+        throw new IllegalStateException(String.format("The %s profile doesn't keep its data in files", PROFILE.name()));
+    }
+
+    /**
+     * Returns the generations holding the months and the balances.
+     *
+     * @return the generations of the storage
+     */
+    static Generations generations() {
+
+        return files().generations();
+    }
+
+    /**
+     * Returns the balances and month files as committed at a generation.
+     *
+     * @param generation a generation
+     *
+     * @return path of each file, without generation -> path of its version
+     */
+    static SortedMap<Path, Path> getStoredFiles(long generation) {
+
+        return files().getStoredFiles(generation);
+    }
+
+    /**
+     * Replaces stored files in a single commit, then updates the indexes
+     * of the replaced months in chronological order.
+     *
+     * @param contents path of each file, without generation -> content, {@code null} to delete the file
+     *
+     * @throws IOException if the files can't be committed, none is replaced then
+     */
+    static void restore(Map<Path, byte[]> contents) throws IOException {
+        SortedSet<YearMonth> months = files().restore(contents);
+
+        // Deleted months are indexed as empty, which removes them from the indexes
+        for (YearMonth ym : months)
+            reindex(ym.getYear(), ym.getMonthValue());
+
+        System.out.printf("Restored %s files%n", contents.size());
+    }
+
+    /**
+     * Registers an index to be updated each time a month is written.
+     *
+     * @param index a month index
+     */
+    public static void register(MonthIndex index) {
+
+        INDEXES.add(index);
+    }
+
+    /**
+     * Updates all the registered indexes with the content of a month,
+     * without writing it.
+     *
+     * @param year a value
+     * @param month a value
+     */
+    static void reindex(int year, int month) {
+
+        updateIndexes(year, month);
+    }
+
+    /**
+     * Updates all the registered indexes with the content of all the months,
+     * in chronological order. Months are decoded in parallel first.
+     */
+    public static void reindexAll() {
+        // Taken first, as by updateIndexes
+        SortedMap<YearMonth, Long> versions = getMonthVersions();
+        Map<YearMonth, List<Transaction>> decoded = versions.keySet().parallelStream()
+                .collect(Collectors.toMap(
+                        ym -> ym,
+                        ym -> read(ym.getYear(), ym.getMonthValue()),
+                        (a, b) -> a,
+                        TreeMap::new
+                ));
+
+        decoded.forEach((ym, txs) -> updateIndexes(ym.getYear(), ym.getMonthValue(), txs, versions.get(ym)));
+
+        System.out.printf("Reindexed %s months%n", decoded.size());
+    }
+
+    /**
+     * Updates all the registered indexes with the new content of a month.
+     * <br>
+     * The version is taken before the content is read: if another process
+     * writes the month in between, the indexes remember an older version
+     * than the content they hold, and catch up when they are next loaded.
+     *
+     * @param year a value
+     * @param month a value
+     */
+    private static void updateIndexes(int year, int month) {
+        long version = STORE.version(year, month);
+
+        updateIndexes(year, month, read(year, month), version);
+    }
+
+    private static void updateIndexes(int year, int month, List<Transaction> txs, long version) {
+        for (MonthIndex index : INDEXES) {
+            try {
+                index.update(year, month, txs, version);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
             }
         }
+    }
 
-        Collections.sort(valid);
+    /**
+     * Writes the changes of the ledger as they are published, on a thread of its own.
+     *
+     * @param events the stream of the changes
+     */
+    public static void follow(LedgerEvents events) {
 
-        return valid;
+        writer = events.subscribe("storage", Storage::persist);
     }
 
     /**
-     * Creates the directory and file corresponding to the path
-     * {@code DIR_NAME}/a/b
+     * Sets the handler told, on the thread writing the changes of the ledger,
+     * about the changes which couldn't be stored. They are kept in memory only.
      *
-     * @param p the path to the file
+     * @param handler a handler
      */
-    private static void createDirFiles(Path p) {
+    public static void setOnWriteFailure(Consumer<UncheckedIOException> handler) {
+
+        onWriteFailure = handler;
+    }
+
+    /**
+     * Waits for the published changes of the ledger to be written,
+     * before reading a month that may have been modified.
+     */
+    public static void awaitWrites() {
+        if (writer != null)
+            writer.awaitIdle();
+    }
+
+    /**
+     * Writes a change of the ledger.
+     * <br>
+     * Added transactions are appended, zero-valued ones being left out,
+     * other changes rewrite the month from the snapshot. Changes of the
+     * accounts write the latest accounts, once for several changes.
+     *
+     * @param event a change
+     */
+    private static void persist(LedgerEvent event) {
+        Ledger.Snapshot s = event.snapshot();
+
+        if (event instanceof LedgerEvent.TransactionEvent && s.month() < 1)
+            return;
 
         try {
-            Files.createDirectories(p.getParent());
-            Files.createFile(p);
-        } catch (FileAlreadyExistsException ignored) {
-            // Exception ignored
-        } catch (Exception e) {
+            if (event instanceof LedgerEvent.TransactionAdded a) {
+                if (a.transaction().value() != 0)
+                    write(a.transaction(), s.year(), s.month());
+            } else if (event instanceof LedgerEvent.TransactionEvent) {
+                write(s.transactions(), s.year(), s.month());
+            } else if (event instanceof LedgerEvent.AccountChanged) {
+                Ledger.Snapshot latest = Ledger.get().snapshot();
+                if (latest.version() > writtenAccounts) {
+                    writeAccounts(latest.accounts());
+                    writtenAccounts = latest.version();
+                }
+            }
+        } catch (UncheckedIOException e) {
             e.printStackTrace();
+            onWriteFailure.accept(e);
         }
     }
 
+    /**
+     * Returns the path of a file stored next to the {@code balances} file.
+     *
+     * @param name the name of the file
+     *
+     * @return the path to the file
+     */
+    static Path getGlobalFile(String name) {
+
+        return PROFILE.dir().resolve(name);
+    }
+
+    /**
+     * Returns the path of a file stored next to the specified month.
+     * <br>
+     * The name of the file isn't an integer, so it is never
+     * listed as an available month.
+     *
+     * @param year a value
+     * @param month a value
+     * @param extension the extension of the file
+     *
+     * @return the path to the index file
+     */
+    static Path getIndexFile(int year, int month, String extension) {
+
+        return DIR_NAME.resolve(String.format("%s/%s%s", year, month, extension));
+    }
+
     /**
      * Retrieves an account map from existing transactions.
      * <br>
@@ -295,36 +595,18 @@ public class Storage {
     public static Map<Byte, Account> readBalancesFromTransactions() {
         Map<Byte, Account> balances = new HashMap<>();
 
-        List<String> years = getAvailableYears();
-        List<String> months;
-        TransactionList transactions = new TransactionList();
-        float[] values;
-
-        // Looks into all the directories to find savings transactions
-        for (String y : years) {
-
-            months = getAvailableMonths(Integer.parseInt(y));
-            for (String m : months) {
-
-                transactions.setTransactionList(read(Integer.parseInt(y), Integer.parseInt(m)));
-                values = transactions.getValues();
-                for (int i = 0 ; i < transactions.getTransactionList().size() ; i++) {
-                    Transaction t = transactions.getTransactionList().get(i);
-
-                    if (t.to() != 0) {
-                        if (!balances.containsKey(t.to()))
-                            balances.put(t.to(), new Account(Integer.toString(balances.size()+1), 0));
-
-                        balances.get(t.to()).update(-values[i]);
-                    }
-                }
-            }
+        // The account index replays the balances without decoding the history,
+        // once it holds every stored month
+        AccountIndex index = AccountIndex.get();
+        index.refresh();
+        for (byte id : index.getAccountIds()) {
+            Account a = new Account(Integer.toString(balances.size()+1), index.getBalance(id));
 
             // Mark accounts with no balance following transactions as deleted
-            for (Account a : balances.values()) {
-                if (a.getBalance() == 0)
-                    a.update(-1);
-            }
+            if (a.getBalance() == 0)
+                a.update(-1);
+
+            balances.put(id, a);
         }
 
         return balances;
@@ -332,6 +614,11 @@ public class Storage {
 
     /**
      * This method retreives the balance changes from january of the current year and compiles them in an array.
+     * <br>
+     * The account index is read as it is, without catching up on the months
+     * written by another process. It is loaded first if needed, which may
+     * rebuild it: the JavaFX thread only calls this once the index is fresh,
+     * see {@code AccountIndex.isFresh}.
      *
      * @return an array with the balances of the last m months, m being the current month
      */
@@ -341,18 +628,16 @@ public class Storage {
         int month = Time.getCurrentMonth();
 
         // YTD -> from january to current month
+        // The month-end balances are materialized by the account index, no month is replayed here
         double[] balances = new double[month];
-        double balancesTotal = readAccounts().values().stream()
-                .mapToDouble(Account::getBalance)
-                .filter(d -> d != -1)
-                .sum();
-        balancesTotal = Math.round(balancesTotal*100)/100d;
-        for (int i = month ; i > 0 ; i--) {
-            balances[i-1] = balancesTotal;
-            balancesTotal -= Account.ModMap.of(read(year, i)).sum();
-            balancesTotal = Math.round(balancesTotal*100)/100d;
+        AccountIndex index = AccountIndex.get();
+        for (byte id : index.getAccountIds()) {
+            Kernels.add(balances, index.getMonthEndBalances(id, YearMonth.of(year, 1), month));
         }
 
+        for (int i = 0 ; i < month ; i++)
+            balances[i] = Math.round(balances[i]*100)/100d;
+
         return balances;
     }
-}
\ No newline at end of file
+}
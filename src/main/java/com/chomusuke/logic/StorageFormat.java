@@ -0,0 +1,273 @@
+/*  Accountable: a personal spending monitoring program
+    Copyright (C) 2023  Artur Yukhanov
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package com.chomusuke.logic;
+
+import java.io.*;
+import java.util.*;
+
+import static com.chomusuke.logic.Transaction.TransactionType;
+import static com.chomusuke.logic.Transaction.ValueType;
+
+/**
+ * Encodes and decodes the content of the month and balances files.
+ * <br>
+ * Since version 2, a file starts with a header: three bytes telling the
+ * kind of the file, then the version of its format. Version 1 files have
+ * no header, their first bytes are data. A header is never mistaken for
+ * data: it would be read as a name more than 16000 bytes long.
+ * <br>
+ * Files of every version are read. Files are written in the current
+ * version, but appending to a file keeps its version, so an old file
+ * stays old until {@code Migration} upgrades it.
+ */
+final class StorageFormat {
+
+    /**
+     * The version of the files written.
+     */
+    static final int CURRENT = 2;
+
+    static final int HEADER_SIZE = Integer.BYTES;
+
+    /**
+     * The kinds of files carrying a header.
+     */
+    enum Kind {
+        MONTH(0x41464D),     // "AFM"
+        BALANCES(0x414642);  // "AFB"
+
+        private final int magic;
+
+        Kind(int magic) {
+
+            this.magic = magic;
+        }
+    }
+
+    /**
+     * Don't let anyone instantiate this class.
+     */
+    private StorageFormat() {
+    }
+
+    /**
+     * Returns the header of a file written in the current version.
+     *
+     * @param kind the kind of the file
+     *
+     * @return the header
+     */
+    static byte[] header(Kind kind) {
+        int header = kind.magic << 8 | CURRENT;
+
+        return new byte[] {(byte) (header >>> 24), (byte) (header >>> 16), (byte) (header >>> 8), (byte) header};
+    }
+
+    /**
+     * Returns the version of the format of a file.
+     *
+     * @param kind the kind of the file
+     * @param content the content of the file
+     *
+     * @return the version, 1 for a file without header
+     */
+    static int version(Kind kind, byte[] content) {
+        if (content.length < HEADER_SIZE)
+            return 1;
+
+        int header = (content[0] & 0xFF) << 24 | (content[1] & 0xFF) << 16 | (content[2] & 0xFF) << 8 | (content[3] & 0xFF);
+
+        return header >>> 8 == kind.magic ? header & 0xFF : 1;
+    }
+
+    /**
+     * Encodes a whole month in the current version.
+     *
+     * @param list the transactions, in file order
+     *
+     * @return the content of the month file
+     */
+    static byte[] encodeMonth(List<Transaction> list) {
+
+        return concat(header(Kind.MONTH), encodeRows(list));
+    }
+
+    /**
+     * Encodes transactions to be appended to a month file, of any version.
+     *
+     * @param list the transactions
+     *
+     * @return the rows
+     */
+    static byte[] encodeRows(List<Transaction> list) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        try (DataOutputStream output = new DataOutputStream(bytes)) {
+            for (Transaction t : list) {
+                output.writeUTF(t.name());
+                output.writeByte(t.to());
+                output.writeByte(t.packTypes());
+                output.writeFloat(t.value());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decodes the transactions of a month file, in file order.
+     * A truncated last transaction, left by versions without checksums, is dropped.
+     *
+     * @param content the content of a month file
+     *
+     * @return the transactions
+     *
+     * @throws IOException if the file was written by a newer version
+     */
+    static List<Transaction> decodeMonth(byte[] content) throws IOException {
+        int version = version(Kind.MONTH, content);
+
+        // The rows haven't changed since version 1
+        return switch (version) {
+            case 1 -> decodeRows(content, 0);
+            case 2 -> decodeRows(content, HEADER_SIZE);
+            default -> throw newer(version);
+        };
+    }
+
+    /**
+     * Encodes the accounts in the current version.
+     *
+     * @param accounts an account map
+     *
+     * @return the content of the balances file
+     */
+    static byte[] encodeBalances(Map<Byte, Account> accounts) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        try (DataOutputStream output = new DataOutputStream(bytes)) {
+            output.write(header(Kind.BALANCES));
+            for (Byte id : accounts.keySet()) {
+                output.writeByte(id);
+                output.writeUTF(accounts.get(id).getName());
+                output.writeDouble(accounts.get(id).getBalance());
+                output.writeDouble(accounts.get(id).getObjective());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decodes the accounts of a balances file.
+     *
+     * @param content the content of the balances file
+     *
+     * @return id -> account
+     *
+     * @throws IOException if the file was written by a newer version
+     */
+    static Map<Byte, Account> decodeBalances(byte[] content) throws IOException {
+        int version = version(Kind.BALANCES, content);
+
+        return switch (version) {
+            case 1 -> decodeAccounts(content, 0);
+            case 2 -> decodeAccounts(content, HEADER_SIZE);
+            default -> throw newer(version);
+        };
+    }
+
+    /**
+     * Rewrites a file in the current version.
+     *
+     * @param kind the kind of the file
+     * @param content the content of the file, of any version
+     *
+     * @return the content in the current version
+     *
+     * @throws IOException if the file was written by a newer version
+     */
+    static byte[] upgrade(Kind kind, byte[] content) throws IOException {
+        if (version(kind, content) == CURRENT)
+            return content;
+
+        return switch (kind) {
+            case MONTH -> encodeMonth(decodeMonth(content));
+            case BALANCES -> encodeBalances(decodeBalances(content));
+        };
+    }
+
+    private static List<Transaction> decodeRows(byte[] content, int from) {
+        List<Transaction> txs = new ArrayList<>();
+
+        try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(content, from, content.length - from))) {
+            while (input.available() > 0) {
+                String name = input.readUTF();
+
+                byte to = input.readByte();
+
+                byte types = input.readByte();
+                TransactionType tt = TransactionType.of((byte) (types >>> 2));
+                ValueType vt = ValueType.of(types);
+
+                float value = input.readFloat();
+
+                txs.add(new Transaction(name, to, tt, vt, value));
+            }
+        } catch (EOFException ignored) {
+            // Exception ignored
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        return txs;
+    }
+
+    private static Map<Byte, Account> decodeAccounts(byte[] content, int from) {
+        Map<Byte, Account> balances = new HashMap<>();
+
+        try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(content, from, content.length - from))) {
+            while (input.available() > 0) {
+                byte id = input.readByte();
+                balances.put(id, new Account(input.readUTF(), input.readDouble(), input.readDouble()));
+            }
+        } catch (EOFException ignored) {
+            // Exception ignored
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        return balances;
+    }
+
+    private static IOException newer(int version) {
+
+        return new IOException(String.format("Written by a newer version of the format (%s, this one reads up to %s)", version, CURRENT));
+    }
+
+    static byte[] concat(byte[] a, byte[] b) {
+        byte[] c = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, c, a.length, b.length);
+
+        return c;
+    }
+}
@@ -36,6 +36,9 @@ public class TransactionList {
 
     private boolean setAllFlag = false;
 
+    // Remainder carried over from the previous month
+    private float carry = 0;
+
     /**
      * Replaces all transactions in memory by the transactions
      * in {@code txs}.
@@ -66,6 +69,27 @@ public class TransactionList {
         return setAllFlag;
     }
 
+    /**
+     * Sets the remainder carried over from the previous month.
+     * Must be set before the transactions of the month are.
+     *
+     * @param carry a value, 0 if carry-over is disabled
+     */
+    public void setCarry(float carry) {
+
+        this.carry = carry;
+    }
+
+    /**
+     * Returns the remainder carried over from the previous month.
+     *
+     * @return a value
+     */
+    public float getCarry() {
+
+        return carry;
+    }
+
     /**
      * Computes the values of all transactions
      * currently in memory.
@@ -74,7 +98,7 @@ public class TransactionList {
      */
     public float[] getValues() {
 
-        return getValues(this.txs);
+        return getValues(this.txs, carry);
     }
 
     /**
@@ -86,9 +110,27 @@ public class TransactionList {
      * @return the values of the transactions
      */
     public static float[] getValues(List<Transaction> txs) {
+
+        return getValues(txs, 0);
+    }
+
+    /**
+     * Computes the values of all transactions
+     * contained in the specified array, starting with
+     * funds carried over from the previous month.
+     * <br>
+     * The carried funds count as remaining funds,
+     * but not as revenue.
+     *
+     * @param txs an array of transactions
+     * @param carry the carried over remainder
+     *
+     * @return the values of the transactions
+     */
+    public static float[] getValues(List<Transaction> txs, float carry) {
         float[] values = new float[txs.size()];
         float valueP = 0;  // Total income
-        float valueN = 0;  // Total expenses
+        float valueN = -carry;  // Total expenses
 
         for (int i = 0 ; i < txs.size() ; i++) {
             Transaction t = txs.get(i);
@@ -129,13 +171,9 @@ public class TransactionList {
     }
 
     public float getRemainder(float[] values) {
-        float sum = 0;
+        double sum = carry + Kernels.sum(values);
 
-        for (float v : values) {
-            sum += v;
-        }
-
-        return Math.round(sum * 100)/100.0f;
+        return (float) (Math.round(sum * 100)/100.0);
     }
 
     /**
@@ -157,7 +195,6 @@ public class TransactionList {
      * @param oldT The old transaction
      */
     public void add(Transaction t, Transaction oldT) {
-
         if (oldT != null) {
 
             int index = txs.indexOf(oldT);
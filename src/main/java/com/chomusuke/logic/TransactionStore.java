@@ -0,0 +1,122 @@
+/*  Accountable: a personal spending monitoring program
+    Copyright (C) 2023  Artur Yukhanov
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package com.chomusuke.logic;
+
+import java.io.UncheckedIOException;
+import java.time.YearMonth;
+import java.util.List;
+import java.util.SortedMap;
+
+/**
+ * Keeps the transactions of each month.
+ * <br>
+ * A store only keeps rows: the read order, the indexes and the
+ * events are handled by {@code Storage}, whatever the store.
+ */
+public interface TransactionStore {
+
+    /**
+     * Reads the transactions of a month.
+     *
+     * @param year a value
+     * @param month a value
+     *
+     * @return the transactions in the order they were written, empty if the month doesn't exist
+     */
+    List<Transaction> read(int year, int month);
+
+    /**
+     * Adds transactions at the end of a month, creating it if needed.
+     *
+     * @param year a value
+     * @param month a value
+     * @param list the transactions
+     *
+     * @throws UncheckedIOException if the transactions can't be stored
+     */
+    void append(int year, int month, List<Transaction> list);
+
+    /**
+     * Replaces the transactions of a month, creating it if needed.
+     *
+     * @param year a value
+     * @param month a value
+     * @param list the transactions
+     *
+     * @throws UncheckedIOException if the transactions can't be stored
+     */
+    void write(int year, int month, List<Transaction> list);
+
+    /**
+     * Lists the months written, even empty.
+     *
+     * @return the months, in chronological order
+     */
+    List<YearMonth> months();
+
+    /**
+     * Returns the version of each month: a number which changes each time
+     * the month is written, by any process. Data derived from the months
+     * and kept apart from the store, such as the indexes, remember the
+     * versions they were computed from.
+     *
+     * @return month -> version, in chronological order
+     */
+    SortedMap<YearMonth, Long> versions();
+
+    /**
+     * Returns the version of a month.
+     *
+     * @param year a value
+     * @param month a value
+     *
+     * @return the version, -1 if the month doesn't exist
+     */
+    default long version(int year, int month) {
+
+        return versions().getOrDefault(YearMonth.of(year, month), -1L);
+    }
+
+    /**
+     * Tells whether a month was written.
+     *
+     * @param year a value
+     * @param month a value
+     *
+     * @return true if the month exists
+     */
+    default boolean exists(int year, int month) {
+
+        return months().contains(YearMonth.of(year, month));
+    }
+
+    /**
+     * Makes the reads see the store as it is now, until {@code unpin} is called.
+     * Stores without snapshots keep showing the latest writes.
+     *
+     * @throws UncheckedIOException if the snapshot can't be taken
+     */
+    default void pin() {
+    }
+
+    /**
+     * Makes the reads see the latest writes again.
+     */
+    default void unpin() {
+    }
+}
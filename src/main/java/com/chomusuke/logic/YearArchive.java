@@ -0,0 +1,215 @@
+/*  Accountable: a personal spending monitoring program
+    Copyright (C) 2023  Artur Yukhanov
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package com.chomusuke.logic;
+
+import java.io.*;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import static com.chomusuke.logic.Transaction.TransactionType;
+import static com.chomusuke.logic.Transaction.ValueType;
+
+/**
+ * Provides the archive of a closed year: all its months in a single
+ * compressed file, decoded at once.
+ * <br>
+ * The rows of the year are stored by column: the names as indexes into
+ * a dictionary of the distinct names of the year, most frequent first,
+ * then the accounts, the types and the values. Each column is thus made
+ * of similar values, which the compression packs well.
+ * <br>
+ * Rows are kept in file order, so that a month decoded from the archive
+ * is the month that was archived.
+ * <br>
+ * Archives start with a magic and the version of their format.
+ */
+final class YearArchive {
+
+    private static final int MAGIC = 0x41415256;  // "AARV"
+    // The version of the archives written
+    private static final int CURRENT = 1;
+
+    private final Path version;
+    private final SortedMap<Integer, List<Transaction>> months;
+
+    /**
+     * Constructor.
+     *
+     * @param version the version of the archive file
+     * @param months the months of the archive
+     */
+    YearArchive(Path version, SortedMap<Integer, List<Transaction>> months) {
+        this.version = version;
+        this.months = months;
+    }
+
+    Path version() {
+
+        return version;
+    }
+
+    /**
+     * Returns the months of the archive.
+     *
+     * @return month -> transactions in file order, unmodifiable
+     */
+    SortedMap<Integer, List<Transaction>> months() {
+
+        return months;
+    }
+
+    /**
+     * Encodes months into an archive.
+     *
+     * @param months month -> transactions in file order
+     *
+     * @return the bytes of the archive
+     */
+    static byte[] encode(SortedMap<Integer, List<Transaction>> months) {
+        // Dictionary of the names, most frequent first for the shortest indexes
+        Map<String, Integer> counts = new HashMap<>();
+        for (List<Transaction> txs : months.values()) {
+            for (Transaction t : txs)
+                counts.merge(t.name(), 1, Integer::sum);
+        }
+        List<String> names = new ArrayList<>(counts.keySet());
+        names.sort(Comparator.comparing((String n) -> -counts.get(n)).thenComparing(n -> n));
+
+        Map<String, Integer> ids = new HashMap<>();
+        for (String n : names)
+            ids.put(n, ids.size());
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream output = new DataOutputStream(new DeflaterOutputStream(bytes, new Deflater(Deflater.BEST_COMPRESSION)))) {
+            output.writeInt(MAGIC);
+            output.writeByte(CURRENT);
+
+            writeVarInt(output, names.size());
+            for (String n : names)
+                output.writeUTF(n);
+
+            writeVarInt(output, months.size());
+            for (Map.Entry<Integer, List<Transaction>> e : months.entrySet()) {
+                output.writeByte(e.getKey());
+                writeVarInt(output, e.getValue().size());
+            }
+
+            // One column after the other, over all the rows of the year
+            for (List<Transaction> txs : months.values()) {
+                for (Transaction t : txs)
+                    writeVarInt(output, ids.get(t.name()));
+            }
+            for (List<Transaction> txs : months.values()) {
+                for (Transaction t : txs)
+                    output.writeByte(t.to());
+            }
+            for (List<Transaction> txs : months.values()) {
+                for (Transaction t : txs)
+                    output.writeByte(t.packTypes());
+            }
+            for (List<Transaction> txs : months.values()) {
+                for (Transaction t : txs)
+                    output.writeFloat(t.value());
+            }
+        } catch (IOException e) {
+            // Written to memory
+            throw new UncheckedIOException(e);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decodes an archive.
+     *
+     * @param archive the bytes of an archive
+     *
+     * @return month -> transactions in file order, unmodifiable
+     *
+     * @throws IOException if the archive is malformed, or was written by a newer version
+     */
+    static SortedMap<Integer, List<Transaction>> decode(byte[] archive) throws IOException {
+        try (DataInputStream input = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(archive)))) {
+            if (input.readInt() != MAGIC)
+                throw new IOException("Not a year archive");
+
+            int version = input.readUnsignedByte();
+            if (version > CURRENT)
+                throw new IOException(String.format("Written by a newer version of the archive format (%s, this one reads up to %s)", version, CURRENT));
+
+            String[] names = new String[readVarInt(input)];
+            for (int i = 0 ; i < names.length ; i++)
+                names[i] = input.readUTF();
+
+            int[] monthNumbers = new int[readVarInt(input)];
+            int[] sizes = new int[monthNumbers.length];
+            int rows = 0;
+            for (int m = 0 ; m < monthNumbers.length ; m++) {
+                monthNumbers[m] = input.readByte();
+                sizes[m] = readVarInt(input);
+                rows += sizes[m];
+            }
+
+            int[] nameIds = new int[rows];
+            byte[] to = new byte[rows];
+            byte[] types = new byte[rows];
+            for (int r = 0 ; r < rows ; r++)
+                nameIds[r] = readVarInt(input);
+            input.readFully(to);
+            input.readFully(types);
+
+            SortedMap<Integer, List<Transaction>> months = new TreeMap<>();
+            int r = 0;
+            for (int m = 0 ; m < monthNumbers.length ; m++) {
+                List<Transaction> txs = new ArrayList<>(sizes[m]);
+                for (int i = 0 ; i < sizes[m] ; i++, r++) {
+                    txs.add(new Transaction(names[nameIds[r]], to[r],
+                            TransactionType.of((byte) (types[r] >>> 2)), ValueType.of(types[r]), input.readFloat()));
+                }
+                months.put(monthNumbers[m], Collections.unmodifiableList(txs));
+            }
+
+            return Collections.unmodifiableSortedMap(months);
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Malformed year archive", e);
+        }
+    }
+
+    private static void writeVarInt(DataOutputStream output, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            output.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        output.writeByte(value);
+    }
+
+    private static int readVarInt(DataInputStream input) throws IOException {
+        int value = 0;
+        for (int shift = 0 ; shift < 32 ; shift += 7) {
+            byte b = input.readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+
+        throw new IOException("Malformed year archive");
+    }
+}
@@ -0,0 +1,123 @@
+/*  Accountable: a personal spending monitoring program
+    Copyright (C) 2023  Artur Yukhanov
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package com.chomusuke.logic;
+
+import java.io.*;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Provides the zone maps of the months: a {@code MonthSummary}
+ * stored next to each month file and rewritten with it.
+ * <br>
+ * Each summary is stamped with the version of the month it was built
+ * from, and rebuilt when loaded if the month was written since, by this
+ * process or another one. Files written in a previous format have
+ * another magic, and are rebuilt when read.
+ */
+public class ZoneMapIndex implements MonthIndex {
+
+    private static final String EXTENSION = ".zone";
+    private static final int MAGIC = 0x5A4F4E33;  // "ZON3"
+
+    private static final Map<Integer, Stamped> CACHE = new ConcurrentHashMap<>();
+
+    @Override
+    public void update(int year, int month, List<Transaction> txs) {
+
+        update(year, month, txs, Storage.getMonthVersion(year, month));
+    }
+
+    @Override
+    public void update(int year, int month, List<Transaction> txs, long version) {
+        Stamped stamped = new Stamped(version, summarize(year, month, txs));
+
+        CACHE.put(year * 16 + month, stamped);
+        write(year, month, stamped);
+    }
+
+    /**
+     * Loads the summary of the specified month.
+     * <br>
+     * If the month has no summary yet, or the month was written since
+     * its summary was built, it is built from the month and saved for
+     * the next time.
+     *
+     * @param year a value
+     * @param month a value
+     *
+     * @return the summary of the month
+     */
+    public static MonthSummary load(int year, int month) {
+        long version = Storage.getMonthVersion(year, month);
+
+        return CACHE.compute(year * 16 + month, (k, cached) ->
+                cached != null && cached.version() == version ? cached : read(year, month, version)).summary();
+    }
+
+    private static Stamped read(int year, int month, long version) {
+        Path file = Storage.getIndexFile(year, month, EXTENSION);
+
+        try (DataInputStream input = new DataInputStream(Encryption.get().open(file.toFile()))) {
+            if (input.readInt() == MAGIC && input.readLong() == version)
+                return new Stamped(version, MonthSummary.read(input));
+        } catch (FileNotFoundException e) {
+            // Built below
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        // Missing, unreadable, stale, or written in a previous format
+        Stamped stamped = new Stamped(version, summarize(year, month, Storage.read(year, month)));
+
+        if (Storage.exists(year, month))
+            write(year, month, stamped);
+
+        return stamped;
+    }
+
+    private static MonthSummary summarize(int year, int month, List<Transaction> txs) {
+        float carry = CarryOver.get().getCarry(year, month);
+
+        return MonthSummary.of(txs, carry, TransactionList.getValues(txs, carry));
+    }
+
+    private static void write(int year, int month, Stamped stamped) {
+        Path file = Storage.getIndexFile(year, month, EXTENSION);
+
+        try (DataOutputStream output = new DataOutputStream(Encryption.get().create(file.toFile()))) {
+            output.writeInt(MAGIC);
+            output.writeLong(stamped.version());
+            stamped.summary().write(output);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * A summary, with the version of the month it was built from.
+     *
+     * @param version the version of the month, see {@code Storage.getMonthVersion}
+     * @param summary the summary
+     */
+    private record Stamped(long version, MonthSummary summary) {
+    }
+}
@@ -0,0 +1,180 @@
+/*  Accountable: a personal spending monitoring program
+    Copyright (C) 2023  Artur Yukhanov
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package com.chomusuke.logic.io;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import static com.chomusuke.logic.Transaction.TransactionType;
+import static com.chomusuke.logic.Transaction.ValueType;
+
+/**
+ * Provides streaming reading of CSV bank statements.
+ * <br>
+ * The expected columns are: date, name, amount, and optionally
+ * transaction type, value type and account name.
+ * <br>
+ * The separator ({@code ,} or {@code ;}) is detected on the first line.
+ * Lines whose date can't be parsed, such as headers, are skipped.
+ */
+public class CsvStatementParser implements StatementParser {
+
+    private static final List<DateTimeFormatter> DATE_FORMATS = List.of(
+            DateTimeFormatter.ISO_LOCAL_DATE,
+            DateTimeFormatter.ofPattern("dd.MM.yyyy"),
+            DateTimeFormatter.ofPattern("dd/MM/yyyy"),
+            DateTimeFormatter.BASIC_ISO_DATE
+    );
+
+    private final BufferedReader reader;
+    private char separator = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param reader a reader on the statement
+     */
+    public CsvStatementParser(BufferedReader reader) {
+
+        this.reader = reader;
+    }
+
+    @Override
+    public StatementRow next() throws IOException {
+        String line;
+
+        while ((line = reader.readLine()) != null) {
+            if (line.isBlank())
+                continue;
+
+            if (separator == 0)
+                separator = line.indexOf(';') >= 0 ? ';' : ',';
+
+            StatementRow row = parse(split(line));
+            if (row != null)
+                return row;
+        }
+
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+
+        reader.close();
+    }
+
+    /**
+     * Builds a row from the fields of a line.
+     *
+     * @param fields the fields of a line
+     *
+     * @return a row, or {@code null} if the line isn't a valid row
+     */
+    private StatementRow parse(List<String> fields) {
+        if (fields.size() < 3)
+            return null;
+
+        LocalDate date = parseDate(fields.get(0));
+        if (date == null)
+            return null;
+
+        try {
+            String amount = fields.get(2).replace(" ", "").replace("'", "");
+            // Decimal commas are only possible when they aren't the separator
+            if (separator == ';')
+                amount = amount.replace(',', '.');
+
+            TransactionType tt = fields.size() > 3 && !fields.get(3).isBlank() ?
+                    TransactionType.valueOf(fields.get(3).trim().toUpperCase(Locale.ROOT)) :
+                    null;
+            ValueType vt = fields.size() > 4 && !fields.get(4).isBlank() ?
+                    ValueType.valueOf(fields.get(4).trim().toUpperCase(Locale.ROOT)) :
+                    null;
+            String account = fields.size() > 5 && !fields.get(5).isBlank() ?
+                    fields.get(5).trim() :
+                    null;
+
+            return new StatementRow(date, fields.get(1).trim(), Float.parseFloat(amount), tt, vt, account);
+        } catch (IllegalArgumentException e) {
+            // Also catches NumberFormatException
+            System.out.printf("Skipped malformed statement line: %s%n", fields);
+            return null;
+        }
+    }
+
+    /**
+     * Splits a line into fields, taking double-quoted fields into account.
+     *
+     * @param line a line
+     *
+     * @return the fields of the line
+     */
+    private List<String> split(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+
+        for (int i = 0 ; i < line.length() ; i++) {
+            char c = line.charAt(i);
+
+            if (c == '"') {
+                // Escaped quote inside a quoted field
+                if (quoted && i+1 < line.length() && line.charAt(i+1) == '"') {
+                    field.append('"');
+                    i++;
+                } else {
+                    quoted = !quoted;
+                }
+            } else if (c == separator && !quoted) {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+
+        return fields;
+    }
+
+    /**
+     * Parses a date using one of the supported formats.
+     *
+     * @param s a string
+     *
+     * @return the date, or {@code null} if no format matches
+     */
+    private static LocalDate parseDate(String s) {
+        for (DateTimeFormatter f : DATE_FORMATS) {
+            try {
+                return LocalDate.parse(s.trim(), f);
+            } catch (DateTimeParseException ignored) {
+                // Exception ignored
+            }
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,355 @@
+/*  Accountable: a personal spending monitoring program
+    Copyright (C) 2023  Artur Yukhanov
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package com.chomusuke.logic.io;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.YearMonth;
+import java.util.*;
+import java.util.concurrent.*;
+
+import com.chomusuke.logic.Account;
+import com.chomusuke.logic.CarryOver;
+import com.chomusuke.logic.Storage;
+import com.chomusuke.logic.Transaction;
+
+/**
+ * Provides exporting of the whole history to a single file.
+ * <br>
+ * The available years and months are walked in order. Months are
+ * decoded in parallel by a few decoders, but only a small window of
+ * months ahead of the writer is kept in memory, and the output is
+ * always written in chronological order.
+ */
+public class Exporter {
+
+    private static final int DECODER_COUNT = Math.min(4, Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Don't let anyone instantiate this class.
+     */
+    private Exporter() {
+    }
+
+    /**
+     * Exports the whole history to the specified file.
+     *
+     * @param file the output file
+     * @param format the output format
+     * @param accounts an account map, used to name the savings accounts
+     *
+     * @return the number of exported transactions
+     *
+     * @throws IOException if the file can't be written
+     */
+    public static int export(Path file, Format format, Map<Byte, Account> accounts) throws IOException {
+        List<YearMonth> months = Storage.getAvailableDates();
+
+        ExecutorService decoders = Executors.newFixedThreadPool(DECODER_COUNT);
+        Deque<Future<List<Transaction>>> window = new ArrayDeque<>();
+        int count = 0;
+
+        try (OutputStream output = new BufferedOutputStream(Files.newOutputStream(file))) {
+            MonthWriter writer = format.writer(output, accounts);
+
+            Iterator<YearMonth> toDecode = months.iterator();
+            for (YearMonth ym : months) {
+                // Keep the decoders busy, at most one window ahead of the writer
+                while (toDecode.hasNext() && window.size() < DECODER_COUNT) {
+                    YearMonth next = toDecode.next();
+                    window.add(decoders.submit(() -> Storage.read(next.getYear(), next.getMonthValue())));
+                }
+
+                List<Transaction> txs = window.remove().get();
+                writer.write(ym, txs, CarryOver.get().getValues(ym.getYear(), ym.getMonthValue(), txs));
+                count += txs.size();
+            }
+
+            writer.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } finally {
+            decoders.shutdownNow();
+        }
+
+        System.out.printf("Exported %s transactions from %s months%n", count, months.size());
+
+        return count;
+    }
+
+
+    /**
+     * This enum provides constants for the export formats.
+     */
+    public enum Format {
+        CSV(".csv"),
+        JSON_LINES(".jsonl"),
+        COLUMNAR(".acol");
+
+        private final String extension;
+
+        Format(String extension) {
+
+            this.extension = extension;
+        }
+
+        /**
+         * Returns the extension of the files of this format.
+         *
+         * @return an extension, with its leading dot
+         */
+        public String getExtension() {
+
+            return extension;
+        }
+
+        /**
+         * Finds the format corresponding to the extension of a file.
+         *
+         * @param file a file
+         *
+         * @return the corresponding format, CSV by default
+         */
+        public static Format of(Path file) {
+            String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+            for (Format f : values()) {
+                if (name.endsWith(f.extension))
+                    return f;
+            }
+
+            return CSV;
+        }
+
+        private MonthWriter writer(OutputStream output, Map<Byte, Account> accounts) throws IOException {
+            return switch (this) {
+                case CSV -> new CsvWriter(output, accounts);
+                case JSON_LINES -> new JsonWriter(output, accounts);
+                case COLUMNAR -> new ColumnarWriter(output);
+            };
+        }
+    }
+
+    /**
+     * Provides writing of decoded months in an export format.
+     */
+    private interface MonthWriter {
+
+        void write(YearMonth ym, List<Transaction> txs, float[] values) throws IOException;
+
+        void close() throws IOException;
+    }
+
+    /**
+     * Writes one line per transaction, with a header line.
+     * Lines end with {@code \n} whatever the platform.
+     */
+    private static class CsvWriter implements MonthWriter {
+
+        private final Writer out;
+        private final Map<Byte, Account> accounts;
+
+        private CsvWriter(OutputStream output, Map<Byte, Account> accounts) throws IOException {
+            this.out = new OutputStreamWriter(output, StandardCharsets.UTF_8);
+            this.accounts = accounts;
+
+            out.write("year,month,name,type,value_type,account,value,computed_value\n");
+        }
+
+        @Override
+        public void write(YearMonth ym, List<Transaction> txs, float[] values) throws IOException {
+            for (int i = 0 ; i < txs.size() ; i++) {
+                Transaction t = txs.get(i);
+
+                out.write(String.format(Locale.ROOT, "%d,%d,%s,%s,%s,%s,%s,%s\n",
+                        ym.getYear(), ym.getMonthValue(),
+                        quote(t.name()),
+                        t.transactionType(), t.valueType(),
+                        quote(accountName(accounts, t.to())),
+                        t.value(), values[i]));
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+
+            out.flush();
+        }
+
+        private static String quote(String s) {
+            if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0 && s.indexOf('\r') < 0)
+                return s;
+
+            return '"' + s.replace("\"", "\"\"") + '"';
+        }
+    }
+
+    /**
+     * Writes one JSON object per line and per transaction.
+     * Lines end with {@code \n} whatever the platform.
+     */
+    private static class JsonWriter implements MonthWriter {
+
+        private final Writer out;
+        private final Map<Byte, Account> accounts;
+
+        private JsonWriter(OutputStream output, Map<Byte, Account> accounts) {
+            this.out = new OutputStreamWriter(output, StandardCharsets.UTF_8);
+            this.accounts = accounts;
+        }
+
+        @Override
+        public void write(YearMonth ym, List<Transaction> txs, float[] values) throws IOException {
+            for (int i = 0 ; i < txs.size() ; i++) {
+                Transaction t = txs.get(i);
+
+                out.write(String.format(Locale.ROOT,
+                        "{\"year\":%d,\"month\":%d,\"name\":%s,\"type\":\"%s\",\"valueType\":\"%s\",\"account\":%s,\"value\":%s,\"computedValue\":%s}\n",
+                        ym.getYear(), ym.getMonthValue(),
+                        quote(t.name()),
+                        t.transactionType(), t.valueType(),
+                        t.to() == 0 ? "null" : quote(accountName(accounts, t.to())),
+                        t.value(), values[i]));
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+
+            out.flush();
+        }
+
+        private static String quote(String s) {
+            StringBuilder b = new StringBuilder("\"");
+
+            for (int i = 0 ; i < s.length() ; i++) {
+                char c = s.charAt(i);
+                switch (c) {
+                    case '"' -> b.append("\\\"");
+                    case '\\' -> b.append("\\\\");
+                    case '\n' -> b.append("\\n");
+                    case '\r' -> b.append("\\r");
+                    case '\t' -> b.append("\\t");
+                    default -> {
+                        if (c < 0x20)
+                            b.append(String.format("\\u%04x", (int) c));
+                        else
+                            b.append(c);
+                    }
+                }
+            }
+
+            return b.append('"').toString();
+        }
+    }
+
+    /**
+     * Writes a columnar file with one row group per month.
+     * <br>
+     * Layout: the magic {@code ACOL}, then each row group as its
+     * columns one after the other (names, accounts, packed types,
+     * values, computed values), then a footer listing the year, month,
+     * offset and row count of each group, followed by the footer's
+     * offset and the magic again. Readers can thus jump to any month
+     * or column without reading the whole file, as with Parquet.
+     */
+    private static class ColumnarWriter implements MonthWriter {
+
+        private static final int MAGIC = 0x41434F4C;  // "ACOL"
+        private static final int VERSION = 1;
+
+        private final CountingOutputStream counter;
+        private final DataOutputStream out;
+        private final List<long[]> groups = new ArrayList<>();
+
+        private ColumnarWriter(OutputStream output) throws IOException {
+            this.counter = new CountingOutputStream(output);
+            this.out = new DataOutputStream(counter);
+
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+        }
+
+        @Override
+        public void write(YearMonth ym, List<Transaction> txs, float[] values) throws IOException {
+            groups.add(new long[] {ym.getYear(), ym.getMonthValue(), counter.count, txs.size()});
+
+            for (Transaction t : txs)
+                out.writeUTF(t.name());
+            for (Transaction t : txs)
+                out.writeByte(t.to());
+            for (Transaction t : txs)
+                out.writeByte(t.packTypes());
+            for (Transaction t : txs)
+                out.writeFloat(t.value());
+            for (float v : values)
+                out.writeFloat(v);
+        }
+
+        @Override
+        public void close() throws IOException {
+            long footer = counter.count;
+
+            out.writeInt(groups.size());
+            for (long[] g : groups) {
+                out.writeInt((int) g[0]);
+                out.writeByte((int) g[1]);
+                out.writeLong(g[2]);
+                out.writeShort((int) g[3]);
+            }
+            out.writeLong(footer);
+            out.writeInt(MAGIC);
+            out.flush();
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        private long count = 0;
+
+        private CountingOutputStream(OutputStream out) {
+
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    private static String accountName(Map<Byte, Account> accounts, byte id) {
+        if (id == 0)
+            return "";
+
+        Account a = accounts.get(id);
+
+        return a == null ? Byte.toString(id) : a.getName();
+    }
+}
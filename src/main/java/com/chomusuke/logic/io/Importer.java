@@ -0,0 +1,407 @@
+/*  Accountable: a personal spending monitoring program
+    Copyright (C) 2023  Artur Yukhanov
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package com.chomusuke.logic.io;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.YearMonth;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.chomusuke.logic.Account;
+import com.chomusuke.logic.BloomFilter;
+import com.chomusuke.logic.CarryOver;
+import com.chomusuke.logic.DuplicateFilter;
+import com.chomusuke.logic.Fingerprint;
+import com.chomusuke.logic.Storage;
+import com.chomusuke.logic.Transaction;
+
+import static com.chomusuke.logic.Transaction.TransactionType;
+import static com.chomusuke.logic.Transaction.ValueType;
+
+/**
+ * Provides importing of bank statements into the storage.
+ * <br>
+ * The statement is parsed as a stream, each row is normalized into a
+ * {@code Transaction} and routed to a buffer according to its year and month.
+ * Full buffers are appended to their month by a pool of writers, one batch
+ * at a time per month, and the balance changes are summed once per batch.
+ * The accounts themselves aren't modified: the changes are reported, for
+ * the owner of the accounts to apply them.
+ * <br>
+ * The month loaded in the window is never appended to, as the window would
+ * overwrite it with its own content. Its rows are reported instead, for the
+ * window to add them to the loaded month.
+ * <br>
+ * Memory is bounded: the parser waits for the writers when too many
+ * batches are pending, and the largest buffer is flushed when too
+ * many rows are buffered.
+ * <br>
+ * Rows already present in their month are skipped, so that overlapping
+ * statements can be imported again. The Bloom filter of each month is
+ * checked first, and a month is only decoded when its filter can't
+ * tell a row apart from the existing ones.
+ */
+public class Importer {
+
+    private static final int BATCH_SIZE = 128;
+    private static final int MAX_BUFFERED_ROWS = 2048;
+    private static final int MAX_PENDING_BATCHES = 8;
+    private static final int WRITER_COUNT = Math.min(4, Runtime.getRuntime().availableProcessors());
+
+    private final Map<String, Byte> accountIds = new HashMap<>();
+    private final Account.ModMap changes = Account.ModMap.of(null);
+
+    private final Map<YearMonth, List<Transaction>> buffers = new HashMap<>();
+    private final Map<YearMonth, CompletableFuture<Void>> tails = new HashMap<>();
+    private final Map<YearMonth, MonthState> states = new HashMap<>();
+    // Rows of the months that were loaded in the window when their batch was written
+    private final Map<YearMonth, List<Transaction>> kept = new ConcurrentHashMap<>();
+    private final Semaphore pending = new Semaphore(MAX_PENDING_BATCHES);
+    private int buffered = 0;
+
+    private final AtomicInteger imported = new AtomicInteger();
+    private final AtomicInteger rejected = new AtomicInteger();
+    private int duplicates = 0;
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    /**
+     * Constructor.
+     *
+     * @param accounts the accounts, savings rows are matched with them by name.
+     *                 They are only read.
+     */
+    public Importer(Map<Byte, Account> accounts) {
+        for (Map.Entry<Byte, Account> e : accounts.entrySet()) {
+            if (e.getValue().getBalance() >= 0)
+                accountIds.put(e.getValue().getName(), e.getKey());
+        }
+    }
+
+    /**
+     * Imports the specified statement file.
+     *
+     * @param file a CSV or OFX/QFX file
+     * @param accounts the accounts, only read
+     *
+     * @return the import report
+     *
+     * @throws IOException if the file can't be opened
+     */
+    public static Report importFile(Path file, Map<Byte, Account> accounts) throws IOException {
+        try (StatementParser parser = StatementParser.open(file)) {
+            return new Importer(accounts).run(parser);
+        }
+    }
+
+    /**
+     * Runs the pipeline on the rows of the specified parser.
+     * <br>
+     * This method returns once every batch has been written. If the statement
+     * can't be read, or a month can't be written, the import stops and the
+     * report tells what was imported until then.
+     *
+     * @param parser a statement parser
+     *
+     * @return the import report
+     */
+    public Report run(StatementParser parser) {
+        ExecutorService writers = Executors.newFixedThreadPool(WRITER_COUNT);
+
+        try {
+            StatementRow row;
+            while ((row = parser.next()) != null && failure.get() == null) {
+                Transaction t = normalize(row);
+                if (t == null) {
+                    rejected.incrementAndGet();
+                    continue;
+                }
+
+                YearMonth ym = YearMonth.from(row.date());
+                if (states.computeIfAbsent(ym, MonthState::new).isDuplicate(t)) {
+                    duplicates++;
+                    continue;
+                }
+
+                List<Transaction> buffer = buffers.computeIfAbsent(ym, k -> new ArrayList<>());
+                buffer.add(t);
+                buffered++;
+
+                if (buffer.size() >= BATCH_SIZE)
+                    flush(ym, writers);
+                else if (buffered >= MAX_BUFFERED_ROWS)
+                    flush(largestBuffer(), writers);
+            }
+
+            for (YearMonth ym : new ArrayList<>(buffers.keySet()))
+                flush(ym, writers);
+        } catch (IOException e) {
+            failure.compareAndSet(null, e);
+        } finally {
+            // Wait for all the writers to be done, the written batches are reported even if the import failed
+            pending.acquireUninterruptibly(MAX_PENDING_BATCHES);
+            pending.release(MAX_PENDING_BATCHES);
+            writers.shutdown();
+        }
+
+        Report report;
+        synchronized (changes) {
+            report = new Report(imported.get(), rejected.get(), duplicates, tails.size(), changes, Map.copyOf(kept), failure.get());
+        }
+        System.out.println(report.format());
+
+        return report;
+    }
+
+    /**
+     * Normalizes a statement row into a transaction.
+     * <br>
+     * Rows without a type are revenues when their amount is positive
+     * and bills otherwise. Savings keep the sign of their amount,
+     * other types are stored as positive values.
+     *
+     * @param row a statement row
+     *
+     * @return the transaction, or {@code null} if the row can't be imported
+     */
+    private Transaction normalize(StatementRow row) {
+        if (row.amount() == 0 || row.name().isEmpty())
+            return null;
+
+        TransactionType tt = row.transactionType() != null ?
+                row.transactionType() :
+                row.amount() > 0 ? TransactionType.REVENUE : TransactionType.BILL;
+        ValueType vt = row.valueType() != null ? row.valueType() : ValueType.ABSOLUTE;
+
+        byte to = 0;
+        if (tt == TransactionType.SAVINGS) {
+            Byte id = accountIds.get(row.account());
+            if (id == null)
+                return null;
+
+            to = id;
+        }
+
+        float value = tt == TransactionType.SAVINGS && vt == ValueType.ABSOLUTE ? row.amount() : Math.abs(row.amount());
+
+        try {
+            return new Transaction(row.name(), to, tt, vt, value);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Hands the buffer of the specified month over to the writers.
+     * Blocks while too many batches are pending.
+     *
+     * @param ym a year and month
+     * @param writers the writers pool
+     */
+    private void flush(YearMonth ym, ExecutorService writers) {
+        List<Transaction> batch = buffers.remove(ym);
+        if (batch == null || batch.isEmpty())
+            return;
+
+        buffered -= batch.size();
+        states.get(ym).flushed(batch);
+
+        // Back-pressure
+        pending.acquireUninterruptibly();
+
+        // Batches of a same month are chained so that they keep the statement order
+        CompletableFuture<Void> tail = tails.getOrDefault(ym, CompletableFuture.completedFuture(null));
+        tails.put(ym, tail.thenRunAsync(() -> writeBatch(ym, batch), writers)
+                .whenComplete((v, e) -> {
+                    if (e != null)
+                        failure.compareAndSet(null, e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+
+                    pending.release();
+                }));
+    }
+
+    /**
+     * Appends a batch to its month and sums the changes of the balances,
+     * or keeps it if the month is loaded in the window.
+     *
+     * @param ym a year and month
+     * @param batch a list of transactions
+     */
+    private void writeBatch(YearMonth ym, List<Transaction> batch) {
+        int year = ym.getYear();
+        int month = ym.getMonthValue();
+
+        List<Transaction> before = Storage.read(year, month);
+        List<Transaction> held = kept.getOrDefault(ym, List.of());
+
+        int room = Math.max(Storage.MAX_TRANSACTION_COUNT - before.size() - held.size(), 0);
+        if (batch.size() > room) {
+            rejected.addAndGet(batch.size() - room);
+            batch = batch.subList(0, room);
+        }
+        if (batch.isEmpty())
+            return;
+
+        // Same order as the one given by Storage.read
+        List<Transaction> after = new ArrayList<>(before);
+        for (Transaction t : batch) {
+            if (t.transactionType().equals(TransactionType.REVENUE))
+                after.add(0, t);
+            else
+                after.add(t);
+        }
+
+        if (!Storage.appendUnlessLoaded(batch, year, month)) {
+            // The window adds them to the loaded month, and updates the balances itself
+            kept.merge(ym, List.copyOf(batch), Importer::concat);
+            imported.addAndGet(batch.size());
+            return;
+        }
+        imported.addAndGet(batch.size());
+
+        // Relative values depend on the whole month, so the month is replayed
+        float carry = CarryOver.get().getCarry(year, month);
+        Account.ModMap reverse = Account.ModMap.of(before, carry).reverse();
+        Account.ModMap apply = Account.ModMap.of(after, carry);
+        synchronized (changes) {
+            changes.add(reverse).add(apply);
+        }
+    }
+
+    private static List<Transaction> concat(List<Transaction> a, List<Transaction> b) {
+        List<Transaction> c = new ArrayList<>(a);
+        c.addAll(b);
+
+        return c;
+    }
+
+    private YearMonth largestBuffer() {
+
+        return Collections.max(buffers.entrySet(), Comparator.comparingInt(e -> e.getValue().size())).getKey();
+    }
+
+
+    /**
+     * This class provides the duplicate detection state of a month during an import.
+     * <br>
+     * A row is a duplicate if its month already contained at least as many
+     * transactions with the same content as the statement did before it.
+     */
+    private class MonthState {
+
+        private final YearMonth ym;
+        private final BloomFilter filter;
+
+        // Content fingerprint counts of the month before the import, loaded on demand
+        private Map<Long, Integer> existing = null;
+        private final Map<Long, Integer> seen = new HashMap<>();
+        private final Map<Long, Integer> flushed = new HashMap<>();
+
+        private MonthState(YearMonth ym) {
+            this.ym = ym;
+            this.filter = DuplicateFilter.load(ym.getYear(), ym.getMonthValue());
+        }
+
+        /**
+         * Tests whether a row of the statement is already in the month.
+         *
+         * @param t a normalized row
+         *
+         * @return {@code true} if the row is a duplicate
+         */
+        private boolean isDuplicate(Transaction t) {
+            long content = Fingerprint.of(t);
+            int position = seen.merge(content, 1, Integer::sum) - 1;
+
+            if (!filter.mightContain(Fingerprint.of(content, position)))
+                return false;
+
+            if (existing == null)
+                existing = loadExisting();
+
+            return position < existing.getOrDefault(content, 0);
+        }
+
+        /**
+         * Records the rows handed over to the writers.
+         *
+         * @param batch a batch of rows
+         */
+        private void flushed(List<Transaction> batch) {
+            for (Transaction t : batch)
+                flushed.merge(Fingerprint.of(t), 1, Integer::sum);
+        }
+
+        private Map<Long, Integer> loadExisting() {
+            // Batches of this import may already have been appended to the month
+            CompletableFuture<Void> tail = tails.get(ym);
+            if (tail != null) {
+                try {
+                    tail.join();
+                } catch (CompletionException ignored) {
+                    // The failure is reported by the pipeline
+                }
+            }
+
+            // The changes of the window may not be written yet
+            Storage.awaitWrites();
+
+            // Kept rows count as written, they are added by the window
+            List<Transaction> month = new ArrayList<>(Storage.read(ym.getYear(), ym.getMonthValue()));
+            month.addAll(kept.getOrDefault(ym, List.of()));
+
+            Map<Long, Integer> counts = DuplicateFilter.count(month);
+            flushed.forEach((content, n) -> counts.merge(content, -n, Integer::sum));
+
+            return counts;
+        }
+    }
+
+
+    /**
+     * This record provides the results of an import.
+     *
+     * @param imported the number of imported transactions, kept ones included
+     * @param rejected the number of rows that couldn't be imported
+     * @param duplicates the number of rows that were already imported
+     * @param months the number of months written to
+     * @param balances the changes of the balances caused by the written months
+     * @param kept the rows of the months loaded in the window, which weren't written
+     * @param failure the reason the import stopped early, {@code null} if it didn't
+     */
+    public record Report(int imported, int rejected, int duplicates, int months,
+                         Account.ModMap balances, Map<YearMonth, List<Transaction>> kept, Throwable failure) {
+
+        /**
+         * Returns a summary of the import, for the user.
+         *
+         * @return a text
+         */
+        public String format() {
+            String summary = String.format("Imported %s transactions into %s months, rejected %s, skipped %s duplicates",
+                    imported, months, rejected, duplicates);
+
+            if (failure != null)
+                return String.format("%s%nThe import could not be completed: %s", summary, failure.getMessage());
+
+            return summary;
+        }
+    }
+}
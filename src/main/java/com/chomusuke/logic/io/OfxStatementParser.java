@@ -0,0 +1,163 @@
+/*  Accountable: a personal spending monitoring program
+    Copyright (C) 2023  Artur Yukhanov
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package com.chomusuke.logic.io;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Provides streaming reading of OFX/QFX bank statements.
+ * <br>
+ * Works on both the SGML (OFX 1.x) and XML (OFX 2.x) flavours:
+ * only the {@code STMTTRN} blocks are read, tag by tag,
+ * so the whole document is never held in memory.
+ */
+public class OfxStatementParser implements StatementParser {
+
+    private static final String TRANSACTION_TAG = "STMTTRN";
+
+    private final BufferedReader reader;
+
+    /**
+     * Constructor.
+     *
+     * @param reader a reader on the statement
+     */
+    public OfxStatementParser(BufferedReader reader) {
+
+        this.reader = reader;
+    }
+
+    @Override
+    public StatementRow next() throws IOException {
+        Map<String, String> fields = null;
+        String tag;
+
+        while ((tag = nextTag()) != null) {
+            if (tag.equals(TRANSACTION_TAG)) {
+                fields = new HashMap<>();
+            } else if (tag.equals("/" + TRANSACTION_TAG) && fields != null) {
+                StatementRow row = parse(fields);
+                if (row != null)
+                    return row;
+
+                fields = null;
+            } else if (fields != null && !tag.startsWith("/")) {
+                fields.put(tag, readText());
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+
+        reader.close();
+    }
+
+    /**
+     * Builds a row from the fields of a {@code STMTTRN} block.
+     *
+     * @param fields the fields of the block
+     *
+     * @return a row, or {@code null} if the block is incomplete
+     */
+    private static StatementRow parse(Map<String, String> fields) {
+        String date = fields.get("DTPOSTED");
+        String amount = fields.get("TRNAMT");
+        String name = fields.getOrDefault("NAME", fields.get("MEMO"));
+
+        if (date == null || amount == null || name == null || date.length() < 8)
+            return null;
+
+        try {
+            return new StatementRow(
+                    LocalDate.parse(date.substring(0, 8), DateTimeFormatter.BASIC_ISO_DATE),
+                    name,
+                    Float.parseFloat(amount.replace(',', '.')),
+                    null,
+                    null,
+                    null
+            );
+        } catch (DateTimeParseException | NumberFormatException e) {
+            System.out.printf("Skipped malformed statement entry: %s%n", fields);
+            return null;
+        }
+    }
+
+    /**
+     * Skips to the next tag and returns its name.
+     *
+     * @return the upper-case name of the tag, or {@code null} at the end of the stream
+     *
+     * @throws IOException if the stream can't be read
+     */
+    private String nextTag() throws IOException {
+        int c;
+        while ((c = reader.read()) != -1 && c != '<') {
+            // Skip until the next tag
+        }
+        if (c == -1)
+            return null;
+
+        StringBuilder tag = new StringBuilder();
+        while ((c = reader.read()) != -1 && c != '>')
+            tag.append((char) c);
+
+        return tag.toString().trim().toUpperCase(Locale.ROOT);
+    }
+
+    /**
+     * Reads the text following a tag, up to the next tag.
+     *
+     * @return the trimmed text
+     *
+     * @throws IOException if the stream can't be read
+     */
+    private String readText() throws IOException {
+        StringBuilder text = new StringBuilder();
+
+        reader.mark(1);
+        int c;
+        while ((c = reader.read()) != -1 && c != '<') {
+            text.append((char) c);
+            reader.mark(1);
+        }
+        // Leave the '<' for nextTag()
+        if (c == '<')
+            reader.reset();
+
+        return unescape(text.toString().trim());
+    }
+
+    private static String unescape(String s) {
+
+        return s.replace("&lt;", "<")
+                .replace("&gt;", ">")
+                .replace("&quot;", "\"")
+                .replace("&apos;", "'")
+                .replace("&amp;", "&");
+    }
+}
@@ -0,0 +1,62 @@
+/*  Accountable: a personal spending monitoring program
+    Copyright (C) 2023  Artur Yukhanov
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package com.chomusuke.logic.io;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+
+/**
+ * Provides streaming reading of bank statements, one row at a time.
+ */
+public interface StatementParser extends Closeable {
+
+    /**
+     * Reads the next row of the statement.
+     *
+     * @return the next row, or {@code null} if the end of the statement is reached
+     *
+     * @throws IOException if the statement can't be read
+     */
+    StatementRow next() throws IOException;
+
+    /**
+     * Opens a parser for the specified file, according to its extension.
+     *
+     * @param file a CSV or OFX/QFX file
+     *
+     * @return a parser reading the file
+     *
+     * @throws IOException if the file can't be opened
+     */
+    static StatementParser open(Path file) throws IOException {
+        String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+        // Malformed input is replaced rather than rejected, bank exports are rarely clean UTF-8
+        BufferedReader reader = new BufferedReader(new InputStreamReader(Files.newInputStream(file), StandardCharsets.UTF_8));
+
+        if (name.endsWith(".ofx") || name.endsWith(".qfx"))
+            return new OfxStatementParser(reader);
+
+        return new CsvStatementParser(reader);
+    }
+}
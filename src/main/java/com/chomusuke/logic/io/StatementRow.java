@@ -0,0 +1,42 @@
+/*  Accountable: a personal spending monitoring program
+    Copyright (C) 2023  Artur Yukhanov
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package com.chomusuke.logic.io;
+
+import java.time.LocalDate;
+
+import static com.chomusuke.logic.Transaction.TransactionType;
+import static com.chomusuke.logic.Transaction.ValueType;
+
+/**
+ * This record provides memory storage of a bank statement row,
+ * as read by a {@code StatementParser} and before normalization.
+ *
+ * @param date the date of the operation
+ * @param name the label of the operation
+ * @param amount the signed amount of the operation
+ * @param transactionType the type of tx, {@code null} if it has to be inferred
+ * @param valueType the type of value of the tx, {@code null} if absolute
+ * @param account the name of the destination account, {@code null} if none
+ */
+public record StatementRow(LocalDate date,
+                           String name,
+                           float amount,
+                           TransactionType transactionType,
+                           ValueType valueType,
+                           String account) {
+}
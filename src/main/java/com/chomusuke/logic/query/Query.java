@@ -0,0 +1,552 @@
+/*  Accountable: a personal spending monitoring program
+    Copyright (C) 2023  Artur Yukhanov
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package com.chomusuke.logic.query;
+
+import java.time.YearMonth;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import com.chomusuke.logic.Account;
+import com.chomusuke.logic.CarryOver;
+import com.chomusuke.logic.HistoryScan;
+import com.chomusuke.logic.Storage;
+import com.chomusuke.logic.Transaction;
+
+import static com.chomusuke.logic.Transaction.TransactionType;
+import static com.chomusuke.logic.Transaction.ValueType;
+
+/**
+ * Provides ad-hoc queries over the whole history.
+ * <br>
+ * A query is a pipeline of stages separated by {@code |}:
+ * <pre>
+ * filter type = BILL and year >= 2022 | group year, type | aggregate sum(amount), count | sort sum(amount) desc | limit 10
+ * </pre>
+ * The fields are {@code year}, {@code month}, {@code name}, {@code type},
+ * {@code valuetype}, {@code account}, {@code value} (the signed computed value)
+ * and {@code amount} (its magnitude). Names can be matched with {@code ~}
+ * (contains, ignoring case). The aggregates are {@code count}, {@code sum},
+ * {@code avg}, {@code min} and {@code max}.
+ * <br>
+ * The query is compiled once: the filter becomes a row predicate, plus a
+ * month predicate checked against the month summaries by {@code HistoryScan},
+ * so that months that can't match are never decoded. Filtering, grouping and aggregation are
+ * then fused in a single pass over each month, and the months are split
+ * between the fork/join pool. Without group or aggregate stages, the
+ * matching rows are listed.
+ */
+public final class Query {
+
+    // Months scanned by a single task
+    private static final int LEAF_MONTHS = 2;
+
+    private static final List<String> ROW_COLUMNS = List.of("year", "month", "name", "type", "valuetype", "account", "value");
+
+    private final String text;
+    private final Condition filter;
+    private final List<Field> groups;
+    private final List<Aggregate> aggregates;
+    private final String sortColumn;
+    private final boolean descending;
+    private final int limit;
+    private final Map<Byte, Account> accounts;
+
+    Query(String text, Condition filter, List<Field> groups, List<Aggregate> aggregates,
+          String sortColumn, boolean descending, int limit, Map<Byte, Account> accounts) {
+        this.text = text;
+        this.filter = filter;
+        this.groups = List.copyOf(groups);
+        this.aggregates = aggregates.isEmpty() && !groups.isEmpty() ?
+                List.of(new Aggregate(Function.COUNT, null)) :
+                List.copyOf(aggregates);
+        this.sortColumn = sortColumn;
+        this.descending = descending;
+        this.limit = limit;
+        this.accounts = accounts;
+    }
+
+    /**
+     * Compiles a query.
+     *
+     * @param text the query
+     * @param accounts an account map, used to match and display account names
+     *
+     * @return the compiled query
+     *
+     * @throws IllegalArgumentException if the query is malformed
+     */
+    public static Query compile(String text, Map<Byte, Account> accounts) {
+
+        return new QueryParser(text, accounts).parse();
+    }
+
+    /**
+     * Runs the query over the whole history.
+     *
+     * @return the result of the query
+     */
+    public Result run() {
+        long start = System.nanoTime();
+        List<YearMonth> dates = HistoryScan.candidates(filter == null ? c -> true : filter.month()::mightMatch);
+
+        Partial p = ForkJoinPool.commonPool().invoke(new ScanTask(dates, 0, dates.size()));
+        Result result = finish(p);
+
+        System.out.printf("Query scanned %s months in %s ms%n", dates.size(), (System.nanoTime() - start) / 1_000_000);
+
+        return result;
+    }
+
+    private boolean aggregating() {
+
+        return !aggregates.isEmpty();
+    }
+
+    /**
+     * Filters, groups and aggregates one decoded month.
+     *
+     * @param batch a month
+     * @param partial the results of the current task
+     */
+    private void consume(MonthBatch batch, Partial partial) {
+        for (int row = 0 ; row < batch.size ; row++) {
+            if (filter != null && !filter.row().test(batch, row))
+                continue;
+
+            if (!aggregating()) {
+                Object[] values = new Object[ROW_COLUMNS.size()];
+                values[0] = batch.year;
+                values[1] = batch.month;
+                values[2] = batch.names[row];
+                values[3] = TransactionType.values()[batch.types[row]];
+                values[4] = ValueType.values()[batch.valueTypes[row]];
+                values[5] = accountName(batch.accounts[row]);
+                values[6] = batch.values[row];
+                partial.rows.add(values);
+                continue;
+            }
+
+            List<Object> key = new ArrayList<>(groups.size());
+            for (Field f : groups)
+                key.add(groupValue(f, batch, row));
+
+            double[] acc = partial.groups.computeIfAbsent(key, k -> newAccumulators());
+            for (int a = 0 ; a < aggregates.size() ; a++) {
+                Aggregate aggregate = aggregates.get(a);
+                double v = aggregate.field() == null ? 0 : aggregate.field().number(batch, row);
+
+                switch (aggregate.function()) {
+                    case COUNT -> acc[a * 2]++;
+                    case SUM -> acc[a * 2] += v;
+                    case AVG -> {
+                        acc[a * 2] += v;
+                        acc[a * 2 + 1]++;
+                    }
+                    case MIN -> acc[a * 2] = Math.min(acc[a * 2], v);
+                    case MAX -> acc[a * 2] = Math.max(acc[a * 2], v);
+                }
+            }
+        }
+    }
+
+    private double[] newAccumulators() {
+        double[] acc = new double[aggregates.size() * 2];
+        for (int a = 0 ; a < aggregates.size() ; a++) {
+            switch (aggregates.get(a).function()) {
+                case MIN -> acc[a * 2] = Double.POSITIVE_INFINITY;
+                case MAX -> acc[a * 2] = Double.NEGATIVE_INFINITY;
+                default -> {
+                }
+            }
+        }
+
+        return acc;
+    }
+
+    private void merge(double[] into, double[] acc) {
+        for (int a = 0 ; a < aggregates.size() ; a++) {
+            switch (aggregates.get(a).function()) {
+                case MIN -> into[a * 2] = Math.min(into[a * 2], acc[a * 2]);
+                case MAX -> into[a * 2] = Math.max(into[a * 2], acc[a * 2]);
+                default -> {
+                    into[a * 2] += acc[a * 2];
+                    into[a * 2 + 1] += acc[a * 2 + 1];
+                }
+            }
+        }
+    }
+
+    private Object groupValue(Field f, MonthBatch batch, int row) {
+        return switch (f) {
+            case YEAR -> batch.year;
+            case MONTH -> batch.month;
+            case NAME -> batch.names[row];
+            case TYPE -> TransactionType.values()[batch.types[row]];
+            case VALUETYPE -> ValueType.values()[batch.valueTypes[row]];
+            case ACCOUNT -> accountName(batch.accounts[row]);
+            case VALUE, AMOUNT -> (float) f.number(batch, row);
+        };
+    }
+
+    private String accountName(byte id) {
+        if (id == 0)
+            return "";
+
+        Account a = accounts.get(id);
+
+        return a == null ? Byte.toString(id) : a.getName();
+    }
+
+    /**
+     * Turns the merged results into rows, then sorts and limits them.
+     */
+    private Result finish(Partial p) {
+        List<String> columns = new ArrayList<>();
+        List<Object[]> rows = new ArrayList<>();
+
+        if (!aggregating()) {
+            columns.addAll(ROW_COLUMNS);
+            rows.addAll(p.rows);
+        } else {
+            for (Field f : groups)
+                columns.add(f.label());
+            for (Aggregate a : aggregates)
+                columns.add(a.label());
+
+            // A query without groups always has a result
+            if (groups.isEmpty() && p.groups.isEmpty())
+                p.groups.put(List.of(), newAccumulators());
+
+            for (Map.Entry<List<Object>, double[]> e : p.groups.entrySet()) {
+                Object[] row = new Object[columns.size()];
+                for (int i = 0 ; i < groups.size() ; i++)
+                    row[i] = e.getKey().get(i);
+
+                double[] acc = e.getValue();
+                for (int a = 0 ; a < aggregates.size() ; a++) {
+                    Object v = switch (aggregates.get(a).function()) {
+                        case COUNT -> (long) acc[a * 2];
+                        case AVG -> acc[a * 2 + 1] == 0 ? null : acc[a * 2] / acc[a * 2 + 1];
+                        case MIN, MAX -> Double.isInfinite(acc[a * 2]) ? null : acc[a * 2];
+                        case SUM -> acc[a * 2];
+                    };
+                    row[groups.size() + a] = v;
+                }
+                rows.add(row);
+            }
+
+            // Groups in the order of their keys
+            rows.sort(columnsComparator(groups.size()));
+        }
+
+        if (sortColumn != null) {
+            int column = columns.indexOf(sortColumn);
+            if (column < 0)
+                throw new IllegalArgumentException(String.format("Unknown column to sort by: %s", sortColumn));
+
+            Comparator<Object[]> c = (a, b) -> compare(a[column], b[column]);
+            rows.sort(descending ? c.reversed() : c);
+        }
+
+        if (limit >= 0 && rows.size() > limit)
+            rows = new ArrayList<>(rows.subList(0, limit));
+
+        return new Result(columns, rows);
+    }
+
+    private static Comparator<Object[]> columnsComparator(int count) {
+        return (a, b) -> {
+            for (int i = 0 ; i < count ; i++) {
+                int c = compare(a[i], b[i]);
+                if (c != 0)
+                    return c;
+            }
+
+            return 0;
+        };
+    }
+
+    /**
+     * Compares two values of a same column, missing values first.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static int compare(Object a, Object b) {
+        if (a == null || b == null)
+            return a == null ? (b == null ? 0 : -1) : 1;
+
+        return ((Comparable) a).compareTo(b);
+    }
+
+    @Override
+    public String toString() {
+
+        return text;
+    }
+
+
+    /**
+     * This enum provides constants for the fields of a row.
+     */
+    enum Field {
+        YEAR,
+        MONTH,
+        NAME,
+        TYPE,
+        VALUETYPE,
+        ACCOUNT,
+        VALUE,
+        AMOUNT;
+
+        boolean isNumeric() {
+
+            return this == YEAR || this == MONTH || this == VALUE || this == AMOUNT;
+        }
+
+        double number(MonthBatch batch, int row) {
+            return switch (this) {
+                case YEAR -> batch.year;
+                case MONTH -> batch.month;
+                case VALUE -> batch.values[row];
+                case AMOUNT -> Math.abs(batch.values[row]);
+                default -> throw new IllegalStateException(String.format("%s is not numeric", this));
+            };
+        }
+
+        String label() {
+
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    /**
+     * This enum provides constants for the aggregate functions.
+     */
+    enum Function {
+        COUNT,
+        SUM,
+        AVG,
+        MIN,
+        MAX
+    }
+
+    /**
+     * An aggregate function applied to a numeric field.
+     *
+     * @param function a function
+     * @param field a numeric field, {@code null} for {@code count}
+     */
+    record Aggregate(Function function, Field field) {
+
+        String label() {
+            String f = function.name().toLowerCase(Locale.ROOT);
+
+            return field == null ? f : String.format("%s(%s)", f, field.label());
+        }
+    }
+
+    /**
+     * Tests a row of a decoded month.
+     */
+    interface RowPredicate {
+
+        boolean test(MonthBatch batch, int row);
+    }
+
+    /**
+     * Tests whether a month can contain matching rows, without decoding it.
+     */
+    interface MonthPredicate {
+
+        boolean mightMatch(HistoryScan.Candidate month);
+    }
+
+    /**
+     * A compiled filter.
+     *
+     * @param row the exact test of a row
+     * @param month a test of the months that may contain matching rows
+     */
+    record Condition(RowPredicate row, MonthPredicate month) {
+
+        Condition and(Condition that) {
+            return new Condition(
+                    (b, r) -> row.test(b, r) && that.row.test(b, r),
+                    m -> month.mightMatch(m) && that.month.mightMatch(m));
+        }
+
+        Condition or(Condition that) {
+            return new Condition(
+                    (b, r) -> row.test(b, r) || that.row.test(b, r),
+                    m -> month.mightMatch(m) || that.month.mightMatch(m));
+        }
+
+        Condition negate() {
+
+            // A month summary can't tell whether all the rows match
+            return new Condition((b, r) -> !row.test(b, r), m -> true);
+        }
+    }
+
+    /**
+     * A decoded month, one array per column.
+     */
+    static final class MonthBatch {
+
+        final int year;
+        final int month;
+        final int size;
+        final String[] names;
+        final byte[] types;
+        final byte[] valueTypes;
+        final byte[] accounts;
+        final float[] values;
+
+        private MonthBatch(int year, int month, List<Transaction> txs, float[] values) {
+            this.year = year;
+            this.month = month;
+            this.size = txs.size();
+            this.names = new String[size];
+            this.types = new byte[size];
+            this.valueTypes = new byte[size];
+            this.accounts = new byte[size];
+            this.values = values;
+
+            for (int i = 0 ; i < size ; i++) {
+                Transaction t = txs.get(i);
+                names[i] = t.name();
+                types[i] = (byte) t.transactionType().ordinal();
+                valueTypes[i] = (byte) t.valueType().ordinal();
+                accounts[i] = t.to();
+            }
+        }
+    }
+
+    /**
+     * The results of a task, before they are merged with the other tasks'.
+     */
+    private static final class Partial {
+
+        private final Map<List<Object>, double[]> groups = new HashMap<>();
+        private final List<Object[]> rows = new ArrayList<>();
+    }
+
+    /**
+     * Scans a range of months, splitting it while it is large.
+     * Tasks are never serialized.
+     */
+    @SuppressWarnings("serial")
+    private final class ScanTask extends RecursiveTask<Partial> {
+
+        private final List<YearMonth> dates;
+        private final int from;
+        private final int to;
+
+        private ScanTask(List<YearMonth> dates, int from, int to) {
+            this.dates = dates;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Partial compute() {
+            if (to - from > LEAF_MONTHS) {
+                int middle = (from + to) >>> 1;
+                ScanTask left = new ScanTask(dates, from, middle);
+                ScanTask right = new ScanTask(dates, middle, to);
+                left.fork();
+                Partial r = right.compute();
+                Partial l = left.join();
+
+                // Rows stay in chronological order
+                l.rows.addAll(r.rows);
+                r.groups.forEach((key, acc) -> {
+                    double[] into = l.groups.get(key);
+                    if (into == null)
+                        l.groups.put(key, acc);
+                    else
+                        merge(into, acc);
+                });
+
+                return l;
+            }
+
+            Partial p = new Partial();
+            for (YearMonth ym : dates.subList(from, to)) {
+                List<Transaction> txs = Storage.read(ym.getYear(), ym.getMonthValue());
+                consume(new MonthBatch(ym.getYear(), ym.getMonthValue(), txs, CarryOver.get().getValues(ym.getYear(), ym.getMonthValue(), txs)), p);
+            }
+
+            return p;
+        }
+    }
+
+
+    /**
+     * This record provides the result of a query.
+     *
+     * @param columns the names of the columns
+     * @param rows the rows, one value per column
+     */
+    public record Result(List<String> columns, List<Object[]> rows) {
+
+        /**
+         * Formats the result as an aligned text table.
+         *
+         * @return the table
+         */
+        public String format() {
+            List<String[]> cells = new ArrayList<>();
+            cells.add(columns.toArray(new String[0]));
+            for (Object[] row : rows) {
+                String[] line = new String[row.length];
+                for (int i = 0 ; i < row.length ; i++)
+                    line[i] = format(row[i]);
+                cells.add(line);
+            }
+
+            int[] widths = new int[columns.size()];
+            for (String[] line : cells) {
+                for (int i = 0 ; i < line.length ; i++)
+                    widths[i] = Math.max(widths[i], line[i].length());
+            }
+
+            StringBuilder b = new StringBuilder();
+            for (String[] line : cells) {
+                for (int i = 0 ; i < line.length ; i++) {
+                    if (i > 0)
+                        b.append("  ");
+                    // No trailing spaces after the last column
+                    b.append(i == line.length - 1 ? line[i] : String.format("%-" + widths[i] + "s", line[i]));
+                }
+                b.append(System.lineSeparator());
+            }
+
+            return b.toString();
+        }
+
+        private static String format(Object o) {
+            if (o == null)
+                return "-";
+            if (o instanceof Double || o instanceof Float)
+                return String.format(Locale.ROOT, "%.2f", ((Number) o).doubleValue());
+
+            return o.toString();
+        }
+    }
+}
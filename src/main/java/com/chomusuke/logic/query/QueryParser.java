@@ -0,0 +1,418 @@
+/*  Accountable: a personal spending monitoring program
+    Copyright (C) 2023  Artur Yukhanov
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package com.chomusuke.logic.query;
+
+import java.util.*;
+
+import com.chomusuke.logic.Account;
+import com.chomusuke.logic.MonthSummary;
+
+import static com.chomusuke.logic.Transaction.TransactionType;
+import static com.chomusuke.logic.Transaction.ValueType;
+import static com.chomusuke.logic.query.Query.*;
+
+/**
+ * Compiles the text of a query. See {@code Query} for the syntax.
+ * <br>
+ * Comparisons are turned into predicates working directly on the
+ * columns of a decoded month, with their operand already converted.
+ */
+class QueryParser {
+
+    private static final List<String> OPERATORS = List.of("!=", "<=", ">=", "=", "<", ">", "~");
+
+    private final String text;
+    private final Map<Byte, Account> accounts;
+    private final List<String> tokens;
+    private int position = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param text the text of the query
+     * @param accounts an account map, used to resolve account names
+     */
+    QueryParser(String text, Map<Byte, Account> accounts) {
+        this.text = text;
+        this.accounts = accounts;
+        this.tokens = tokenize(text);
+    }
+
+    /**
+     * Parses the whole query.
+     *
+     * @return the compiled query
+     */
+    Query parse() {
+        Condition filter = null;
+        List<Field> groups = new ArrayList<>();
+        List<Aggregate> aggregates = new ArrayList<>();
+        String sortColumn = null;
+        boolean descending = false;
+        int limit = -1;
+
+        while (peek() != null) {
+            String stage = next().toLowerCase(Locale.ROOT);
+
+            switch (stage) {
+                case "filter" -> {
+                    Condition c = or();
+                    filter = filter == null ? c : filter.and(c);
+                }
+                case "group" -> {
+                    accept("by");
+                    do {
+                        groups.add(field());
+                    } while (accept(","));
+                }
+                case "aggregate" -> {
+                    do {
+                        aggregates.add(aggregate());
+                    } while (accept(","));
+                }
+                case "sort" -> {
+                    accept("by");
+                    sortColumn = column();
+                    if (accept("desc"))
+                        descending = true;
+                    else
+                        accept("asc");
+                }
+                case "limit" -> limit = (int) number(next());
+                default -> throw error(String.format("Unknown stage '%s'", stage));
+            }
+
+            if (peek() != null && !accept("|"))
+                throw error(String.format("Expected '|' instead of '%s'", peek()));
+        }
+
+        return new Query(text, filter, groups, aggregates, sortColumn, descending, limit, accounts);
+    }
+
+    // ----- CONDITIONS -----
+
+    private Condition or() {
+        Condition c = and();
+        while (accept("or"))
+            c = c.or(and());
+
+        return c;
+    }
+
+    private Condition and() {
+        Condition c = unary();
+        while (accept("and"))
+            c = c.and(unary());
+
+        return c;
+    }
+
+    private Condition unary() {
+        if (accept("not"))
+            return unary().negate();
+
+        if (accept("(")) {
+            Condition c = or();
+            expect(")");
+
+            return c;
+        }
+
+        return comparison();
+    }
+
+    private Condition comparison() {
+        Field field = field();
+        String op = next();
+        if (op == null || !OPERATORS.contains(op))
+            throw error(String.format("Expected an operator after %s", field.label()));
+
+        String operand = next();
+        if (operand == null)
+            throw error("Missing operand");
+
+        return switch (field) {
+            case YEAR, MONTH, VALUE, AMOUNT -> numeric(field, op, number(operand));
+            case NAME -> name(op, operand);
+            case TYPE -> {
+                byte type = (byte) enumValue(TransactionType.class, operand).ordinal();
+                yield equality(op, (b, r) -> b.types[r] == type, m -> m.summary().hasType(TransactionType.values()[type]));
+            }
+            case VALUETYPE -> {
+                byte type = (byte) enumValue(ValueType.class, operand).ordinal();
+                yield equality(op, (b, r) -> b.valueTypes[r] == type, m -> true);
+            }
+            case ACCOUNT -> {
+                byte id = accountId(operand);
+                yield equality(op, (b, r) -> b.accounts[r] == id, m -> m.summary().touches(id));
+            }
+        };
+    }
+
+    private Condition numeric(Field field, String op, double number) {
+        // Amounts are floats: 9.99 must be compared as 9.99f, which widens to 9.98999977...
+        double operand = field == Field.VALUE || field == Field.AMOUNT ? (float) number : number;
+
+        RowPredicate row = switch (field) {
+            case YEAR -> compare(op, operand, (b, r) -> b.year);
+            case MONTH -> compare(op, operand, (b, r) -> b.month);
+            case VALUE -> compare(op, operand, (b, r) -> b.values[r]);
+            default -> compare(op, operand, (b, r) -> Math.abs(b.values[r]));
+        };
+
+        MonthPredicate month = switch (field) {
+            case YEAR -> m -> test(op, m.year(), operand);
+            case MONTH -> m -> test(op, m.month(), operand);
+            // The summaries keep the range of the amounts of each type
+            case AMOUNT -> m -> {
+                MonthSummary s = m.summary();
+                for (TransactionType t : TransactionType.values()) {
+                    if (s.hasType(t) && overlaps(op, s.getMin(t), s.getMax(t), operand))
+                        return true;
+                }
+
+                return false;
+            };
+            default -> m -> true;
+        };
+
+        return new Condition(row, month);
+    }
+
+    private Condition name(String op, String operand) {
+        String lower = operand.toLowerCase(Locale.ROOT);
+
+        RowPredicate row = switch (op) {
+            case "=" -> (b, r) -> b.names[r].equalsIgnoreCase(operand);
+            case "!=" -> (b, r) -> !b.names[r].equalsIgnoreCase(operand);
+            case "~" -> (b, r) -> b.names[r].toLowerCase(Locale.ROOT).contains(lower);
+            default -> throw error(String.format("Names can't be compared with %s", op));
+        };
+
+        return new Condition(row, m -> true);
+    }
+
+    private Condition equality(String op, RowPredicate equals, MonthPredicate mightContain) {
+        return switch (op) {
+            case "=" -> new Condition(equals, mightContain);
+            case "!=" -> new Condition((b, r) -> !equals.test(b, r), m -> true);
+            default -> throw error(String.format("Only = and != can be used here, not %s", op));
+        };
+    }
+
+    private RowPredicate compare(String op, double operand, NumberColumn column) {
+        return switch (op) {
+            case "=" -> (b, r) -> column.get(b, r) == operand;
+            case "!=" -> (b, r) -> column.get(b, r) != operand;
+            case "<" -> (b, r) -> column.get(b, r) < operand;
+            case "<=" -> (b, r) -> column.get(b, r) <= operand;
+            case ">" -> (b, r) -> column.get(b, r) > operand;
+            case ">=" -> (b, r) -> column.get(b, r) >= operand;
+            default -> throw error(String.format("Numbers can't be compared with %s", op));
+        };
+    }
+
+    private static boolean test(String op, double value, double operand) {
+        return switch (op) {
+            case "=" -> value == operand;
+            case "!=" -> value != operand;
+            case "<" -> value < operand;
+            case "<=" -> value <= operand;
+            case ">" -> value > operand;
+            case ">=" -> value >= operand;
+            default -> true;
+        };
+    }
+
+    /**
+     * Tests whether some value between {@code min} and {@code max} may satisfy the comparison.
+     */
+    private static boolean overlaps(String op, double min, double max, double operand) {
+        return switch (op) {
+            case "=" -> min <= operand && operand <= max;
+            case "<" -> min < operand;
+            case "<=" -> min <= operand;
+            case ">" -> max > operand;
+            case ">=" -> max >= operand;
+            default -> true;
+        };
+    }
+
+    // ----- OTHER ELEMENTS -----
+
+    private Field field() {
+        String name = next();
+
+        return enumValue(Field.class, name);
+    }
+
+    private Aggregate aggregate() {
+        Function function = enumValue(Function.class, next());
+
+        if (function == Function.COUNT) {
+            if (accept("(")) {
+                if (!accept(")")) {
+                    field();
+                    expect(")");
+                }
+            }
+
+            return new Aggregate(function, null);
+        }
+
+        expect("(");
+        Field field = field();
+        if (!field.isNumeric())
+            throw error(String.format("%s can't be aggregated", field.label()));
+        expect(")");
+
+        return new Aggregate(function, field);
+    }
+
+    private String column() {
+        String name = next();
+        if (name == null)
+            throw error("Missing column");
+
+        if (accept("(")) {
+            String field = next();
+            expect(")");
+
+            return String.format("%s(%s)", name, field).toLowerCase(Locale.ROOT);
+        }
+
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    private byte accountId(String operand) {
+        for (Map.Entry<Byte, Account> e : accounts.entrySet()) {
+            if (e.getValue().getName().equalsIgnoreCase(operand))
+                return e.getKey();
+        }
+
+        try {
+            return Byte.parseByte(operand);
+        } catch (NumberFormatException e) {
+            throw error(String.format("Unknown account '%s'", operand));
+        }
+    }
+
+    private <E extends Enum<E>> E enumValue(Class<E> type, String s) {
+        if (s == null)
+            throw error("Unexpected end of query");
+
+        try {
+            return Enum.valueOf(type, s.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw error(String.format("Unknown %s '%s'", type.getSimpleName().toLowerCase(Locale.ROOT), s));
+        }
+    }
+
+    private double number(String s) {
+        try {
+            return Double.parseDouble(s);
+        } catch (NumberFormatException | NullPointerException e) {
+            throw error(String.format("Expected a number instead of '%s'", s));
+        }
+    }
+
+    // ----- TOKENS -----
+
+    private String peek() {
+
+        return position < tokens.size() ? tokens.get(position) : null;
+    }
+
+    private String next() {
+
+        return position < tokens.size() ? tokens.get(position++) : null;
+    }
+
+    private boolean accept(String token) {
+        if (peek() != null && peek().equalsIgnoreCase(token)) {
+            position++;
+            return true;
+        }
+
+        return false;
+    }
+
+    private void expect(String token) {
+        if (!accept(token))
+            throw error(String.format("Expected '%s'", token));
+    }
+
+    private IllegalArgumentException error(String message) {
+
+        return new IllegalArgumentException(String.format("%s (at token %s of \"%s\")", message, position, text));
+    }
+
+    /**
+     * Splits a query into words, numbers, quoted strings and symbols.
+     * Quotes are removed from strings.
+     *
+     * @param text a query
+     *
+     * @return the tokens
+     */
+    private static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+
+        int i = 0;
+        while (i < text.length()) {
+            char c = text.charAt(i);
+
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '"' || c == '\'') {
+                int end = text.indexOf(c, i + 1);
+                if (end < 0)
+                    throw new IllegalArgumentException(String.format("Unterminated string in \"%s\"", text));
+
+                tokens.add(text.substring(i + 1, end));
+                i = end + 1;
+            } else if (Character.isLetterOrDigit(c) || c == '.' || c == '_' || (c == '-' && i + 1 < text.length() && Character.isDigit(text.charAt(i + 1)))) {
+                int start = i++;
+                while (i < text.length() && (Character.isLetterOrDigit(text.charAt(i)) || text.charAt(i) == '.' || text.charAt(i) == '_'))
+                    i++;
+
+                tokens.add(text.substring(start, i));
+            } else {
+                // Two-character operators first
+                String two = i + 1 < text.length() ? text.substring(i, i + 2) : "";
+                if (OPERATORS.contains(two)) {
+                    tokens.add(two);
+                    i += 2;
+                } else {
+                    tokens.add(Character.toString(c));
+                    i++;
+                }
+            }
+        }
+
+        return tokens;
+    }
+
+    /**
+     * Reads a numeric column of a decoded month.
+     */
+    private interface NumberColumn {
+
+        double get(MonthBatch batch, int row);
+    }
+}